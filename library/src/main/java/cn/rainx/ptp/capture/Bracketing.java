@@ -0,0 +1,276 @@
+package cn.rainx.ptp.capture;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.rainx.ptp.transfer.DownloadQueue;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.PTPException;
+import cn.rainx.ptp.usbcamera.Response;
+
+/**
+ * Focus and exposure bracketing.
+ *
+ * 先把拍摄计划整理成一串步骤（设置属性、移动对焦、释放快门），开始前对照缓存的
+ * 属性可选值检查一遍，然后连续执行，中间不做等待事件和下载的操作。之前帧的下载
+ * 由下载队列在后台进行，执行期间 USB 预留给拍摄，只在等待镜头停稳时允许预计
+ * 能及时完成的下载开始。
+ *
+ * 对焦步长和 MoveFocus 相同，EOS 上 1~3 为向近处，0x8001~0x8003 为向远处。
+ */
+public class Bracketing {
+
+    public static final String TAG = "Bracketing";
+
+    private static final int ACTION_SET_PROPERTY = 1;
+    private static final int ACTION_MOVE_FOCUS = 2;
+    private static final int ACTION_SETTLE = 3;
+    private static final int ACTION_RELEASE = 4;
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    // 预留窗口前后留出的余量
+    private static final long BUS_GUARD = 50 * NANOS_PER_MS;
+
+    // 相机忙时重试释放快门的间隔和最长时间
+    private static final int BUSY_RETRY_INTERVAL = 20; // ms
+    private static final int BUSY_TIMEOUT = 5000; // ms
+
+    /**
+     * One step of the sequence: an action and its parameters.
+     */
+    private static final class Step {
+        final int action;
+        final int param1;
+        final int param2;
+
+        Step(int action, int param1, int param2) {
+            this.action = action;
+            this.param1 = param1;
+            this.param2 = param2;
+        }
+    }
+
+    private final BaselineInitiator bi;
+    private final DownloadQueue queue;
+
+    private final List<Step> plan = new ArrayList<Step>();
+    private Step[] sequence;
+    private int frames = 0;
+
+    private volatile boolean cancelled = false;
+    private long[] frameNanos;
+
+    /**
+     * @param bi initiator
+     * @param queue download queue, or null to keep downloads on the event thread
+     */
+    public Bracketing(BaselineInitiator bi, DownloadQueue queue) {
+        this.bi = bi;
+        this.queue = queue;
+    }
+
+    /**
+     * Adds a focus stack: a frame, then a lens move, repeated.
+     *
+     * @param count number of frames
+     * @param focusStep MoveFocus step between two frames
+     * @param settleMs time for the lens to stop after each move
+     */
+    public Bracketing focusStack(int count, int focusStep, int settleMs) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                plan.add(new Step(ACTION_MOVE_FOCUS, focusStep, 0));
+                if (settleMs > 0) {
+                    plan.add(new Step(ACTION_SETTLE, settleMs, 0));
+                }
+            }
+            plan.add(new Step(ACTION_RELEASE, 0, 0));
+        }
+        sequence = null;
+        return this;
+    }
+
+    /**
+     * Adds one frame per value of a property, e.g. an ISO or exposure
+     * compensation ladder.  Values are raw camera values.
+     *
+     * @param propcode property code, e.g. Command.EOS_DPC_Iso
+     * @param values values to shoot, in order
+     */
+    public Bracketing propertyLadder(int propcode, int[] values) {
+        for (int value : values) {
+            plan.add(new Step(ACTION_SET_PROPERTY, propcode, value));
+            plan.add(new Step(ACTION_RELEASE, 0, 0));
+        }
+        sequence = null;
+        return this;
+    }
+
+    public Bracketing clear() {
+        plan.clear();
+        sequence = null;
+        return this;
+    }
+
+    /**
+     * Validates the plan against the camera and fixes the step sequence.
+     * Called by {@link #run()} if needed.
+     */
+    public void prepare() throws PTPException {
+        // EOS 通过事件上报属性的可选值，先处理一次事件刷新缓存
+        bi.pollCaptureEvents();
+
+        int count = 0;
+        for (Step step : plan) {
+            switch (step.action) {
+                case ACTION_MOVE_FOCUS:
+                    if (!bi.supportsFocusDrive()) {
+                        throw new PTPException("The camera does not support focus drive");
+                    }
+                    break;
+                case ACTION_SET_PROPERTY:
+                    int[] allowed = bi.getAllowedPropValues(step.param1);
+                    if (allowed != null && !contains(allowed, step.param2)) {
+                        throw new PTPException("Value 0x" + Integer.toHexString(step.param2)
+                                + " not allowed for property 0x" + Integer.toHexString(step.param1));
+                    }
+                    break;
+                case ACTION_RELEASE:
+                    count++;
+                    break;
+            }
+        }
+        sequence = plan.toArray(new Step[plan.size()]);
+        frames = count;
+    }
+
+    /**
+     * Runs the sequence on the calling thread.
+     *
+     * @return number of frames fired
+     */
+    public int run() throws PTPException {
+        if (sequence == null) {
+            prepare();
+        }
+        cancelled = false;
+        frameNanos = new long[frames];
+
+        int savedPriority = Process.THREAD_PRIORITY_DEFAULT;
+        if (queue != null) {
+            if (bi.getDownloadQueue() != queue) {
+                bi.setDownloadQueue(queue);
+            }
+            queue.start();
+            savedPriority = queue.getConsumerPriority();
+            queue.setConsumerPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        int fired = 0;
+        long startAt = SystemClock.elapsedRealtimeNanos();
+        long frameStart = startAt;
+        try {
+            for (Step step : sequence) {
+                if (cancelled) {
+                    break;
+                }
+                if (queue != null) {
+                    // 等待镜头停稳时允许能在结束前完成的下载，其余步骤之间不允许
+                    long now = SystemClock.elapsedRealtimeNanos();
+                    long busyFrom = step.action == ACTION_SETTLE
+                            ? now + step.param1 * NANOS_PER_MS - BUS_GUARD : now;
+                    queue.reserveBus(busyFrom, Long.MAX_VALUE);
+                }
+                switch (step.action) {
+                    case ACTION_SET_PROPERTY:
+                        checkResponse(bi.setDevicePropValueEx(step.param1, step.param2), "set property");
+                        break;
+                    case ACTION_MOVE_FOCUS:
+                        checkResponse(bi.MoveFocus(step.param1), "focus drive");
+                        break;
+                    case ACTION_SETTLE:
+                        Thread.sleep(step.param1);
+                        break;
+                    case ACTION_RELEASE:
+                        release();
+                        long now = SystemClock.elapsedRealtimeNanos();
+                        frameNanos[fired++] = now - frameStart;
+                        frameStart = now;
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PTPException("Bracketing interrupted", e);
+        } finally {
+            if (queue != null) {
+                queue.clearReservation();
+                queue.setConsumerPriority(savedPriority);
+            }
+        }
+
+        Log.d(TAG, fired + " frames in " + (SystemClock.elapsedRealtimeNanos() - startAt) / 1000000 + "ms");
+        return fired;
+    }
+
+    /**
+     * Releases the shutter, retrying while the camera is still busy with
+     * the previous frame.
+     */
+    private void release() throws PTPException, InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        while (true) {
+            try {
+                bi.releaseShutter();
+                return;
+            } catch (PTPException e) {
+                if (e.getErrorCode() != Response.DeviceBusy
+                        || SystemClock.elapsedRealtime() - start > BUSY_TIMEOUT) {
+                    throw e;
+                }
+            }
+            Thread.sleep(BUSY_RETRY_INTERVAL);
+        }
+    }
+
+    private static void checkResponse(Response resp, String what) throws PTPException {
+        if (resp == null) {
+            throw new PTPException("The camera does not support " + what);
+        }
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException(what + " failed", resp.getCode());
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return number of frames of the prepared plan
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return time spent on each fired frame, in nanoseconds
+     */
+    public long[] getFrameNanos() {
+        return frameNanos;
+    }
+}
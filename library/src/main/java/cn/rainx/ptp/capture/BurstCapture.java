@@ -0,0 +1,165 @@
+package cn.rainx.ptp.capture;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.rainx.ptp.interfaces.FileAddedListener;
+import cn.rainx.ptp.transfer.DownloadQueue;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.PTPException;
+
+/**
+ * Fires a burst of frames and leaves the downloads to the download queue.
+ *
+ * 相机支持按住快门时（EOS），按住快门让相机按驱动模式的速度连拍，直到相机通知了
+ * 足够的新对象；否则逐张快速释放快门。新对象按 FileAdded 回调计数（事件或者轮询
+ * 列表），不依赖是否自动下载。队列满或者手机空间不足时松开快门等待，
+ * 这就是对相机缓存和手机存储的反压。
+ *
+ * 按住快门时，新对象是通过事件得知的，松开快门前相机可能已经多拍了几张。
+ */
+public class BurstCapture {
+
+    public static final String TAG = "BurstCapture";
+
+    // 检查事件和队列状态的间隔
+    private static final int POLL_INTERVAL = 20; // ms
+
+    private final BaselineInitiator bi;
+    private final DownloadQueue queue;
+
+    // RAW+JPEG 时每拍一张会产生两个对象
+    private int objectsPerFrame = 1;
+    // 用于判断手机空间是否足够的单张大小
+    private long expectedObjectSize = 0;
+    // 按住快门后多长时间没有新对象视为失败
+    private int frameTimeout = 5000; // ms
+
+    private volatile boolean cancelled = false;
+
+    // 相机通知的新对象数
+    private final AtomicInteger added = new AtomicInteger();
+    private final FileAddedListener addedListener = new FileAddedListener() {
+        @Override
+        public void onFileAdded(BaselineInitiator bi, int fileHandle, Object data) {
+            added.incrementAndGet();
+        }
+    };
+
+    /**
+     * @param bi initiator, its download queue is set to queue
+     * @param queue download queue, started here if needed
+     */
+    public BurstCapture(BaselineInitiator bi, DownloadQueue queue) {
+        this.bi = bi;
+        this.queue = queue;
+    }
+
+    /**
+     * Captures the given number of frames.
+     *
+     * @return the number of objects the camera announced during the burst
+     */
+    public int capture(int frames) throws PTPException {
+        if (bi.getDownloadQueue() != queue) {
+            bi.setDownloadQueue(queue);
+        }
+        bi.setFileAddedListener(addedListener);
+        queue.start();
+        cancelled = false;
+
+        int before = added.get();
+        long startAt = System.currentTimeMillis();
+        try {
+            if (bi.supportsContinuousRelease()) {
+                captureContinuous(before, frames * objectsPerFrame);
+            } else {
+                captureSingles(frames);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PTPException("Burst capture interrupted", e);
+        }
+
+        int announced = added.get() - before;
+        Log.d(TAG, "burst of " + frames + " frames done in " + (System.currentTimeMillis() - startAt)
+                + "ms, " + announced + " objects announced, " + queue.size() + " waiting for download");
+        return announced;
+    }
+
+    private void captureContinuous(int before, int target) throws PTPException, InterruptedException {
+        boolean pressed = false;
+        int lastCount = before;
+        long lastProgressAt = System.currentTimeMillis();
+        try {
+            while (!cancelled && added.get() - before < target) {
+                boolean room = queue.hasRoom(expectedObjectSize);
+                if (!pressed && room) {
+                    bi.startContinuousRelease();
+                    pressed = true;
+                    lastProgressAt = System.currentTimeMillis();
+                } else if (pressed && !room) {
+                    Log.d(TAG, "download queue or storage full, shutter released");
+                    bi.stopContinuousRelease();
+                    pressed = false;
+                }
+
+                bi.pollCaptureEvents();
+
+                int count = added.get();
+                long now = System.currentTimeMillis();
+                if (count != lastCount || !pressed) {
+                    lastCount = count;
+                    lastProgressAt = now;
+                } else if (now - lastProgressAt > frameTimeout) {
+                    throw new PTPException("Burst capture: no new object from camera");
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } finally {
+            if (pressed) {
+                bi.stopContinuousRelease();
+            }
+        }
+    }
+
+    private void captureSingles(int frames) throws PTPException, InterruptedException {
+        for (int i = 0; i < frames && !cancelled; i++) {
+            queue.awaitRoom(expectedObjectSize);
+            bi.releaseShutter();
+            bi.pollCaptureEvents();
+        }
+    }
+
+    /**
+     * Stops the burst after the current frame.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public int getObjectsPerFrame() {
+        return objectsPerFrame;
+    }
+
+    public void setObjectsPerFrame(int objectsPerFrame) {
+        this.objectsPerFrame = objectsPerFrame;
+    }
+
+    public long getExpectedObjectSize() {
+        return expectedObjectSize;
+    }
+
+    public void setExpectedObjectSize(long expectedObjectSize) {
+        this.expectedObjectSize = expectedObjectSize;
+    }
+
+    public int getFrameTimeout() {
+        return frameTimeout;
+    }
+
+    public void setFrameTimeout(int frameTimeout) {
+        this.frameTimeout = frameTimeout;
+    }
+}
@@ -0,0 +1,330 @@
+package cn.rainx.ptp.capture;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.rainx.ptp.interfaces.IntervalometerListener;
+import cn.rainx.ptp.transfer.DownloadQueue;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.PTPException;
+import cn.rainx.ptp.usbcamera.Response;
+
+/**
+ * Time-lapse scheduler.
+ *
+ * 第 i 帧的触发时间总是 start + i * interval，使用单调时钟
+ * SystemClock.elapsedRealtimeNanos 计算，所以拍摄和下载花费的时间不会累积成漂移。
+ * 如果一帧耗时超过一个完整的间隔，错过的帧会被跳过而不是顺延。
+ *
+ * 设置了下载队列时，下载在间隔内由队列线程完成；每次触发前会为拍摄预留 USB，
+ * 预计无法在触发前完成的下载会等到拍摄之后再开始。
+ *
+ * 长时间拍摄时需要调用者持有 WakeLock，否则 CPU 休眠期间无法按时触发。
+ */
+public class Intervalometer implements Runnable {
+
+    public static final String TAG = "Intervalometer";
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    // 触发前为拍摄预留 USB 的时间
+    private static final long BUS_GUARD = 50 * NANOS_PER_MS;
+
+    // 距离触发时间小于这个值时不再 sleep，改为 yield 等待
+    private static final long SPIN_THRESHOLD = 2 * NANOS_PER_MS;
+
+    // 保留最近多少帧的记录，统计值覆盖所有帧
+    public static final int MAX_KEPT_TIMINGS = 256;
+
+    /**
+     * Timing of one frame; times are SystemClock.elapsedRealtimeNanos.
+     */
+    public static class FrameTiming {
+        public final int index;
+        public final long scheduledAt;
+        public final long firedAt;
+        public final long releaseNanos;
+        public final boolean skipped;
+
+        FrameTiming(int index, long scheduledAt, long firedAt, long releaseNanos, boolean skipped) {
+            this.index = index;
+            this.scheduledAt = scheduledAt;
+            this.firedAt = firedAt;
+            this.releaseNanos = releaseNanos;
+            this.skipped = skipped;
+        }
+
+        /**
+         * @return how late the frame was fired, in nanoseconds
+         */
+        public long getJitter() {
+            return firedAt - scheduledAt;
+        }
+    }
+
+    private final BaselineInitiator bi;
+    private final DownloadQueue queue;
+
+    private long intervalMs = 10000;
+    private int frames = 0; // 0: until stopped
+    private long bulbExposureMs = 0; // 0: use the exposure set on the camera
+    private long startDelayMs = 0;
+
+    private IntervalometerListener listener;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    // 以下由 timings 保护
+    private final ArrayDeque<FrameTiming> timings = new ArrayDeque<FrameTiming>();
+    private int firedCount;
+    private int skippedCount;
+    private long jitterSum;
+    private long maxJitter;
+
+    /**
+     * @param bi initiator
+     * @param queue download queue, or null to keep downloads on the event thread
+     */
+    public Intervalometer(BaselineInitiator bi, DownloadQueue queue) {
+        this.bi = bi;
+        this.queue = queue;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        Exception error = null;
+        try {
+            runSequence();
+        } catch (PTPException e) {
+            e.printStackTrace();
+            error = e;
+        } finally {
+            running = false;
+            if (queue != null) {
+                queue.clearReservation();
+            }
+        }
+        if (listener != null) {
+            listener.onFinished(this, error);
+        }
+    }
+
+    /**
+     * Runs the whole sequence on the calling thread.
+     */
+    public void runSequence() throws PTPException {
+        running = true;
+        synchronized (timings) {
+            timings.clear();
+            firedCount = 0;
+            skippedCount = 0;
+            jitterSum = 0;
+            maxJitter = 0;
+        }
+        if (queue != null) {
+            if (bi.getDownloadQueue() != queue) {
+                bi.setDownloadQueue(queue);
+            }
+            queue.start();
+        }
+
+        long interval = intervalMs * NANOS_PER_MS;
+        long bulb = bulbExposureMs * NANOS_PER_MS;
+        long start = SystemClock.elapsedRealtimeNanos() + startDelayMs * NANOS_PER_MS;
+        Log.d(TAG, "start " + (frames == 0 ? "endless" : frames + " frames") + ", interval " + intervalMs + "ms");
+
+        try {
+            int index = 0;
+            while (running && (frames == 0 || index < frames)) {
+                long deadline = start + index * interval;
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (now - deadline > interval) {
+                    // 已经错过了整整一个间隔，跳过这一帧
+                    addTiming(new FrameTiming(index, deadline, now, 0, true));
+                    index++;
+                    continue;
+                }
+
+                if (queue != null) {
+                    queue.reserveBus(deadline - BUS_GUARD, deadline + bulb + BUS_GUARD);
+                }
+                sleepUntil(deadline);
+                long firedAt = SystemClock.elapsedRealtimeNanos();
+                if (bulb > 0) {
+                    checkResponse(bi.startBulb(), "bulb");
+                    try {
+                        sleepUntil(deadline + bulb);
+                    } finally {
+                        // 被停止时也要关闭快门
+                        bi.stopBulb();
+                    }
+                } else {
+                    bi.releaseShutter();
+                }
+                long releaseNanos = SystemClock.elapsedRealtimeNanos() - firedAt;
+                if (queue != null) {
+                    queue.clearReservation();
+                }
+                addTiming(new FrameTiming(index, deadline, firedAt, releaseNanos, false));
+                index++;
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "interrupted");
+        }
+        Log.d(TAG, "finished, " + getFiredCount() + " frames fired, " + getSkippedCount()
+                + " skipped, mean jitter " + getMeanJitter() / 1000 + "us, max " + getMaxJitter() / 1000 + "us");
+    }
+
+    private void checkResponse(Response resp, String what) throws PTPException {
+        if (resp == null) {
+            throw new PTPException("The camera does not support " + what);
+        }
+    }
+
+    private void addTiming(FrameTiming timing) {
+        synchronized (timings) {
+            if (timings.size() >= MAX_KEPT_TIMINGS) {
+                timings.removeFirst();
+            }
+            timings.addLast(timing);
+            if (timing.skipped) {
+                skippedCount++;
+            } else {
+                firedCount++;
+                jitterSum += timing.getJitter();
+                maxJitter = Math.max(maxJitter, timing.getJitter());
+            }
+        }
+        if (listener != null) {
+            listener.onFrame(this, timing);
+        }
+    }
+
+    /**
+     * Sleeps until the monotonic clock reaches deadline.
+     */
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        while (true) {
+            long remaining = deadline - SystemClock.elapsedRealtimeNanos();
+            if (remaining <= 0) {
+                return;
+            }
+            if (remaining > SPIN_THRESHOLD) {
+                Thread.sleep((remaining - SPIN_THRESHOLD) / NANOS_PER_MS + 1);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return timings of the last MAX_KEPT_TIMINGS frames, skipped ones
+     *     included; {@link IntervalometerListener#onFrame} sees every frame
+     */
+    public List<FrameTiming> getFrameTimings() {
+        synchronized (timings) {
+            return new ArrayList<FrameTiming>(timings);
+        }
+    }
+
+    public int getFiredCount() {
+        synchronized (timings) {
+            return firedCount;
+        }
+    }
+
+    public int getSkippedCount() {
+        synchronized (timings) {
+            return skippedCount;
+        }
+    }
+
+    /**
+     * @return mean jitter of the fired frames, in nanoseconds
+     */
+    public long getMeanJitter() {
+        synchronized (timings) {
+            return firedCount == 0 ? 0 : jitterSum / firedCount;
+        }
+    }
+
+    /**
+     * @return max jitter of the fired frames, in nanoseconds
+     */
+    public long getMaxJitter() {
+        synchronized (timings) {
+            return maxJitter;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @param frames 拍摄张数，0 表示一直拍摄直到 stop
+     */
+    public void setFrames(int frames) {
+        this.frames = frames;
+    }
+
+    public long getBulbExposureMs() {
+        return bulbExposureMs;
+    }
+
+    /**
+     * @param bulbExposureMs B 门曝光时间，0 表示使用相机上设置的快门速度
+     */
+    public void setBulbExposureMs(long bulbExposureMs) {
+        this.bulbExposureMs = bulbExposureMs;
+    }
+
+    public long getStartDelayMs() {
+        return startDelayMs;
+    }
+
+    public void setStartDelayMs(long startDelayMs) {
+        this.startDelayMs = startDelayMs;
+    }
+
+    public IntervalometerListener getListener() {
+        return listener;
+    }
+
+    public void setListener(IntervalometerListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,72 @@
+package cn.rainx.ptp.db;
+
+import com.orm.SugarRecord;
+import com.orm.dsl.Unique;
+
+/**
+ * 对象缓存的索引，一条记录对应缓存目录中的一个文件
+ *
+ * cache_key string unique  (device_uuid + "/" + fingerprint)
+ * device_uuid string
+ * fingerprint string  (handle, size, capture date, filename)
+ * local_path string
+ * size integer
+ * last_access_at unix_timestamp
+ * created_at unix_timestamp
+ */
+public class CachedObject extends SugarRecord {
+    @Unique
+    String cacheKey;
+    String deviceUUID;
+    String fingerprint;
+    String localPath;
+    Long size;
+    Long lastAccessAt;
+    Long createdAt;
+
+    public CachedObject() {
+        // empty constructor
+    }
+
+    public CachedObject(String deviceUUID, String fingerprint, String localPath, Long size, Long createdAt) {
+        this.cacheKey = deviceUUID + "/" + fingerprint;
+        this.deviceUUID = deviceUUID;
+        this.fingerprint = fingerprint;
+        this.localPath = localPath;
+        this.size = size;
+        this.lastAccessAt = createdAt;
+        this.createdAt = createdAt;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public String getDeviceUUID() {
+        return deviceUUID;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public Long getLastAccessAt() {
+        return lastAccessAt;
+    }
+
+    public void setLastAccessAt(Long lastAccessAt) {
+        this.lastAccessAt = lastAccessAt;
+    }
+
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,240 @@
+package cn.rainx.ptp.db;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import cn.rainx.ptp.usbcamera.ObjectInfo;
+
+/**
+ * Read-through cache of downloaded objects, indexed by device UUID and
+ * object fingerprint, evicted least recently used first once the files
+ * exceed a byte quota.
+ *
+ * 指纹由 handle、大小、拍摄时间和文件名组成，相机重新编号或同一 handle 换成了
+ * 别的照片时不会命中旧文件。命中时文件直接从本地读取，浏览已经看过的照片不再
+ * 走 USB。索引保存在 sugar 数据库中，应用重启后仍然有效。
+ *
+ * 只删除缓存目录中的文件，所有方法都加锁，可以从下载线程和界面线程同时调用。
+ * lookup 和 put 交给调用者的文件在 TOUCH_INTERVAL 内不会被淘汰，调用者可能还在
+ * 读取。
+ */
+public class ObjectCache {
+    public static final String TAG = "ObjectCache";
+
+    // 命中时最多每分钟更新一次访问时间，避免浏览时频繁写数据库
+    private static final long TOUCH_INTERVAL = 60 * 1000; // ms
+    private static final int EVICT_BATCH = 16;
+
+    private final File dir;
+    private long quotaBytes;
+    // 索引中所有文件的大小之和，第一次使用时从数据库统计
+    private long totalBytes = -1;
+    // 最近交给调用者的文件：缓存键到时间
+    private final Map<String, Long> handedOut = new HashMap<String, Long>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param dir directory the cached files are written to
+     * @param quotaBytes upper bound for the total size of the cached files
+     */
+    public ObjectCache(File dir, long quotaBytes) {
+        this.dir = dir;
+        this.quotaBytes = quotaBytes;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * @return fingerprint of the object, see the class comment
+     */
+    public static String fingerprint(ObjectInfo info) {
+        return info.getHandle() + "|" + (info.getObjectCompressedSize() & 0xffffffffL)
+                + "|" + info.getCaptureDate() + "|" + info.getFilename();
+    }
+
+    /**
+     * @return key of the object in the cache index and the metadata catalog
+     */
+    public static String cacheKey(String deviceUUID, ObjectInfo info) {
+        return deviceUUID + "/" + fingerprint(info);
+    }
+
+    /**
+     * Returns the cached file of the object, or null on a miss. An index
+     * entry whose file is gone or has a different size is dropped.
+     */
+    public synchronized File lookup(String deviceUUID, ObjectInfo info) {
+        CachedObject cached = find(deviceUUID, fingerprint(info));
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        File file = new File(cached.getLocalPath());
+        if (!file.isFile() || file.length() != cached.getSize()) {
+            Log.d(TAG, "stale entry " + cached.getLocalPath());
+            remove(cached);
+            misses++;
+            return null;
+        }
+        long now = new Date().getTime();
+        if (cached.getLastAccessAt() == null || now - cached.getLastAccessAt() > TOUCH_INTERVAL) {
+            cached.setLastAccessAt(now);
+            cached.save();
+        }
+        handedOut.put(cached.getCacheKey(), now);
+        hits++;
+        return file;
+    }
+
+    /**
+     * @return the file to download the object to before {@link #put}
+     */
+    public File newFile(String deviceUUID, ObjectInfo info) {
+        String name = info.getFilename();
+        if (name == null || name.length() == 0) {
+            name = Integer.toHexString(info.getHandle());
+        }
+        String prefix = Integer.toHexString(fingerprint(info).hashCode() ^ deviceUUID.hashCode());
+        return new File(dir, prefix + "_" + name.replace('/', '_'));
+    }
+
+    /**
+     * Indexes a downloaded file and evicts old entries until the cache is
+     * within its quota again. The file just added is not evicted.
+     */
+    public synchronized void put(String deviceUUID, ObjectInfo info, File file) {
+        String fingerprint = fingerprint(info);
+        CachedObject old = find(deviceUUID, fingerprint);
+        if (old != null) {
+            if (old.getLocalPath().equals(file.getPath())) {
+                totalBytes();
+                totalBytes -= old.getSize();
+                old.delete();
+            } else {
+                remove(old);
+            }
+        }
+        long now = new Date().getTime();
+        CachedObject cached = new CachedObject(deviceUUID, fingerprint, file.getPath(),
+                file.length(), now);
+        cached.save();
+        handedOut.put(cached.getCacheKey(), now);
+        totalBytes = totalBytes() + file.length();
+        evict();
+    }
+
+    /**
+     * Drops every entry and cached file.
+     */
+    public synchronized void clear() {
+        for (CachedObject cached : CachedObject.listAll(CachedObject.class)) {
+            deleteFile(cached);
+        }
+        CachedObject.deleteAll(CachedObject.class);
+        handedOut.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+        evict();
+    }
+
+    public synchronized long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private CachedObject find(String deviceUUID, String fingerprint) {
+        List<CachedObject> found = CachedObject.find(CachedObject.class, "CACHE_KEY = ?",
+                deviceUUID + "/" + fingerprint);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private long totalBytes() {
+        if (totalBytes < 0) {
+            long total = 0;
+            for (CachedObject cached : CachedObject.listAll(CachedObject.class)) {
+                total += cached.getSize();
+            }
+            totalBytes = total;
+        }
+        return totalBytes;
+    }
+
+    private void evict() {
+        long now = new Date().getTime();
+        for (Iterator<Long> it = handedOut.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > TOUCH_INTERVAL) {
+                it.remove();
+            }
+        }
+        // 跳过的条目仍在表中，下一批从它们之后开始
+        int skipped = 0;
+        while (totalBytes() > quotaBytes) {
+            List<CachedObject> oldest = CachedObject.findWithQuery(CachedObject.class,
+                    "SELECT * FROM CACHED_OBJECT ORDER BY LAST_ACCESS_AT ASC LIMIT " + EVICT_BATCH
+                            + " OFFSET " + skipped);
+            if (oldest.isEmpty()) {
+                // 剩下的文件都在使用中，暂时超过配额
+                break;
+            }
+            for (CachedObject cached : oldest) {
+                if (totalBytes <= quotaBytes) {
+                    break;
+                }
+                if (handedOut.containsKey(cached.getCacheKey())) {
+                    skipped++;
+                    continue;
+                }
+                Log.d(TAG, "evict " + cached.getLocalPath());
+                remove(cached);
+                evictions++;
+            }
+        }
+    }
+
+    private void remove(CachedObject cached) {
+        handedOut.remove(cached.getCacheKey());
+        deleteFile(cached);
+        totalBytes();
+        totalBytes -= cached.getSize();
+        cached.delete();
+    }
+
+    private void deleteFile(CachedObject cached) {
+        File file = new File(cached.getLocalPath());
+        if (dir.equals(file.getParentFile()) && file.exists()) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package cn.rainx.ptp.db;
+
+import com.orm.SugarRecord;
+import com.orm.dsl.Unique;
+
+/**
+ * 从相机上的文件头读取的元数据，按对象指纹缓存，见 ObjectCache.fingerprint
+ *
+ * cache_key string unique  (device_uuid + "/" + fingerprint)
+ * capture_time unix_timestamp  (DateTimeOriginal，按本地时区解析)
+ * orientation integer  (EXIF 1-8)
+ * rating integer  (0-5)
+ * serial_number string
+ * make string
+ * model string
+ * created_at unix_timestamp
+ *
+ * 字段为 null 表示文件中没有该项，或读取时没有请求该项。
+ */
+public class ObjectMetadata extends SugarRecord {
+    @Unique
+    String cacheKey;
+    Long captureTime;
+    Integer orientation;
+    Integer rating;
+    String serialNumber;
+    String make;
+    String model;
+    Long createdAt;
+
+    public ObjectMetadata() {
+        // empty constructor
+    }
+
+    public ObjectMetadata(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public Long getCaptureTime() {
+        return captureTime;
+    }
+
+    public void setCaptureTime(Long captureTime) {
+        this.captureTime = captureTime;
+    }
+
+    public Integer getOrientation() {
+        return orientation;
+    }
+
+    public void setOrientation(Integer orientation) {
+        this.orientation = orientation;
+    }
+
+    public Integer getRating() {
+        return rating;
+    }
+
+    public void setRating(Integer rating) {
+        this.rating = rating;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public void setSerialNumber(String serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    public String getMake() {
+        return make;
+    }
+
+    public void setMake(String make) {
+        this.make = make;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,23 @@
+package cn.rainx.ptp.interfaces;
+
+import java.io.File;
+import java.util.Map;
+
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * 下载完成的回调，附带下载过程中计算的摘要，
+ * 见 BaselineInitiator#addDownloadTransform
+ */
+public interface FileDigestListener {
+    /**
+     *
+     * @param bi
+     * @param fileHandle 相机的file handle
+     * @param localFile 下载到本地的文件
+     * @param timeduring 所花的时间
+     * @param digests transform 名称（如 "SHA-256"、"CRC32"）到结果的映射
+     */
+    void onFileDownloaded(BaselineInitiator bi, int fileHandle, File localFile, long timeduring,
+                          Map<String, byte[]> digests);
+}
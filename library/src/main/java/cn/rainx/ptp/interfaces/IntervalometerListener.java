@@ -0,0 +1,20 @@
+package cn.rainx.ptp.interfaces;
+
+import cn.rainx.ptp.capture.Intervalometer;
+
+/**
+ * 定时拍摄的回调，在定时拍摄线程中调用，不要在这里做耗时操作
+ */
+public interface IntervalometerListener {
+    /**
+     * @param intervalometer
+     * @param timing 本帧计划时间和实际触发时间
+     */
+    void onFrame(Intervalometer intervalometer, Intervalometer.FrameTiming timing);
+
+    /**
+     * @param intervalometer
+     * @param error 正常结束或被停止时为 null
+     */
+    void onFinished(Intervalometer intervalometer, Exception error);
+}
@@ -0,0 +1,15 @@
+package cn.rainx.ptp.interfaces;
+
+import cn.rainx.ptp.liveview.LiveViewAnalysis;
+
+/**
+ * 实时取景分析结果的回调，在分析线程中调用
+ */
+public interface LiveViewAnalysisListener {
+    /**
+     * analysis 中的数组会被下一帧复用，只在回调期间有效
+     *
+     * @param analysis 分析结果
+     */
+    void onLiveViewAnalysis(LiveViewAnalysis analysis);
+}
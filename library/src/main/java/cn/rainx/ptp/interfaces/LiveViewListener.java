@@ -0,0 +1,16 @@
+package cn.rainx.ptp.interfaces;
+
+import android.graphics.Bitmap;
+
+/**
+ * 实时取景画面的回调，在主线程中调用
+ */
+public interface LiveViewListener {
+    /**
+     * bitmap 由解码器复用，只在下一次回调之前有效，不要保存或者 recycle
+     *
+     * @param bitmap 解码后的画面
+     * @param sequence 帧序号
+     */
+    void onLiveViewFrame(Bitmap bitmap, long sequence);
+}
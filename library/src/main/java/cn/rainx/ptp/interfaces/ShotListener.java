@@ -0,0 +1,16 @@
+package cn.rainx.ptp.interfaces;
+
+import cn.rainx.ptp.transfer.Shot;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * 新拍摄的照片，RAW+JPEG 模式下的两个文件合并为一次回调，在轮询线程中调用
+ */
+public interface ShotListener {
+    /**
+     *
+     * @param bi
+     * @param shot 同一次拍摄的所有对象
+     */
+    void onShotAdded(BaselineInitiator bi, Shot shot);
+}
@@ -0,0 +1,20 @@
+package cn.rainx.ptp.interfaces;
+
+import cn.rainx.ptp.transfer.SyncPlanner;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * 同步计划变化（加入新对象或者完成一个对象）时的回调，在轮询线程中调用
+ */
+public interface SyncPlanListener {
+    /**
+     *
+     * @param bi
+     * @param planner 当前的计划，getPlan 可以取得每个对象的预计完成时间
+     * @param remainingObjects 等待下载的对象数
+     * @param remainingBytes 等待下载的字节数
+     * @param etaMillis 整个计划的预计剩余时间
+     */
+    void onSyncPlanChanged(BaselineInitiator bi, SyncPlanner planner, int remainingObjects,
+                           long remainingBytes, long etaMillis);
+}
@@ -0,0 +1,21 @@
+package cn.rainx.ptp.interfaces;
+
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * 合并后的传输进度回调，在进度分发线程中调用，频率由
+ * BaselineInitiator#setProgressInterval 和 setProgressStep 控制
+ */
+public interface TransferProgressListener {
+    /**
+     *
+     * @param bi
+     * @param fileHandle 相机的file handle
+     * @param totalByteLength 文件总长度
+     * @param transferredByteLength 文件已传输长度
+     * @param bytesPerSecond 滑动平均的传输速度，还没有测量数据时为 0
+     * @param etaMillis 预计剩余时间，未知时为 -1
+     */
+    void onTransferProgress(BaselineInitiator bi, int fileHandle, long totalByteLength,
+                            long transferredByteLength, long bytesPerSecond, long etaMillis);
+}
@@ -0,0 +1,54 @@
+package cn.rainx.ptp.liveview;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small pool of mutable bitmaps to decode into with inBitmap.
+ */
+public class BitmapPool {
+
+    private final int maxSize;
+    private final List<Bitmap> free = new ArrayList<Bitmap>();
+
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a free bitmap with room for byteCount bytes, or null
+     */
+    public synchronized Bitmap obtain(int byteCount) {
+        for (int i = 0; i < free.size(); i++) {
+            Bitmap bitmap = free.get(i);
+            if (bitmap.getAllocationByteCount() >= byteCount) {
+                free.remove(i);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives a bitmap back to the pool; it is recycled if the pool is full.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || free.contains(bitmap)) {
+            return;
+        }
+        if (!bitmap.isMutable() || free.size() >= maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        free.add(bitmap);
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : free) {
+            bitmap.recycle();
+        }
+        free.clear();
+    }
+}
@@ -0,0 +1,115 @@
+package cn.rainx.ptp.liveview;
+
+/**
+ * Finds the JPEG inside a live view frame buffer by its SOI/EOI markers.
+ *
+ * 各厂商在 JPEG 前后附加的头和对焦信息长度不固定，这里直接在接收缓冲中查找，
+ * 只记录位置，不复制数据。
+ */
+public final class JpegLocator {
+
+    private JpegLocator() {
+    }
+
+    /**
+     * Locates the JPEG in frame.buffer.data[from, frame.buffer.length).
+     *
+     * @return true if a complete JPEG was found; jpegOffset and jpegLength
+     *     of the frame are set
+     */
+    public static boolean locate(LiveViewFrame frame, int from) {
+        return locate(frame, from, frame.buffer.length);
+    }
+
+    public static boolean locate(LiveViewFrame frame, int from, int to) {
+        byte[] data = frame.buffer.data;
+        to = Math.min(to, frame.buffer.length);
+        int soi = indexOfSoi(data, from, to);
+        if (soi < 0) {
+            return false;
+        }
+        int eoi = lastIndexOfEoi(data, soi + 2, to);
+        if (eoi < 0) {
+            return false;
+        }
+        frame.jpegOffset = soi;
+        frame.jpegLength = eoi + 2 - soi;
+        return true;
+    }
+
+    /**
+     * Uses an offset and length announced by the camera when they point at
+     * a JPEG, and scans for the markers otherwise.
+     */
+    public static boolean locateAt(LiveViewFrame frame, int offset, int length, int from) {
+        byte[] data = frame.buffer.data;
+        // 相机给出的值不可信，先比较再相加，避免溢出
+        if (from >= 0 && offset >= from && length > 4 && length <= frame.buffer.length - offset
+                && isSoi(data, offset)
+                && (data[offset + length - 2] & 0xff) == 0xff && (data[offset + length - 1] & 0xff) == 0xd9) {
+            frame.jpegOffset = offset;
+            frame.jpegLength = length;
+            return true;
+        }
+        return locate(frame, from);
+    }
+
+    /**
+     * Reads width and height from the SOF marker of a JPEG.
+     *
+     * @param size receives width and height
+     * @return false if no SOF marker was found
+     */
+    public static boolean readSize(byte[] data, int offset, int length, int[] size) {
+        int end = offset + length;
+        int i = offset + 2;
+        while (i + 9 < end) {
+            if ((data[i] & 0xff) != 0xff) {
+                return false;
+            }
+            int marker = data[i + 1] & 0xff;
+            if (marker == 0xff) {
+                // fill byte
+                i++;
+                continue;
+            }
+            int segmentLength = (data[i + 2] & 0xff) << 8 | (data[i + 3] & 0xff);
+            // SOF0..SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                size[1] = (data[i + 5] & 0xff) << 8 | (data[i + 6] & 0xff);
+                size[0] = (data[i + 7] & 0xff) << 8 | (data[i + 8] & 0xff);
+                return true;
+            }
+            if (marker == 0xda) {
+                // start of scan, no SOF before it
+                return false;
+            }
+            i += 2 + segmentLength;
+        }
+        return false;
+    }
+
+    // SOI 后面总是跟着另一个标记，用 FF D8 FF 减少误判
+    private static boolean isSoi(byte[] data, int i) {
+        return (data[i] & 0xff) == 0xff && (data[i + 1] & 0xff) == 0xd8 && (data[i + 2] & 0xff) == 0xff;
+    }
+
+    private static int indexOfSoi(byte[] data, int from, int to) {
+        for (int i = Math.max(0, from); i + 2 < to; i++) {
+            if (isSoi(data, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 从后向前找，跳过 EXIF 缩略图的 EOI
+    private static int lastIndexOfEoi(byte[] data, int from, int to) {
+        for (int i = to - 2; i >= from; i--) {
+            if ((data[i] & 0xff) == 0xff && (data[i + 1] & 0xff) == 0xd9) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,58 @@
+package cn.rainx.ptp.liveview;
+
+/**
+ * Analysis of one subsampled live view frame.
+ *
+ * 所有数组在帧之间复用，只在 LiveViewAnalysisListener 回调期间有效，需要保留的
+ * 数据请自行复制。
+ */
+public class LiveViewAnalysis {
+
+    public static final byte MASK_NONE = 0;
+    public static final byte MASK_HIGHLIGHT = 1;
+    public static final byte MASK_SHADOW = 2;
+
+    public final int[] lumaHistogram = new int[256];
+    public final int[] redHistogram = new int[256];
+    public final int[] greenHistogram = new int[256];
+    public final int[] blueHistogram = new int[256];
+
+    // 每个像素一个字节：MASK_HIGHLIGHT、MASK_SHADOW 或 MASK_NONE
+    public byte[] clipMask = new byte[0];
+    // 每个像素一个字节：1 表示边缘能量超过峰值对焦阈值
+    public byte[] peakingMask = new byte[0];
+    // 亮度平面，行优先
+    public byte[] luma = new byte[0];
+
+    public int width;
+    public int height;
+    public int highlightPixels;
+    public int shadowPixels;
+
+    // 平均梯度能量，越大越清晰，只在同一场景的帧之间比较有意义
+    public float focusScore;
+
+    public long sequence;
+    // 从收到帧到分析完成的时间
+    public long latencyNanos;
+
+    void ensureCapacity(int pixels) {
+        if (clipMask.length < pixels) {
+            clipMask = new byte[pixels];
+            peakingMask = new byte[pixels];
+            luma = new byte[pixels];
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < 256; i++) {
+            lumaHistogram[i] = 0;
+            redHistogram[i] = 0;
+            greenHistogram[i] = 0;
+            blueHistogram[i] = 0;
+        }
+        highlightPixels = 0;
+        shadowPixels = 0;
+        focusScore = 0;
+    }
+}
@@ -0,0 +1,301 @@
+package cn.rainx.ptp.liveview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import cn.rainx.ptp.interfaces.LiveViewAnalysisListener;
+
+/**
+ * Computes histograms, clipping masks and a focus score from live view.
+ *
+ * 分析在独立的工作线程中进行，每个线程只取最新的一帧，按 inSampleSize 解码到
+ * 较小的尺寸后计算，结果数组由每个线程复用。某个线程完成得比其它线程更晚、结果
+ * 已经比已发布的结果旧时直接丢弃，所以结果的延迟不会超过一帧的分析时间。
+ */
+public class LiveViewAnalyzer {
+
+    public static final String TAG = "LiveViewAnalyzer";
+
+    private final LiveViewEngine engine;
+    private final int workerCount;
+    private Worker[] workers;
+    private volatile boolean running = false;
+
+    private final Object claimLock = new Object();
+    private long lastClaimed = 0;
+    private final Object deliverLock = new Object();
+    private long lastDelivered = 0;
+
+    private volatile LiveViewAnalysisListener listener;
+
+    private volatile int targetWidth = 320;
+    private volatile int highlightThreshold = 250;
+    private volatile int shadowThreshold = 5;
+    private volatile int peakingThreshold = 40 * 40;
+
+    private long analyzedFrames;
+    private long staleFrames;
+
+    /**
+     * @param engine live view source, started by the caller
+     * @param workerCount number of analysis threads
+     */
+    public LiveViewAnalyzer(LiveViewEngine engine, int workerCount) {
+        this.engine = engine;
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker();
+            new Thread(workers[i], TAG + "-" + i).start();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        workers = null;
+    }
+
+    private class Worker implements Runnable {
+        private final LiveViewAnalysis analysis = new LiveViewAnalysis();
+        private final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+        private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        private Bitmap bitmap;
+        private int[] pixels = new int[0];
+
+        Worker() {
+            boundsOptions.inJustDecodeBounds = true;
+            decodeOptions.inMutable = true;
+            decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (running) {
+                LiveViewFrame frame;
+                try {
+                    synchronized (claimLock) {
+                        frame = engine.acquireLatest(lastClaimed, 500);
+                        if (frame != null) {
+                            lastClaimed = frame.getSequence();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (frame == null) {
+                    continue;
+                }
+
+                long receivedAt = frame.receivedAt;
+                boolean decoded;
+                try {
+                    analysis.sequence = frame.getSequence();
+                    decoded = decode(frame);
+                } finally {
+                    engine.release(frame);
+                }
+                if (!decoded) {
+                    continue;
+                }
+                analyze(analysis, pixels, bitmap.getWidth(), bitmap.getHeight());
+                analysis.latencyNanos = SystemClock.elapsedRealtimeNanos() - receivedAt;
+                deliver(analysis);
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
+
+        private boolean decode(LiveViewFrame frame) {
+            byte[] data = frame.getData();
+            int offset = frame.getJpegOffset();
+            int length = frame.getJpegLength();
+            BitmapFactory.decodeByteArray(data, offset, length, boundsOptions);
+            if (boundsOptions.outWidth <= 0) {
+                return false;
+            }
+            int sampleSize = 1;
+            while (boundsOptions.outWidth / (sampleSize * 2) >= targetWidth) {
+                sampleSize *= 2;
+            }
+            decodeOptions.inSampleSize = sampleSize;
+            decodeOptions.inBitmap = bitmap;
+            Bitmap decodedBitmap;
+            try {
+                decodedBitmap = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+            } catch (IllegalArgumentException e) {
+                // 尺寸变化，重新分配
+                decodeOptions.inBitmap = null;
+                decodedBitmap = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+            }
+            decodeOptions.inBitmap = null;
+            if (decodedBitmap == null) {
+                return false;
+            }
+            if (bitmap != null && decodedBitmap != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = decodedBitmap;
+
+            int count = bitmap.getWidth() * bitmap.getHeight();
+            if (pixels.length < count) {
+                pixels = new int[count];
+            }
+            bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+            return true;
+        }
+    }
+
+    /**
+     * Fills analysis from ARGB pixels.
+     */
+    void analyze(LiveViewAnalysis analysis, int[] pixels, int width, int height) {
+        int count = width * height;
+        analysis.ensureCapacity(count);
+        analysis.reset();
+        analysis.width = width;
+        analysis.height = height;
+
+        int[] lumaHistogram = analysis.lumaHistogram;
+        int[] redHistogram = analysis.redHistogram;
+        int[] greenHistogram = analysis.greenHistogram;
+        int[] blueHistogram = analysis.blueHistogram;
+        byte[] clipMask = analysis.clipMask;
+        byte[] luma = analysis.luma;
+        int high = highlightThreshold;
+        int low = shadowThreshold;
+        int highlights = 0;
+        int shadows = 0;
+
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            int r = (p >> 16) & 0xff;
+            int g = (p >> 8) & 0xff;
+            int b = p & 0xff;
+            // Rec.601 近似
+            int y = (77 * r + 150 * g + 29 * b) >> 8;
+            redHistogram[r]++;
+            greenHistogram[g]++;
+            blueHistogram[b]++;
+            lumaHistogram[y]++;
+            luma[i] = (byte) y;
+            if (r >= high || g >= high || b >= high) {
+                clipMask[i] = LiveViewAnalysis.MASK_HIGHLIGHT;
+                highlights++;
+            } else if (y <= low) {
+                clipMask[i] = LiveViewAnalysis.MASK_SHADOW;
+                shadows++;
+            } else {
+                clipMask[i] = LiveViewAnalysis.MASK_NONE;
+            }
+        }
+        analysis.highlightPixels = highlights;
+        analysis.shadowPixels = shadows;
+
+        // 中心差分梯度能量，同时生成峰值对焦掩码
+        byte[] peaking = analysis.peakingMask;
+        int threshold = peakingThreshold;
+        long energy = 0;
+        for (int x = 0; x < width; x++) {
+            peaking[x] = 0;
+            peaking[(height - 1) * width + x] = 0;
+        }
+        for (int row = 1; row < height - 1; row++) {
+            int base = row * width;
+            peaking[base] = 0;
+            peaking[base + width - 1] = 0;
+            for (int x = 1; x < width - 1; x++) {
+                int i = base + x;
+                int gx = (luma[i + 1] & 0xff) - (luma[i - 1] & 0xff);
+                int gy = (luma[i + width] & 0xff) - (luma[i - width] & 0xff);
+                int e = gx * gx + gy * gy;
+                energy += e;
+                peaking[i] = (byte) (e > threshold ? 1 : 0);
+            }
+        }
+        int interior = Math.max(1, (width - 2) * (height - 2));
+        analysis.focusScore = (float) energy / interior;
+    }
+
+    private void deliver(LiveViewAnalysis analysis) {
+        synchronized (deliverLock) {
+            if (analysis.sequence <= lastDelivered) {
+                // 其它线程已经发布了更新的结果
+                staleFrames++;
+                return;
+            }
+            lastDelivered = analysis.sequence;
+            analyzedFrames++;
+        }
+        LiveViewAnalysisListener l = listener;
+        if (l != null) {
+            try {
+                l.onLiveViewAnalysis(analysis);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public void setListener(LiveViewAnalysisListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param targetWidth smallest width to analyze at; the frame is
+     *     subsampled by powers of two down to it
+     */
+    public void setTargetWidth(int targetWidth) {
+        this.targetWidth = Math.max(1, targetWidth);
+    }
+
+    /**
+     * @param highlightThreshold a channel at or above this value is clipped
+     */
+    public void setHighlightThreshold(int highlightThreshold) {
+        this.highlightThreshold = highlightThreshold;
+    }
+
+    /**
+     * @param shadowThreshold a luminance at or below this value is clipped
+     */
+    public void setShadowThreshold(int shadowThreshold) {
+        this.shadowThreshold = shadowThreshold;
+    }
+
+    /**
+     * @param peakingThreshold squared gradient above which a pixel is
+     *     marked in the peaking mask
+     */
+    public void setPeakingThreshold(int peakingThreshold) {
+        this.peakingThreshold = peakingThreshold;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getAnalyzedFrames() {
+        synchronized (deliverLock) {
+            return analyzedFrames;
+        }
+    }
+
+    public long getStaleFrames() {
+        synchronized (deliverLock) {
+            return staleFrames;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package cn.rainx.ptp.liveview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.ImageView;
+
+import cn.rainx.ptp.interfaces.LiveViewListener;
+
+/**
+ * Decodes live view frames on a worker thread.
+ *
+ * 根据目标 View 的大小选择 inSampleSize，并通过 inBitmap 复用位图，稳定运行时
+ * 不再为每一帧分配新的位图。主线程还没有显示上一帧时，新解码的帧直接替换它，
+ * 过期的帧不会排队。
+ */
+public class LiveViewDecoder implements Runnable {
+
+    public static final String TAG = "LiveViewDecoder";
+
+    // 显示中、等待显示、解码中各一张
+    private static final int POOL_SIZE = 3;
+
+    private final LiveViewEngine engine;
+    private final BitmapPool pool = new BitmapPool(POOL_SIZE);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+
+    private volatile int targetWidth = 0;
+    private volatile int targetHeight = 0;
+    private volatile Bitmap.Config config = Bitmap.Config.RGB_565;
+
+    private LiveViewListener listener;
+    private volatile ImageView boundView;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    // 以下字段由 this 锁保护
+    private Bitmap pending;
+    private long pendingSequence;
+    private boolean posted;
+    private Bitmap shown;
+
+    private long decodedFrames;
+    private long skippedFrames;
+    private volatile long averageDecodeNanos;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap bitmap;
+            long sequence;
+            Bitmap previous;
+            synchronized (LiveViewDecoder.this) {
+                posted = false;
+                bitmap = pending;
+                sequence = pendingSequence;
+                pending = null;
+                if (bitmap == null) {
+                    return;
+                }
+                previous = shown;
+                shown = bitmap;
+            }
+            if (listener != null && running) {
+                listener.onLiveViewFrame(bitmap, sequence);
+            }
+            // 上一帧已经被替换，可以复用
+            pool.release(previous);
+        }
+    };
+
+    public LiveViewDecoder(LiveViewEngine engine) {
+        this.engine = engine;
+        boundsOptions.inJustDecodeBounds = true;
+        decodeOptions.inMutable = true;
+        decodeOptions.inTempStorage = new byte[16 * 1024];
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    /**
+     * Stops decoding and frees the bitmaps.  The last frame delivered is
+     * recycled on the main thread; a view bound with {@link #bindImageView}
+     * is cleared first, other listeners must not draw it after stop.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        mainHandler.removeCallbacks(deliver);
+        posted = false;
+        if (pending != null) {
+            pending.recycle();
+            pending = null;
+        }
+        final Bitmap last = shown;
+        shown = null;
+        pool.clear();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ImageView view = boundView;
+                if (view != null && !running) {
+                    view.setImageBitmap(null);
+                }
+                if (last != null) {
+                    last.recycle();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        long lastSequence = 0;
+        while (running) {
+            LiveViewFrame frame;
+            try {
+                frame = engine.acquireLatest(lastSequence, 500);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (frame == null) {
+                continue;
+            }
+            Bitmap bitmap;
+            long sequence = frame.sequence;
+            try {
+                lastSequence = sequence;
+                bitmap = decode(frame.getData(), frame.getJpegOffset(), frame.getJpegLength());
+            } finally {
+                engine.release(frame);
+            }
+            if (bitmap != null) {
+                post(bitmap, sequence);
+            }
+        }
+        Log.d(TAG, "decoder stopped, " + decodedFrames + " decoded, " + skippedFrames + " skipped");
+    }
+
+    private Bitmap decode(byte[] data, int offset, int length) {
+        long start = System.nanoTime();
+        BitmapFactory.decodeByteArray(data, offset, length, boundsOptions);
+        if (boundsOptions.outWidth <= 0 || boundsOptions.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = computeSampleSize(boundsOptions.outWidth, boundsOptions.outHeight);
+        int width = (boundsOptions.outWidth + sampleSize - 1) / sampleSize;
+        int height = (boundsOptions.outHeight + sampleSize - 1) / sampleSize;
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inPreferredConfig = config;
+        decodeOptions.inBitmap = pool.obtain(width * height * bytesPerPixel);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+        } catch (IllegalArgumentException e) {
+            // inBitmap 不可用时重新分配
+            pool.release(decodeOptions.inBitmap);
+            decodeOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+        }
+        if (bitmap == null) {
+            pool.release(decodeOptions.inBitmap);
+        }
+        decodeOptions.inBitmap = null;
+
+        long elapsed = System.nanoTime() - start;
+        averageDecodeNanos = averageDecodeNanos == 0 ? elapsed : (averageDecodeNanos * 7 + elapsed) / 8;
+        return bitmap;
+    }
+
+    /**
+     * Largest power of two which keeps the image at least as large as the
+     * target; 1 when no target size is set.
+     */
+    private int computeSampleSize(int width, int height) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private synchronized void post(Bitmap bitmap, long sequence) {
+        decodedFrames++;
+        if (!running) {
+            // 解码时已经停止，池已清空
+            bitmap.recycle();
+            return;
+        }
+        if (pending != null) {
+            // 主线程还没有显示上一帧，丢弃它
+            skippedFrames++;
+            pool.release(pending);
+        }
+        pending = bitmap;
+        pendingSequence = sequence;
+        if (!posted) {
+            posted = true;
+            mainHandler.post(deliver);
+        }
+    }
+
+    /**
+     * Shows the frames in an ImageView and uses its size as the target size.
+     */
+    public void bindImageView(final ImageView imageView) {
+        setListener(new LiveViewListener() {
+            @Override
+            public void onLiveViewFrame(Bitmap bitmap, long sequence) {
+                if (imageView.getWidth() > 0 && imageView.getHeight() > 0) {
+                    setTargetSize(imageView.getWidth(), imageView.getHeight());
+                }
+                imageView.setImageBitmap(bitmap);
+            }
+        });
+        boundView = imageView;
+    }
+
+    /**
+     * @param width target width in pixels, 0 to decode at full size
+     * @param height target height in pixels, 0 to decode at full size
+     */
+    public void setTargetSize(int width, int height) {
+        this.targetWidth = width;
+        this.targetHeight = height;
+    }
+
+    public void setConfig(Bitmap.Config config) {
+        this.config = config;
+    }
+
+    public void setListener(LiveViewListener listener) {
+        // 另设的监听器不再显示到绑定的 View
+        boundView = null;
+        this.listener = listener;
+    }
+
+    public synchronized long getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return average decode time in ms
+     */
+    public float getAverageDecodeMs() {
+        return averageDecodeNanos / 1000000f;
+    }
+}
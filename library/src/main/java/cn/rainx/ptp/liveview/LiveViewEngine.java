@@ -0,0 +1,266 @@
+package cn.rainx.ptp.liveview;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.PTPException;
+
+/**
+ * Live view loop with a small ring of reusable frames.
+ *
+ * 拉取线程不断读取新帧，总是把最新的完整帧交给使用者。使用者通过 acquireLatest
+ * 取得帧，用完后必须 release。新帧到达时上一帧如果还没有被任何使用者取走，就被
+ * 丢弃（drop-oldest），并计入丢帧数。所有帧槽都被使用者占用时，新帧读入备用
+ * 缓冲后直接丢弃，拉取线程不会等待使用者。
+ */
+public class LiveViewEngine implements Runnable {
+
+    public static final String TAG = "LiveViewEngine";
+
+    public static final int DEFAULT_RING_SIZE = 4;
+
+    // 相机还没有新帧时的等待时间
+    private static final int NOT_READY_DELAY = 5; // ms
+    // 出错后的等待时间，以及连续出错多少次后停止
+    private static final int ERROR_DELAY = 100; // ms
+    private static final int MAX_CONSECUTIVE_ERRORS = 10;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final BaselineInitiator bi;
+    private final LiveViewFrame[] ring;
+    private final LiveViewFrame spare;
+    private final Object lock = new Object();
+
+    private LiveViewFrame latest;
+    private long nextSequence = 1;
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private volatile PTPException lastError;
+
+    // 统计
+    private long receivedFrames;
+    private long droppedFrames;
+    private long deliveredFrames;
+    private long fpsWindowStart;
+    private int fpsWindowFrames;
+    private volatile float fps;
+    private volatile long averageTransferNanos;
+    private volatile long averageDeliveryNanos;
+
+    public LiveViewEngine(BaselineInitiator bi) {
+        this(bi, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * @param bi initiator
+     * @param ringSize number of reusable frames, at least 2 plus one per
+     *     consumer holding a frame at the same time
+     */
+    public LiveViewEngine(BaselineInitiator bi, int ringSize) {
+        this.bi = bi;
+        ring = new LiveViewFrame[Math.max(2, ringSize)];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new LiveViewFrame(bi);
+        }
+        spare = new LiveViewFrame(bi);
+    }
+
+    public synchronized void start() throws PTPException {
+        if (running) {
+            return;
+        }
+        bi.startLiveView();
+        lastError = null;
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    public synchronized void stop() throws PTPException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        bi.stopLiveView();
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "live view loop started");
+        int errors = 0;
+        fpsWindowStart = SystemClock.elapsedRealtimeNanos();
+        while (running) {
+            LiveViewFrame frame = acquireWritable();
+            try {
+                frame.requestedAt = SystemClock.elapsedRealtimeNanos();
+                boolean ready = bi.readLiveViewFrame(frame);
+                frame.receivedAt = SystemClock.elapsedRealtimeNanos();
+                errors = 0;
+                if (ready) {
+                    publish(frame);
+                } else {
+                    Thread.sleep(NOT_READY_DELAY);
+                }
+            } catch (PTPException e) {
+                lastError = e;
+                Log.d(TAG, "read live view frame failed: " + e.getMessage());
+                if (++errors >= MAX_CONSECUTIVE_ERRORS) {
+                    Log.d(TAG, "too many errors, live view loop stopped");
+                    break;
+                }
+                try {
+                    Thread.sleep(ERROR_DELAY);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        Log.d(TAG, "live view loop stopped, " + receivedFrames + " frames, " + droppedFrames + " dropped");
+    }
+
+    /**
+     * A slot no consumer holds and which is not the latest frame, or the
+     * spare buffer if there is none.
+     */
+    private LiveViewFrame acquireWritable() {
+        synchronized (lock) {
+            for (LiveViewFrame frame : ring) {
+                if (frame.refCount == 0 && frame != latest) {
+                    return frame;
+                }
+            }
+            return spare;
+        }
+    }
+
+    private void publish(LiveViewFrame frame) {
+        synchronized (lock) {
+            receivedFrames++;
+            if (frame == spare) {
+                // 所有帧槽都在使用中
+                droppedFrames++;
+                return;
+            }
+            if (latest != null && !latest.delivered) {
+                droppedFrames++;
+            }
+            frame.sequence = nextSequence++;
+            frame.delivered = false;
+            latest = frame;
+            lock.notifyAll();
+        }
+
+        long transfer = frame.receivedAt - frame.requestedAt;
+        averageTransferNanos = averageTransferNanos == 0 ? transfer : (averageTransferNanos * 7 + transfer) / 8;
+        fpsWindowFrames++;
+        long elapsed = frame.receivedAt - fpsWindowStart;
+        if (elapsed >= NANOS_PER_SECOND) {
+            fps = fpsWindowFrames * (float) NANOS_PER_SECOND / elapsed;
+            fpsWindowFrames = 0;
+            fpsWindowStart = frame.receivedAt;
+        }
+    }
+
+    /**
+     * Waits for a frame newer than afterSequence and holds it until
+     * {@link #release(LiveViewFrame)}.
+     *
+     * @param afterSequence sequence of the last frame seen, 0 for any
+     * @param timeoutMs max time to wait
+     * @return the latest frame, or null on timeout or when stopped
+     */
+    public LiveViewFrame acquireLatest(long afterSequence, long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (lock) {
+            while (latest == null || latest.sequence <= afterSequence) {
+                long wait = deadline - SystemClock.elapsedRealtime();
+                if (!running || wait <= 0) {
+                    return null;
+                }
+                lock.wait(wait);
+            }
+            LiveViewFrame frame = latest;
+            frame.refCount++;
+            if (!frame.delivered) {
+                frame.delivered = true;
+                deliveredFrames++;
+                long age = SystemClock.elapsedRealtimeNanos() - frame.receivedAt;
+                averageDeliveryNanos = averageDeliveryNanos == 0 ? age : (averageDeliveryNanos * 7 + age) / 8;
+            }
+            return frame;
+        }
+    }
+
+    public void release(LiveViewFrame frame) {
+        synchronized (lock) {
+            if (frame.refCount > 0) {
+                frame.refCount--;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the error of the last failed read, or null
+     */
+    public PTPException getLastError() {
+        return lastError;
+    }
+
+    public float getFps() {
+        return fps;
+    }
+
+    /**
+     * @return average time from request to complete frame, in ms
+     */
+    public float getAverageTransferMs() {
+        return averageTransferNanos / 1000000f;
+    }
+
+    /**
+     * @return average age of a frame when first handed to a consumer, in ms
+     */
+    public float getAverageDeliveryMs() {
+        return averageDeliveryNanos / 1000000f;
+    }
+
+    public long getReceivedFrames() {
+        synchronized (lock) {
+            return receivedFrames;
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    public long getDeliveredFrames() {
+        synchronized (lock) {
+            return deliveredFrames;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.rainx.ptp.liveview;
+
+import cn.rainx.ptp.usbcamera.Data;
+import cn.rainx.ptp.usbcamera.NameFactory;
+
+/**
+ * A reusable live view frame buffer.
+ *
+ * buffer.data 保存整个 data phase（包括 12 字节的头），JPEG 在其中的位置由
+ * jpegOffset 和 jpegLength 给出，不再复制出单独的数组。
+ */
+public class LiveViewFrame {
+
+    // 初始缓冲大小，不够时由 transactReuse 扩大
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    public final Data buffer;
+
+    public int jpegOffset;
+    public int jpegLength;
+
+    // 帧序号，由 LiveViewEngine 分配
+    public long sequence;
+    // 发送请求和收到数据的时间，SystemClock.elapsedRealtimeNanos
+    public long requestedAt;
+    public long receivedAt;
+
+    // 以下字段由 LiveViewEngine 在锁内维护
+    int refCount;
+    boolean delivered;
+
+    public LiveViewFrame(NameFactory factory) {
+        this(factory, DEFAULT_CAPACITY);
+    }
+
+    public LiveViewFrame(NameFactory factory, int capacity) {
+        buffer = new Data(true, new byte[capacity], 0, factory);
+    }
+
+    public byte[] getData() {
+        return buffer.data;
+    }
+
+    public int getJpegOffset() {
+        return jpegOffset;
+    }
+
+    public int getJpegLength() {
+        return jpegLength;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return time from request to a complete frame, in nanoseconds
+     */
+    public long getTransferNanos() {
+        return receivedAt - requestedAt;
+    }
+}
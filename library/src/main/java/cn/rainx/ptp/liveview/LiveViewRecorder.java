@@ -0,0 +1,372 @@
+package cn.rainx.ptp.liveview;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records live view into an MJPEG AVI file.
+ *
+ * 相机输出的 JPEG 帧不解码也不复制，直接从帧缓冲通过 FileChannel 写入 AVI 的
+ * movi 列表。每一帧的位置同时追加到旁边的 .idx 文件（每条 20 字节：u64 文件偏移、
+ * u32 长度、u64 相对开始录制的纳秒数），录制中断时也可以直接定位任意一帧；
+ * 正常结束时再写入 AVI 自己的 idx1 索引并更新文件头。
+ *
+ * AVI 1.0 文件不能超过 2G，达到 maxFileBytes 后停止录制。
+ */
+public class LiveViewRecorder implements Runnable {
+
+    public static final String TAG = "LiveViewRecorder";
+
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final int INDEX_ENTRY_SIZE = 20;
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 1800L * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 224;
+    // movi 列表中 'movi' 的位置，idx1 中的偏移相对于它
+    private static final int MOVI_FOURCC_POS = HEADER_SIZE - 4;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    // 索引先缓存在内存中，攒够后一次写入
+    private static final int INDEX_FLUSH_ENTRIES = 64;
+
+    private final LiveViewEngine engine;
+    private final File file;
+    private long maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+
+    private RandomAccessFile aviFile;
+    private FileChannel aviChannel;
+    private RandomAccessFile indexFile;
+    private FileChannel indexChannel;
+
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer padding = ByteBuffer.allocate(1);
+    private final ByteBuffer[] gather = new ByteBuffer[3];
+    private final ByteBuffer indexBuffer =
+            ByteBuffer.allocate(INDEX_ENTRY_SIZE * INDEX_FLUSH_ENTRIES).order(ByteOrder.LITTLE_ENDIAN);
+
+    // idx1 所需的每帧偏移和长度
+    private int[] frameOffsets = new int[1024];
+    private int[] frameSizes = new int[1024];
+    private volatile int frameCount;
+    private long position;
+    private int maxFrameSize;
+    private final int[] size = new int[2];
+
+    private long startedAt;
+    private long lastFrameAt;
+    private long skippedFrames;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param engine live view source, started by the caller
+     * @param file the AVI file, the index is written to file + ".idx"
+     */
+    public LiveViewRecorder(LiveViewEngine engine, File file) {
+        this.engine = engine;
+        this.file = file;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (file.exists()) {
+            file.delete();
+        }
+        File index = new File(file.getPath() + INDEX_SUFFIX);
+        if (index.exists()) {
+            index.delete();
+        }
+        aviFile = new RandomAccessFile(file, "rw");
+        aviChannel = aviFile.getChannel();
+        indexFile = new RandomAccessFile(index, "rw");
+        indexChannel = indexFile.getChannel();
+
+        frameCount = 0;
+        maxFrameSize = 0;
+        skippedFrames = 0;
+        size[0] = size[1] = 0;
+        indexBuffer.clear();
+        aviChannel.write(buildHeader(0), 0);
+        position = HEADER_SIZE;
+
+        startedAt = SystemClock.elapsedRealtimeNanos();
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    /**
+     * Stops recording and finalizes the file.
+     */
+    public void stop() throws IOException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastSequence = 0;
+        try {
+            while (running) {
+                LiveViewFrame frame = engine.acquireLatest(lastSequence, 500);
+                if (frame == null) {
+                    if (!engine.isRunning()) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    if (lastSequence > 0) {
+                        skippedFrames += frame.getSequence() - lastSequence - 1;
+                    }
+                    lastSequence = frame.getSequence();
+                    if (position + frame.getJpegLength() + 8 + 16L * (frameCount + 1) > maxFileBytes) {
+                        Log.d(TAG, "max file size reached");
+                        break;
+                    }
+                    writeFrame(frame);
+                } finally {
+                    engine.release(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+            try {
+                finish();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeFrame(LiveViewFrame frame) throws IOException {
+        int length = frame.getJpegLength();
+        if (size[0] == 0) {
+            JpegLocator.readSize(frame.getData(), frame.getJpegOffset(), length, size);
+        }
+
+        chunkHeader.clear();
+        chunkHeader.put((byte) '0').put((byte) '0').put((byte) 'd').put((byte) 'c');
+        chunkHeader.putInt(length);
+        chunkHeader.flip();
+        gather[0] = chunkHeader;
+        gather[1] = ByteBuffer.wrap(frame.getData(), frame.getJpegOffset(), length);
+        padding.clear();
+        // chunk 按 2 字节对齐
+        padding.limit(length & 1);
+        gather[2] = padding;
+
+        long chunkPos = position;
+        long total = 8 + length + (length & 1);
+        long written = 0;
+        aviChannel.position(chunkPos);
+        while (written < total) {
+            written += aviChannel.write(gather);
+        }
+        position += total;
+
+        lastFrameAt = SystemClock.elapsedRealtimeNanos();
+        addIndex(chunkPos, length, lastFrameAt - startedAt);
+        if (length > maxFrameSize) {
+            maxFrameSize = length;
+        }
+    }
+
+    private void addIndex(long chunkPos, int length, long timestamp) throws IOException {
+        if (frameCount == frameOffsets.length) {
+            int[] offsets = new int[frameCount * 2];
+            int[] sizes = new int[frameCount * 2];
+            System.arraycopy(frameOffsets, 0, offsets, 0, frameCount);
+            System.arraycopy(frameSizes, 0, sizes, 0, frameCount);
+            frameOffsets = offsets;
+            frameSizes = sizes;
+        }
+        frameOffsets[frameCount] = (int) (chunkPos - MOVI_FOURCC_POS);
+        frameSizes[frameCount] = length;
+        frameCount++;
+
+        indexBuffer.putLong(chunkPos + 8);
+        indexBuffer.putInt(length);
+        indexBuffer.putLong(timestamp);
+        if (!indexBuffer.hasRemaining()) {
+            flushIndex();
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    /**
+     * Writes idx1 and the final header, then closes the files.
+     */
+    private void finish() throws IOException {
+        if (aviChannel == null) {
+            return;
+        }
+        try {
+            flushIndex();
+
+            ByteBuffer idx1 = ByteBuffer.allocate(8 + 16 * frameCount).order(ByteOrder.LITTLE_ENDIAN);
+            putFourcc(idx1, "idx1");
+            idx1.putInt(16 * frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                putFourcc(idx1, "00dc");
+                idx1.putInt(AVIIF_KEYFRAME);
+                idx1.putInt(frameOffsets[i]);
+                idx1.putInt(frameSizes[i]);
+            }
+            idx1.flip();
+            aviChannel.position(position);
+            while (idx1.hasRemaining()) {
+                aviChannel.write(idx1);
+            }
+
+            aviChannel.write(buildHeader(position - MOVI_FOURCC_POS), 0);
+            aviChannel.force(false);
+            Log.d(TAG, frameCount + " frames recorded, " + skippedFrames + " skipped, " + file.getPath());
+        } finally {
+            aviChannel.close();
+            aviFile.close();
+            indexChannel.close();
+            indexFile.close();
+            aviChannel = null;
+            indexChannel = null;
+        }
+    }
+
+    /**
+     * @param moviSize size of the movi list, 'movi' included
+     */
+    private ByteBuffer buildHeader(long moviSize) {
+        long duration = lastFrameAt - startedAt;
+        int microSecPerFrame = frameCount > 1 ? (int) (duration / 1000 / (frameCount - 1)) : 33333;
+        int rate = 1000000;
+        int scale = Math.max(1, microSecPerFrame);
+        long riffSize = MOVI_FOURCC_POS + moviSize + (moviSize > 0 ? 8 + 16L * frameCount : 0) - 8;
+
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        putFourcc(b, "RIFF");
+        b.putInt((int) Math.max(riffSize, HEADER_SIZE - 8));
+        putFourcc(b, "AVI ");
+
+        putFourcc(b, "LIST");
+        b.putInt(192);
+        putFourcc(b, "hdrl");
+
+        putFourcc(b, "avih");
+        b.putInt(56);
+        b.putInt(microSecPerFrame);
+        b.putInt((int) Math.min(Integer.MAX_VALUE, maxFrameSize * 1000000L / scale)); // max bytes per second
+        b.putInt(0);                                 // padding granularity
+        b.putInt(AVIF_HASINDEX);
+        b.putInt(frameCount);
+        b.putInt(0);                                 // initial frames
+        b.putInt(1);                                 // streams
+        b.putInt(maxFrameSize);                      // suggested buffer size
+        b.putInt(size[0]);
+        b.putInt(size[1]);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);   // reserved
+
+        putFourcc(b, "LIST");
+        b.putInt(116);
+        putFourcc(b, "strl");
+
+        putFourcc(b, "strh");
+        b.putInt(56);
+        putFourcc(b, "vids");
+        putFourcc(b, "MJPG");
+        b.putInt(0);                                 // flags
+        b.putShort((short) 0);                       // priority
+        b.putShort((short) 0);                       // language
+        b.putInt(0);                                 // initial frames
+        b.putInt(scale);
+        b.putInt(rate);
+        b.putInt(0);                                 // start
+        b.putInt(frameCount);                        // length
+        b.putInt(maxFrameSize);                      // suggested buffer size
+        b.putInt(-1);                                // quality
+        b.putInt(0);                                 // sample size
+        b.putShort((short) 0).putShort((short) 0);
+        b.putShort((short) size[0]).putShort((short) size[1]);
+
+        putFourcc(b, "strf");
+        b.putInt(40);
+        b.putInt(40);                                // BITMAPINFOHEADER size
+        b.putInt(size[0]);
+        b.putInt(size[1]);
+        b.putShort((short) 1);                       // planes
+        b.putShort((short) 24);                      // bit count
+        putFourcc(b, "MJPG");
+        b.putInt(size[0] * size[1] * 3);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        putFourcc(b, "LIST");
+        b.putInt((int) Math.max(moviSize, 4));
+        putFourcc(b, "movi");
+
+        b.flip();
+        return b;
+    }
+
+    private static void putFourcc(ByteBuffer b, String fourcc) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) fourcc.charAt(i));
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+}
@@ -0,0 +1,263 @@
+package cn.rainx.ptp.liveview;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes live view as multipart/x-mixed-replace MJPEG over HTTP.
+ *
+ * 所有客户端共用 LiveViewEngine 的一个 USB 拉取线程。每个客户端有自己的线程和
+ * 缓冲，取帧后立即复制并释放帧槽，发送完一帧后直接取最新的一帧，中间的帧被跳过，
+ * 所以慢的客户端不会拖慢相机和其他客户端。
+ *
+ * 路径 /snapshot 返回单张 JPEG，其它路径返回 MJPEG 流。使用者的应用需要
+ * android.permission.INTERNET 权限，本机可以用 http://127.0.0.1:port/ 测试。
+ */
+public class MjpegServer implements Runnable {
+
+    public static final String TAG = "MjpegServer";
+
+    private static final String BOUNDARY = "mtpcontrollerframe";
+    private static final String SNAPSHOT_PATH = "/snapshot";
+
+    // 等待新帧和读取请求的超时
+    private static final int FRAME_TIMEOUT = 1000; // ms
+    private static final int REQUEST_TIMEOUT = 5000; // ms
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private final LiveViewEngine engine;
+    private final int port;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    private final List<Client> clients = new ArrayList<Client>();
+
+    /**
+     * @param engine live view source, started by the caller
+     * @param port TCP port, 0 to pick a free one
+     */
+    public MjpegServer(LiveViewEngine engine, int port) {
+        this.engine = engine;
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        running = true;
+        acceptThread = new Thread(this, TAG);
+        acceptThread.start();
+        Log.d(TAG, "listening on port " + serverSocket.getLocalPort());
+    }
+
+    public synchronized void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignore) {
+        }
+        synchronized (clients) {
+            for (Client client : clients) {
+                client.close();
+            }
+            clients.clear();
+        }
+        acceptThread = null;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Client client = new Client(socket);
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                new Thread(client, TAG + "-client").start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.d(TAG, "accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the port the server listens on, or -1 if not started
+     */
+    public int getLocalPort() {
+        ServerSocket socket = serverSocket;
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    public int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private class Client implements Runnable {
+        private final Socket socket;
+        private byte[] buffer = new byte[0];
+        private int length;
+        private long sentFrames;
+        private long skippedFrames;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(REQUEST_TIMEOUT);
+                String path = readRequestPath(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                if (SNAPSHOT_PATH.equals(path)) {
+                    sendSnapshot(out);
+                } else {
+                    sendStream(out);
+                }
+            } catch (IOException e) {
+                // 客户端断开
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+                synchronized (clients) {
+                    clients.remove(this);
+                }
+                Log.d(TAG, "client " + socket.getRemoteSocketAddress() + " closed, "
+                        + sentFrames + " frames sent, " + skippedFrames + " skipped");
+            }
+        }
+
+        private void sendStream(OutputStream out) throws IOException, InterruptedException {
+            out.write(("HTTP/1.0 200 OK\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Pragma: no-cache\r\n"
+                    + "Connection: close\r\n"
+                    + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                    + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+
+            long lastSequence = 0;
+            while (running) {
+                long sequence = copyLatest(lastSequence);
+                if (sequence < 0) {
+                    if (!engine.isRunning()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (lastSequence > 0) {
+                    skippedFrames += sequence - lastSequence - 1;
+                }
+                lastSequence = sequence;
+
+                out.write(("--" + BOUNDARY + "\r\n"
+                        + "Content-Type: image/jpeg\r\n"
+                        + "Content-Length: " + length + "\r\n"
+                        + "\r\n").getBytes("US-ASCII"));
+                out.write(buffer, 0, length);
+                out.write('\r');
+                out.write('\n');
+                out.flush();
+                sentFrames++;
+            }
+        }
+
+        private void sendSnapshot(OutputStream out) throws IOException, InterruptedException {
+            if (copyLatest(0) < 0) {
+                out.write("HTTP/1.0 503 Service Unavailable\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+            } else {
+                out.write(("HTTP/1.0 200 OK\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "Connection: close\r\n"
+                        + "Content-Type: image/jpeg\r\n"
+                        + "Content-Length: " + length + "\r\n"
+                        + "\r\n").getBytes("US-ASCII"));
+                out.write(buffer, 0, length);
+                sentFrames++;
+            }
+            out.flush();
+        }
+
+        /**
+         * Copies the latest JPEG into the client buffer and releases the
+         * frame at once.
+         *
+         * @return sequence of the copied frame, or -1 on timeout
+         */
+        private long copyLatest(long afterSequence) throws InterruptedException {
+            LiveViewFrame frame = engine.acquireLatest(afterSequence, FRAME_TIMEOUT);
+            if (frame == null) {
+                return -1;
+            }
+            try {
+                length = frame.getJpegLength();
+                if (buffer.length < length) {
+                    buffer = new byte[length + length / 4];
+                }
+                System.arraycopy(frame.getData(), frame.getJpegOffset(), buffer, 0, length);
+                return frame.getSequence();
+            } finally {
+                engine.release(frame);
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Reads the request head and returns the path of the request line.
+     */
+    private static String readRequestPath(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && head.length() < MAX_REQUEST_SIZE) {
+            head.append((char) c);
+            int n = head.length();
+            if (n >= 4 && head.charAt(n - 4) == '\r' && head.charAt(n - 3) == '\n'
+                    && head.charAt(n - 2) == '\r' && head.charAt(n - 1) == '\n') {
+                break;
+            }
+        }
+        int lineEnd = head.indexOf("\r\n");
+        String line = lineEnd >= 0 ? head.substring(0, lineEnd) : head.toString();
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return "/";
+        }
+        String path = parts[1];
+        int query = path.indexOf('?');
+        return query >= 0 ? path.substring(0, query) : path;
+    }
+}
@@ -0,0 +1,212 @@
+package cn.rainx.ptp.params;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import cn.rainx.ptp.db.ObjectMetadata;
+import cn.rainx.ptp.usbcamera.ObjectInfo;
+
+/**
+ * Compiled {@link SyncRules}, evaluated before an object is transferred.
+ *
+ * 取值未知的字段（例如 EOS 事件中没有拍摄时间，或者还没有读取评分）不参与
+ * 判断，由调用者在取得更多信息后再次判断。格式和单个文件夹可以作为
+ * GetObjectHandles 的参数交给相机过滤，见 getFormats 和 getPushdownParent。
+ */
+public class SyncFilter {
+
+    private final int[] formats;
+    private final long minSize;
+    private final long maxSize;
+    private final long capturedAfter;
+    private final long capturedBefore;
+    private final int[] folders;
+    private final String[] folderNames;
+    private final Pattern filenames;
+    private final int minRating;
+    private final int protection;
+
+    SyncFilter(SyncRules rules) {
+        formats = toSortedArray(rules.formats);
+        minSize = rules.minSize;
+        maxSize = rules.maxSize;
+        capturedAfter = rules.capturedAfter;
+        capturedBefore = rules.capturedBefore;
+        folders = toSortedArray(rules.folders);
+        folderNames = new String[rules.folderNames.size()];
+        for (int i = 0; i < folderNames.length; i++) {
+            folderNames[i] = rules.folderNames.get(i).toUpperCase(Locale.US);
+        }
+        filenames = compileGlobs(rules.filenames);
+        minRating = rules.minRating;
+        protection = rules.protection;
+    }
+
+    /**
+     * Evaluates the rules on what is known about an object.
+     *
+     * @param format object format code, 0 if unknown
+     * @param size size in bytes, -1 if unknown
+     * @param parent handle of the parent association, -1 if unknown
+     * @param parentName name of the parent association, null if unknown
+     * @param filename file name, null if unknown
+     * @param protectionStatus ObjectInfo protection status, -1 if unknown
+     * @param captureTime capture time in milliseconds, -1 if unknown
+     * @param rating rating, null if not read
+     * @return false if a rule with a known value rejects the object
+     */
+    public boolean matches(int format, long size, int parent, String parentName, String filename,
+                           int protectionStatus, long captureTime, Integer rating) {
+        if (formats != null && format != 0 && Arrays.binarySearch(formats, format) < 0) {
+            return false;
+        }
+        if (size >= 0 && ((minSize >= 0 && size < minSize) || (maxSize >= 0 && size > maxSize))) {
+            return false;
+        }
+        if (captureTime >= 0 && ((capturedAfter >= 0 && captureTime < capturedAfter)
+                || (capturedBefore >= 0 && captureTime > capturedBefore))) {
+            return false;
+        }
+        if (!matchesFolder(parent, parentName)) {
+            return false;
+        }
+        if (filenames != null && filename != null && !filenames.matcher(filename).matches()) {
+            return false;
+        }
+        if (protectionStatus >= 0 && protection != SyncRules.PROTECTION_ANY
+                && (protectionStatus != 0) != (protection == SyncRules.PROTECTION_PROTECTED)) {
+            return false;
+        }
+        if (rating != null && minRating >= 0 && rating < minRating) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param parentName name of the parent association, null if unknown
+     * @param metadata metadata read from the file header, or null
+     */
+    public boolean matches(ObjectInfo info, String parentName, ObjectMetadata metadata) {
+        long captureTime = info.getCaptureTime();
+        Integer rating = null;
+        if (metadata != null) {
+            if (metadata.getCaptureTime() != null) {
+                captureTime = metadata.getCaptureTime();
+            }
+            rating = metadata.getRating() != null ? metadata.getRating() : Integer.valueOf(0);
+        }
+        return matches(info.getObjectFormatCode(), info.getObjectCompressedSize() & 0xffffffffL,
+                info.getParentObject(), parentName, info.getFilename(), info.getProtectionStatus(),
+                captureTime, rating);
+    }
+
+    // 只按 handle 或只按名字时，另一种未知的值不参与判断
+    private boolean matchesFolder(int parent, String parentName) {
+        if (folders == null && folderNames.length == 0) {
+            return true;
+        }
+        boolean known = false;
+        if (folders != null && parent >= 0) {
+            known = true;
+            if (Arrays.binarySearch(folders, parent) >= 0) {
+                return true;
+            }
+        }
+        if (folderNames.length > 0 && parentName != null) {
+            known = true;
+            String name = parentName.toUpperCase(Locale.US);
+            for (String folderName : folderNames) {
+                if (folderName.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return !known;
+    }
+
+    /**
+     * @return the formats to ask GetObjectHandles for one by one, or null
+     *     for all formats
+     */
+    public int[] getFormats() {
+        return formats == null ? null : formats.clone();
+    }
+
+    /**
+     * @return the parent to pass to GetObjectHandles, or 0 if the folder
+     *     rule can not be evaluated by the camera
+     */
+    public int getPushdownParent() {
+        return folders != null && folders.length == 1 && folderNames.length == 0 ? folders[0] : 0;
+    }
+
+    /**
+     * @return true if some rule needs more than format, size, parent and
+     *     file name, which vendor events usually carry
+     */
+    public boolean needsObjectInfo() {
+        return capturedAfter >= 0 || capturedBefore >= 0 || folderNames.length > 0
+                || protection != SyncRules.PROTECTION_ANY || needsMetadata();
+    }
+
+    /**
+     * @return true if the rating rule needs the file header
+     */
+    public boolean needsMetadata() {
+        return minRating >= 0;
+    }
+
+    /**
+     * @return true if the parent name must be resolved
+     */
+    public boolean needsFolderNames() {
+        return folderNames.length > 0;
+    }
+
+    private static int[] toSortedArray(List<Integer> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    // 所有 glob 合并为一个正则表达式
+    private static Pattern compileGlobs(List<String> globs) {
+        if (globs.isEmpty()) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:");
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            regex.append(')');
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+}
@@ -17,4 +17,20 @@ public interface SyncParams {
 
     int FILE_NAME_RULE_HANDLE_ID    = 0;
     int FILE_NAME_RULE_OBJECT_NAME  = 1;
+
+    // 拍摄后照片的保存位置: 存储卡，或者直接保存在相机内存中由手机读取
+    int CAPTURE_DESTINATION_CARD    = 0;
+    int CAPTURE_DESTINATION_HOST    = 1;
+
+    // RAW+JPEG 拍摄时 RAW 的下载时机
+    int RAW_DOWNLOAD_IN_ORDER       = 0; // 按对象列表顺序
+    int RAW_DOWNLOAD_AFTER_JPEG     = 1; // 同一批中所有 JPEG 之后
+    int RAW_DOWNLOAD_WHEN_IDLE      = 2; // 一段时间没有新照片之后
+    int RAW_DOWNLOAD_WHEN_CHARGING  = 3; // 手机充电时
+
+    // 同步计划中对象的下载顺序
+    int SYNC_ORDER_CAMERA           = 0; // 相机对象列表的顺序
+    int SYNC_ORDER_NEWEST_FIRST     = 1; // 最近拍摄的在前
+    int SYNC_ORDER_SMALLEST_FIRST   = 2; // 小文件在前
+    int SYNC_ORDER_PAIRS_FIRST      = 3; // RAW+JPEG 在前，其次按拍摄时间
 }
@@ -0,0 +1,118 @@
+package cn.rainx.ptp.params;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative selection of the objects to sync.  Every criterion that is
+ * set must match; within one criterion any listed value matches.
+ *
+ * 规则在 compile 时转换为不可变的 {@link SyncFilter}，之后修改规则不影响已经
+ * 编译的过滤器。
+ *
+ *     SyncRules rules = new SyncRules()
+ *             .formats(ObjectInfo.EXIF_JPEG)
+ *             .sizeRange(0, 50L * 1024 * 1024)
+ *             .filenames("IMG_*.JPG")
+ *             .minRating(3);
+ *     initiator.setSyncRules(rules);
+ */
+public class SyncRules {
+
+    public static final int PROTECTION_ANY = 0;
+    public static final int PROTECTION_PROTECTED = 1;
+    public static final int PROTECTION_UNPROTECTED = 2;
+
+    final List<Integer> formats = new ArrayList<Integer>();
+    long minSize = -1;
+    long maxSize = -1;
+    long capturedAfter = -1;
+    long capturedBefore = -1;
+    final List<Integer> folders = new ArrayList<Integer>();
+    final List<String> folderNames = new ArrayList<String>();
+    final List<String> filenames = new ArrayList<String>();
+    int minRating = -1;
+    int protection = PROTECTION_ANY;
+
+    /**
+     * @param formats object format codes, see ObjectInfo
+     */
+    public SyncRules formats(int... formats) {
+        for (int format : formats) {
+            this.formats.add(format);
+        }
+        return this;
+    }
+
+    /**
+     * @param minSize smallest size in bytes, -1 for no bound
+     * @param maxSize largest size in bytes, -1 for no bound
+     */
+    public SyncRules sizeRange(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * @param after earliest capture time in milliseconds, -1 for no bound
+     * @param before latest capture time in milliseconds, -1 for no bound
+     */
+    public SyncRules capturedBetween(long after, long before) {
+        this.capturedAfter = after;
+        this.capturedBefore = before;
+        return this;
+    }
+
+    /**
+     * @param folders handles of the parent associations
+     */
+    public SyncRules folders(int... folders) {
+        for (int folder : folders) {
+            this.folders.add(folder);
+        }
+        return this;
+    }
+
+    /**
+     * @param folderNames names of the parent associations, such as
+     *     100CANON; case-insensitive
+     */
+    public SyncRules folderNames(String... folderNames) {
+        for (String folderName : folderNames) {
+            this.folderNames.add(folderName);
+        }
+        return this;
+    }
+
+    /**
+     * @param patterns file name globs with * and ?; case-insensitive
+     */
+    public SyncRules filenames(String... patterns) {
+        for (String pattern : patterns) {
+            this.filenames.add(pattern);
+        }
+        return this;
+    }
+
+    /**
+     * The rating is read from the file header, see RemoteMetadataReader;
+     * objects without a rating count as 0.
+     */
+    public SyncRules minRating(int minRating) {
+        this.minRating = minRating;
+        return this;
+    }
+
+    /**
+     * @param protection PROTECTION_*
+     */
+    public SyncRules protection(int protection) {
+        this.protection = protection;
+        return this;
+    }
+
+    public SyncFilter compile() {
+        return new SyncFilter(this);
+    }
+}
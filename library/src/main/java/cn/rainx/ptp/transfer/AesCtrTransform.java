@@ -0,0 +1,100 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts the object with AES in CTR mode.
+ *
+ * 每个对象使用新的随机 IV（CTR 模式下同一个 key 不能重复使用 IV），finish 返回
+ * 该 IV，调用者需要和文件一起保存，解密时使用同样的 key 和 IV。放在链中此步骤
+ * 之后的 transform 看到的是密文。
+ */
+public class AesCtrTransform implements ChunkTransform {
+
+    public static final String NAME = "AES/CTR";
+
+    private static final int IV_LENGTH = 16;
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final SecureRandom random = new SecureRandom();
+    private byte[] iv;
+    private ByteBuffer output = ByteBuffer.allocate(0);
+
+    public AesCtrTransform(SecretKey key) throws GeneralSecurityException {
+        this.key = key;
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    }
+
+    /**
+     * Every transform created uses the same key with its own random IV.
+     */
+    public static Factory factory(final SecretKey key) throws GeneralSecurityException {
+        Cipher.getInstance("AES/CTR/NoPadding");
+        return new Factory() {
+            @Override
+            public ChunkTransform create() throws IOException {
+                try {
+                    return new AesCtrTransform(key);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void begin(int handle, long size) throws IOException {
+        iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("can not init cipher: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer chunk) throws IOException {
+        int length = chunk.remaining();
+        if (output.capacity() < length) {
+            output = ByteBuffer.allocate(length);
+        }
+        output.clear();
+        try {
+            // CTR 是流模式，输出长度应当等于输入长度
+            int n = cipher.update(chunk.array(), chunk.arrayOffset() + chunk.position(), length,
+                    output.array(), 0);
+            if (n != length) {
+                throw new IOException("cipher buffered " + (length - n) + " bytes");
+            }
+            output.limit(n);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypt failed: " + e.getMessage());
+        }
+        chunk.position(chunk.limit());
+        return output;
+    }
+
+    @Override
+    public byte[] finish() throws IOException {
+        try {
+            cipher.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypt failed: " + e.getMessage());
+        }
+        return iv;
+    }
+}
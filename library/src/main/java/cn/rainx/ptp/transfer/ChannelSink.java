@@ -0,0 +1,37 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes an object to a WritableByteChannel.  The channel belongs to the
+ * caller and is not closed.
+ */
+public class ChannelSink implements ObjectSink {
+
+    private final WritableByteChannel channel;
+
+    public ChannelSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void begin(int handle, long size) throws IOException {
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+    }
+
+    @Override
+    public void abort() {
+    }
+}
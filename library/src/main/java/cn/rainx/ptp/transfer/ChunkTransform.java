@@ -0,0 +1,42 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One step of a {@link TransformChain}.  A transform either only looks at
+ * the bytes (digests, checksums) and returns the chunk unchanged, or
+ * returns a new buffer holding the transformed bytes (encryption).
+ *
+ * 同一个 transform 可以被多次下载复用，但同一时间只能用于一个下载；begin 会
+ * 重置内部状态。下载可能并发进行（下载队列、界面线程、分块读取之间会释放 session
+ * 锁），所以自动下载注册的是 {@link Factory}，每个下载创建新的实例。
+ */
+public interface ChunkTransform {
+
+    /**
+     * Creates a new transform for each download.
+     */
+    interface Factory {
+        ChunkTransform create() throws IOException;
+    }
+
+    /**
+     * @return key of the result in {@link TransformChain#getResults()}
+     */
+    String getName();
+
+    void begin(int handle, long size) throws IOException;
+
+    /**
+     * @param chunk bytes in [position, limit)
+     * @return the bytes passed to the next step, in [position, limit); only
+     *     valid until the next call
+     */
+    ByteBuffer transform(ByteBuffer chunk) throws IOException;
+
+    /**
+     * @return the result of this transform for the object, or null
+     */
+    byte[] finish() throws IOException;
+}
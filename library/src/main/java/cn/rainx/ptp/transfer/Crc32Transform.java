@@ -0,0 +1,48 @@
+package cn.rainx.ptp.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC32 of the object.  The result is 4 bytes, big endian.
+ */
+public class Crc32Transform implements ChunkTransform {
+
+    public static final String NAME = "CRC32";
+
+    private final CRC32 crc = new CRC32();
+
+    public static Factory factory() {
+        return new Factory() {
+            @Override
+            public ChunkTransform create() {
+                return new Crc32Transform();
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void begin(int handle, long size) {
+        crc.reset();
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer chunk) {
+        crc.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        return chunk;
+    }
+
+    @Override
+    public byte[] finish() {
+        return Crc32cTransform.toBytes((int) crc.getValue());
+    }
+
+    public long getValue() {
+        return crc.getValue();
+    }
+}
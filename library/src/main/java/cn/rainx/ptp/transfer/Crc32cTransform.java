@@ -0,0 +1,95 @@
+package cn.rainx.ptp.transfer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the CRC32C (Castagnoli) of the object.  The result is 4 bytes,
+ * big endian.
+ *
+ * java.util.zip.CRC32C 需要 API 26，这里用 slicing-by-8 查表实现。
+ */
+public class Crc32cTransform implements ChunkTransform {
+
+    public static final String NAME = "CRC32C";
+
+    // reflected 0x1EDC6F41
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLE[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            int c = TABLE[0][n];
+            for (int t = 1; t < 8; t++) {
+                c = TABLE[0][c & 0xff] ^ (c >>> 8);
+                TABLE[t][n] = c;
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    public static Factory factory() {
+        return new Factory() {
+            @Override
+            public ChunkTransform create() {
+                return new Crc32cTransform();
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void begin(int handle, long size) {
+        crc = 0xffffffff;
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer chunk) {
+        crc = update(crc, chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        return chunk;
+    }
+
+    @Override
+    public byte[] finish() {
+        return toBytes(~crc);
+    }
+
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    private static int update(int c, byte[] b, int off, int len) {
+        int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+        int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+        int end = off + len;
+        while (end - off >= 8) {
+            int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                    ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            c = t0[(c ^ b[off++]) & 0xff] ^ (c >>> 8);
+        }
+        return c;
+    }
+
+    static byte[] toBytes(int value) {
+        return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+        };
+    }
+}
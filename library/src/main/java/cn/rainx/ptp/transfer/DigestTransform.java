@@ -0,0 +1,59 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a MessageDigest (SHA-256, MD5, ...) of the object.
+ */
+public class DigestTransform implements ChunkTransform {
+
+    private final MessageDigest digest;
+
+    /**
+     * @param algorithm a MessageDigest algorithm, e.g. "SHA-256"
+     */
+    public DigestTransform(String algorithm) throws NoSuchAlgorithmException {
+        this.digest = MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * @param algorithm a MessageDigest algorithm, checked now
+     */
+    public static Factory factory(final String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(algorithm);
+        return new Factory() {
+            @Override
+            public ChunkTransform create() throws IOException {
+                try {
+                    return new DigestTransform(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return digest.getAlgorithm();
+    }
+
+    @Override
+    public void begin(int handle, long size) {
+        digest.reset();
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer chunk) {
+        digest.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        return chunk;
+    }
+
+    @Override
+    public byte[] finish() {
+        return digest.digest();
+    }
+}
@@ -0,0 +1,454 @@
+package cn.rainx.ptp.transfer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only log of the objects queued for download, so a download run
+ * killed with the process resumes where it stopped.
+ *
+ * 每台设备一个文件，每行一条记录：E（入队，带大小和文件名）、S（开始下载）、
+ * C（完成，包括被同步规则跳过）、F（失败）、D（放弃），压缩后的未完成对象为 P。
+ * 入队和完成的记录写入后 fsync，其他记录丢失只会导致多下载一次，不 fsync。
+ * 进程被杀时最后一行可能只写了一半，读取时丢弃。
+ *
+ * 记录数超过存活记录的若干倍时在后台线程中压缩：写出当前状态到临时文件，加上压缩
+ * 期间追加的记录，再 rename 替换日志。已完成的 handle 保留到 acknowledge，即写入
+ * SyncDevice 的同步列表之后。
+ */
+public class DownloadJournal {
+
+    public static final String TAG = "DownloadJournal";
+
+    // 一个对象最多尝试的次数，超过后从日志中删除
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String SUFFIX = ".journal";
+    // 压缩的条件：记录数超过存活记录数的倍数，并且超过最小记录数
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    /**
+     * An object queued and not completed.
+     */
+    public static class Entry {
+        public final int handle;
+        public final int size;
+        public final String filename;
+        int attempts;
+        boolean started;
+
+        public Entry(int handle, int size, String filename) {
+            this.handle = handle;
+            this.size = size;
+            this.filename = filename;
+        }
+
+        /**
+         * @return number of downloads started and not completed
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return true if the last download started was not completed
+         */
+        public boolean isStarted() {
+            return started;
+        }
+    }
+
+    private final File dir;
+
+    // 以下由 this 保护
+    private File file;
+    private FileOutputStream out;
+    private final Map<Integer, Entry> pending = new LinkedHashMap<Integer, Entry>();
+    private final Set<Integer> committed = new LinkedHashSet<Integer>();
+    // 本次打开后放弃或删除的未完成对象，由 takeAbandoned 取走
+    private final Set<Integer> abandoned = new LinkedHashSet<Integer>();
+    private int records;
+    // 压缩失败后，记录数达到该值才再次压缩
+    private int compactAfter;
+    // 压缩期间追加的记录，压缩结束时写入新文件
+    private List<String> tail;
+
+    /**
+     * @param dir directory of the journal files, for example under
+     *     Context#getFilesDir
+     */
+    public DownloadJournal(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Opens the journal of a device and loads its state; does nothing if it
+     * is open already.
+     */
+    public synchronized void open(String deviceUUID) throws IOException {
+        File f = new File(dir, deviceUUID.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX);
+        if (f.equals(file)) {
+            return;
+        }
+        close();
+        pending.clear();
+        committed.clear();
+        abandoned.clear();
+        records = 0;
+        compactAfter = 0;
+        if (f.exists()) {
+            load(f);
+        }
+        file = f;
+        out = new FileOutputStream(f, true);
+        Log.d(TAG, "open " + f.getName() + ", pending " + pending.size() + ", committed " + committed.size());
+    }
+
+    public synchronized boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * Records objects queued for download in one write; objects already
+     * pending are skipped.
+     */
+    public synchronized void enqueued(List<Entry> entries) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : entries) {
+            if (pending.containsKey(entry.handle)) {
+                continue;
+            }
+            committed.remove(entry.handle);
+            abandoned.remove(entry.handle);
+            String filename = entry.filename != null ? field(entry.filename) : null;
+            pending.put(entry.handle, new Entry(entry.handle, entry.size, filename));
+            lines.append("E\t").append(entry.handle).append('\t').append(entry.size).append('\t')
+                    .append(field(entry.filename)).append('\n');
+        }
+        if (lines.length() > 0) {
+            append(lines.toString(), true);
+        }
+    }
+
+    public void enqueued(int handle, int size, String filename) throws IOException {
+        enqueued(Collections.singletonList(new Entry(handle, size, filename)));
+    }
+
+    public synchronized void started(int handle) throws IOException {
+        Entry entry = pending.get(handle);
+        if (entry == null) {
+            return;
+        }
+        entry.started = true;
+        entry.attempts++;
+        append("S\t" + handle + "\n", false);
+    }
+
+    /**
+     * Records an object as done, downloaded or skipped.
+     */
+    public synchronized void committed(int handle) throws IOException {
+        if (pending.remove(handle) == null && committed.contains(handle)) {
+            return;
+        }
+        committed.add(handle);
+        append("C\t" + handle + "\n", true);
+    }
+
+    /**
+     * Records a failed download; the object stays pending until it failed
+     * MAX_ATTEMPTS times.
+     */
+    public synchronized void failed(int handle) throws IOException {
+        Entry entry = pending.get(handle);
+        if (entry == null) {
+            return;
+        }
+        entry.started = false;
+        if (entry.attempts >= MAX_ATTEMPTS) {
+            Log.d(TAG, "give up " + Integer.toHexString(handle) + " after " + entry.attempts + " attempts");
+            pending.remove(handle);
+            abandoned.add(handle);
+        }
+        append("F\t" + handle + "\n", false);
+    }
+
+    /**
+     * Drops an object from the journal, for example when it is gone from
+     * the camera.
+     */
+    public synchronized void drop(int handle) throws IOException {
+        if (pending.remove(handle) != null) {
+            abandoned.add(handle);
+            append("D\t" + handle + "\n", false);
+        }
+    }
+
+    /**
+     * Forgets committed objects once they are recorded elsewhere, such as
+     * in the SyncDevice id list.  Only affects the next compaction.
+     */
+    public synchronized void acknowledge(Collection<Integer> handles) {
+        committed.removeAll(handles);
+        maybeCompact();
+    }
+
+    /**
+     * @return objects queued and not completed, in queue order
+     */
+    public synchronized List<Entry> getPending() {
+        List<Entry> entries = new ArrayList<Entry>(pending.size());
+        for (Entry entry : pending.values()) {
+            Entry copy = new Entry(entry.handle, entry.size, entry.filename);
+            copy.attempts = entry.attempts;
+            copy.started = entry.started;
+            entries.add(copy);
+        }
+        return entries;
+    }
+
+    /**
+     * @return objects given up on or dropped since the last call, in this
+     *     run; they should no longer be recorded as synced
+     */
+    public synchronized List<Integer> takeAbandoned() {
+        List<Integer> handles = new ArrayList<Integer>(abandoned);
+        abandoned.clear();
+        return handles;
+    }
+
+    public synchronized boolean isPending(int handle) {
+        return pending.containsKey(handle);
+    }
+
+    /**
+     * @return objects completed and not acknowledged
+     */
+    public synchronized List<Integer> getCommitted() {
+        return new ArrayList<Integer>(committed);
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+        file = null;
+    }
+
+    private void append(String lines, boolean sync) throws IOException {
+        if (out == null) {
+            throw new IOException("journal not open");
+        }
+        out.write(lines.getBytes("UTF-8"));
+        if (sync) {
+            out.getFD().sync();
+        }
+        if (tail != null) {
+            tail.add(lines);
+        }
+        records += countLines(lines);
+        maybeCompact();
+    }
+
+    private void load(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < bytes.length) {
+                int r = in.read(bytes, n, bytes.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        int from = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                replay(new String(bytes, from, i - from, "UTF-8"));
+                records++;
+                from = i + 1;
+            }
+        }
+        if (from < bytes.length) {
+            // 写了一半的最后一行，截掉后再追加，否则会和下一条记录连在一起
+            Log.d(TAG, "drop torn record of " + (bytes.length - from) + " bytes");
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(from);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split("\t", -1);
+        try {
+            int handle = Integer.parseInt(fields[1]);
+            switch (fields[0]) {
+                case "E":
+                    committed.remove(handle);
+                    pending.put(handle, new Entry(handle, Integer.parseInt(fields[2]),
+                            fields[3].length() > 0 ? fields[3] : null));
+                    break;
+                case "P":
+                    // 压缩时写出的未完成对象：handle、大小、尝试次数、是否已开始、文件名
+                    Entry entry = new Entry(handle, Integer.parseInt(fields[2]),
+                            fields[5].length() > 0 ? fields[5] : null);
+                    entry.attempts = Integer.parseInt(fields[3]);
+                    entry.started = "1".equals(fields[4]);
+                    pending.put(handle, entry);
+                    break;
+                case "S":
+                    Entry started = pending.get(handle);
+                    if (started != null) {
+                        started.started = true;
+                        started.attempts++;
+                    }
+                    break;
+                case "C":
+                    pending.remove(handle);
+                    committed.add(handle);
+                    break;
+                case "D":
+                    pending.remove(handle);
+                    break;
+                case "F":
+                    Entry failed = pending.get(handle);
+                    if (failed != null) {
+                        failed.started = false;
+                        if (failed.attempts >= MAX_ATTEMPTS) {
+                            pending.remove(handle);
+                        }
+                    }
+                    break;
+                default:
+                    Log.d(TAG, "unknown record " + line);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "bad record " + line);
+        }
+    }
+
+    private void maybeCompact() {
+        int live = pending.size() + committed.size();
+        if (tail != null || records < COMPACT_MIN_RECORDS || records < live * COMPACT_RATIO
+                || records < compactAfter) {
+            return;
+        }
+        tail = new ArrayList<String>();
+        final File target = file;
+        final String snapshot = snapshot();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compact(target, snapshot);
+            }
+        }, TAG).start();
+    }
+
+    private String snapshot() {
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : pending.values()) {
+            lines.append("P\t").append(entry.handle).append('\t').append(entry.size).append('\t')
+                    .append(entry.attempts).append('\t').append(entry.started ? 1 : 0).append('\t')
+                    .append(field(entry.filename)).append('\n');
+        }
+        for (Integer handle : committed) {
+            lines.append("C\t").append(handle).append('\n');
+        }
+        return lines.toString();
+    }
+
+    // 在后台线程中执行，快照之后追加的记录在 tail 中
+    private void compact(File target, String snapshot) {
+        File tmp = new File(target.getPath() + ".tmp");
+        FileOutputStream tmpOut = null;
+        try {
+            tmpOut = new FileOutputStream(tmp);
+            tmpOut.write(snapshot.getBytes("UTF-8"));
+            synchronized (this) {
+                if (!target.equals(file)) {
+                    // 压缩期间切换了设备
+                    tail = null;
+                    tmpOut.close();
+                    tmp.delete();
+                    return;
+                }
+                int count = countLines(snapshot);
+                for (String lines : tail) {
+                    tmpOut.write(lines.getBytes("UTF-8"));
+                    count += countLines(lines);
+                }
+                tmpOut.getFD().sync();
+                tmpOut.close();
+                tmpOut = null;
+                if (!tmp.renameTo(target)) {
+                    throw new IOException("rename failed: " + tmp);
+                }
+                out.close();
+                out = new FileOutputStream(target, true);
+                Log.d(TAG, "compacted " + records + " records to " + count);
+                records = count;
+                tail = null;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "compaction failed: " + e.getMessage());
+            synchronized (this) {
+                // 记录数翻倍后再试，否则之后的每次追加都会再启动一次压缩
+                tail = null;
+                compactAfter = records * 2;
+            }
+            tmp.delete();
+        } finally {
+            if (tmpOut != null) {
+                try {
+                    tmpOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static String field(String value) {
+        return value != null ? value.replace('\t', '_').replace('\n', '_') : "";
+    }
+
+    private static int countLines(String lines) {
+        int count = 0;
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,303 @@
+package cn.rainx.ptp.transfer;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * Bounded queue of objects announced by the camera and not yet downloaded.
+ *
+ * 事件线程（或者连拍线程）只负责把新对象放入队列，由单独的消费线程下载，
+ * 这样拍摄不需要等待下载结束。队列的容量对应相机缓存能容纳的张数，队列满时
+ * 入队会阻塞；手机剩余空间不足时消费线程暂停下载，直到空间恢复。
+ */
+public class DownloadQueue implements Runnable {
+
+    public static final String TAG = "DownloadQueue";
+
+    // 默认为手机保留的剩余空间
+    public static final long DEFAULT_MIN_FREE_BYTES = 64L * 1024 * 1024;
+
+    // 等待存储空间时的检查间隔
+    private static final int STORAGE_CHECK_INTERVAL = 500; // ms
+
+    // 还没有测量数据时用于估算下载时间的默认值
+    private static final long DEFAULT_BYTES_PER_SECOND = 10L * 1024 * 1024;
+    private static final long DEFAULT_OBJECT_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * An object waiting to be downloaded.
+     */
+    public static class Item {
+        public final int handle;
+        public final int size;
+        public final String filename;
+        public final boolean inMemory;
+        public final long enqueuedAt;
+
+        public Item(int handle, int size, String filename, boolean inMemory) {
+            this.handle = handle;
+            this.size = size;
+            this.filename = filename;
+            this.inMemory = inMemory;
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final BaselineInitiator bi;
+    private final ArrayBlockingQueue<Item> queue;
+    private final int capacity;
+
+    private volatile long minFreeBytes = DEFAULT_MIN_FREE_BYTES;
+    private volatile boolean running = false;
+    private volatile boolean waitingForStorage = false;
+    private Thread consumerThread;
+
+    private final AtomicInteger enqueuedCount = new AtomicInteger();
+    private final AtomicInteger downloadedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    // 下载速度和对象大小的滑动平均，用于估算一次下载会占用 USB 多长时间
+    private volatile long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private volatile long averageObjectSize = DEFAULT_OBJECT_SIZE;
+
+    // 消费线程的优先级 (android.os.Process.THREAD_PRIORITY_*)，拍摄期间可以降低
+    private volatile int consumerPriority = Process.THREAD_PRIORITY_DEFAULT;
+
+    // 预留给拍摄的 USB 时间窗口 (SystemClock.elapsedRealtimeNanos)
+    private volatile long reservedFrom = Long.MAX_VALUE;
+    private volatile long reservedUntil = Long.MIN_VALUE;
+
+    /**
+     * @param bi initiator used to download the queued objects
+     * @param capacity number of objects the camera buffer can hold
+     */
+    public DownloadQueue(BaselineInitiator bi, int capacity) {
+        this.bi = bi;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<Item>(capacity);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        consumerThread = new Thread(this, TAG);
+        consumerThread.start();
+    }
+
+    /**
+     * Stops the consumer thread; objects still queued are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (consumerThread != null) {
+            consumerThread.interrupt();
+            consumerThread = null;
+        }
+        if (queue.size() > 0) {
+            Log.d(TAG, "stop with " + queue.size() + " objects not downloaded");
+            queue.clear();
+        }
+    }
+
+    /**
+     * Queues an object, blocking while the queue is full.
+     *
+     * @return true once the object has been queued
+     */
+    public boolean enqueue(int handle, int size, String filename, boolean inMemory)
+            throws InterruptedException {
+        Item item = new Item(handle, size, filename, inMemory);
+        if (!queue.offer(item)) {
+            Log.d(TAG, "queue full, waiting for consumer, handle -> " + Integer.toHexString(handle));
+            queue.put(item);
+        }
+        enqueuedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Whether another object of the given size fits in both the queue and
+     * the phone storage.
+     */
+    public boolean hasRoom(long expectedBytes) {
+        return queue.remainingCapacity() > 0 && isStorageAvailable(expectedBytes);
+    }
+
+    /**
+     * Blocks until {@link #hasRoom(long)} is true.
+     */
+    public void awaitRoom(long expectedBytes) throws InterruptedException {
+        while (!hasRoom(expectedBytes)) {
+            Thread.sleep(STORAGE_CHECK_INTERVAL / 10);
+        }
+    }
+
+    /**
+     * Reserves the USB bus for a capture.  A download which is not expected
+     * to finish before from is held back until the window has passed, so
+     * it cannot delay the capture command.
+     *
+     * @param from start of the window, in SystemClock.elapsedRealtimeNanos
+     * @param until end of the window, in SystemClock.elapsedRealtimeNanos
+     */
+    public void reserveBus(long from, long until) {
+        reservedUntil = until;
+        reservedFrom = from;
+    }
+
+    public void clearReservation() {
+        reservedFrom = Long.MAX_VALUE;
+        reservedUntil = Long.MIN_VALUE;
+    }
+
+    /**
+     * Estimated time the download of an object keeps the bus busy.
+     */
+    public long estimateDownloadNanos(long size) {
+        if (size <= 0) {
+            size = averageObjectSize;
+        }
+        return size * 1000000000L / Math.max(1, bytesPerSecond);
+    }
+
+    private boolean mayStartDownload(Item item) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (now >= reservedUntil) {
+            return true;
+        }
+        return now + estimateDownloadNanos(item.size) < reservedFrom;
+    }
+
+    private void updateEstimates(long size, long nanos) {
+        if (size <= 0 || nanos <= 0) {
+            return;
+        }
+        long speed = size * 1000000000L / nanos;
+        bytesPerSecond = (bytesPerSecond * 3 + speed) / 4;
+        averageObjectSize = (averageObjectSize * 3 + size) / 4;
+    }
+
+    public boolean isStorageAvailable(long bytes) {
+        String path = bi.getFileDownloadPath();
+        if (path == null) {
+            return true;
+        }
+        long usable = new File(path).getUsableSpace();
+        // 0 表示路径不存在或者无法获取，此时不做限制
+        return usable == 0 || usable - bytes >= minFreeBytes;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "consumer thread started");
+        int appliedPriority = Process.THREAD_PRIORITY_DEFAULT;
+        while (running) {
+            if (appliedPriority != consumerPriority) {
+                appliedPriority = consumerPriority;
+                Process.setThreadPriority(appliedPriority);
+            }
+            Item item;
+            try {
+                item = queue.poll(STORAGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    continue;
+                }
+                while (running && !isStorageAvailable(item.size)) {
+                    if (!waitingForStorage) {
+                        Log.d(TAG, "phone storage low, download paused");
+                        waitingForStorage = true;
+                    }
+                    Thread.sleep(STORAGE_CHECK_INTERVAL);
+                }
+                waitingForStorage = false;
+                while (running && !mayStartDownload(item)) {
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) {
+                break;
+            }
+
+            try {
+                long startAt = SystemClock.elapsedRealtimeNanos();
+                // 轮询模式下入队时大小未知，按实际收到的字节测量
+                long receivedBefore = bi.getBytesReceivedOnThread();
+                if (bi.downloadObject(item.handle, item.size, item.filename, item.inMemory)) {
+                    updateEstimates(bi.getBytesReceivedOnThread() - receivedBefore,
+                            SystemClock.elapsedRealtimeNanos() - startAt);
+                    downloadedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                failedCount.incrementAndGet();
+            }
+        }
+        Log.d(TAG, "consumer thread stopped");
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public int getDownloadedCount() {
+        return downloadedCount.get();
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getConsumerPriority() {
+        return consumerPriority;
+    }
+
+    /**
+     * @param consumerPriority android.os.Process.THREAD_PRIORITY_*, applied
+     *     before the next download starts
+     */
+    public void setConsumerPriority(int consumerPriority) {
+        this.consumerPriority = consumerPriority;
+    }
+
+    public boolean isWaitingForStorage() {
+        return waitingForStorage;
+    }
+
+    public long getMinFreeBytes() {
+        return minFreeBytes;
+    }
+
+    public void setMinFreeBytes(long minFreeBytes) {
+        this.minFreeBytes = minFreeBytes;
+    }
+}
@@ -0,0 +1,54 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes an object to a local file.  The file is removed if the transfer
+ * fails.
+ */
+public class FileSink implements ObjectSink {
+
+    private final File file;
+    private final FileOutputStream out;
+
+    /**
+     * Opens the file at once, so a bad path fails before the transfer
+     * starts.
+     */
+    public FileSink(File file) throws FileNotFoundException {
+        this.file = file;
+        this.out = new FileOutputStream(file);
+    }
+
+    @Override
+    public void begin(int handle, long size) throws IOException {
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        chunk.position(chunk.limit());
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException ignore) {
+        }
+        file.delete();
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,54 @@
+package cn.rainx.ptp.transfer;
+
+/**
+ * Identifies a byte range of an object on a device.
+ */
+public final class ObjectKey {
+
+    // length of a key covering the whole object
+    public static final long WHOLE = -1;
+
+    public final String device;
+    public final int handle;
+    public final long offset;
+    public final long length;
+
+    public ObjectKey(String device, int handle, long offset, long length) {
+        this.device = device;
+        this.handle = handle;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static ObjectKey whole(String device, int handle) {
+        return new ObjectKey(device, handle, 0, WHOLE);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ObjectKey)) {
+            return false;
+        }
+        ObjectKey other = (ObjectKey) o;
+        return handle == other.handle && offset == other.offset && length == other.length
+                && (device == null ? other.device == null : device.equals(other.device));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = device == null ? 0 : device.hashCode();
+        result = 31 * result + handle;
+        result = 31 * result + (int) (offset ^ (offset >>> 32));
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return device + ":0x" + Integer.toHexString(handle)
+                + (length == WHOLE ? "" : "[" + offset + "+" + length + "]");
+    }
+}
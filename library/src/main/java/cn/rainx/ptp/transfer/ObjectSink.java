@@ -0,0 +1,40 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the bytes of an object while it is read from the camera.
+ *
+ * write 收到的 chunk 是 USB 读取循环使用的池化缓冲（heap ByteBuffer，可以用
+ * array()），只在调用期间有效，需要保留的数据请自行复制。同一个对象可以同时
+ * 交给多个 sink，每个 sink 看到的 position 和 limit 都相同。
+ *
+ * @see cn.rainx.ptp.usbcamera.BaselineInitiator#importObject
+ */
+public interface ObjectSink {
+
+    /**
+     * Called once before the first chunk.
+     *
+     * @param handle object handle
+     * @param size object size in bytes, without the container header
+     */
+    void begin(int handle, long size) throws IOException;
+
+    /**
+     * Consumes chunk[position, limit).
+     */
+    void write(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called after the camera confirmed the transfer.
+     */
+    void finish() throws IOException;
+
+    /**
+     * Called instead of finish when the transfer failed or another sink
+     * failed.  Must not throw.
+     */
+    void abort();
+}
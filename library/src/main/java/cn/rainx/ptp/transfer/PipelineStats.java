@@ -0,0 +1,81 @@
+package cn.rainx.ptp.transfer;
+
+/**
+ * Counters of one or more {@link PipelinedSink}s.
+ *
+ * readerStall 是 USB 线程因为队列满（磁盘跟不上）而等待的时间，writerStall 是
+ * 写线程因为队列空（USB 跟不上）而等待的时间。
+ */
+public class PipelineStats {
+
+    private long objects;
+    private long bytes;
+    private long readerStallNanos;
+    private long writerStallNanos;
+    private int maxQueueDepth;
+    private long queueDepthSum;
+    private long queueDepthSamples;
+
+    synchronized void addObject(long objectBytes) {
+        objects++;
+        bytes += objectBytes;
+    }
+
+    synchronized void addReaderStall(long nanos) {
+        readerStallNanos += nanos;
+    }
+
+    synchronized void addWriterStall(long nanos) {
+        writerStallNanos += nanos;
+    }
+
+    synchronized void sampleQueueDepth(int depth) {
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        queueDepthSum += depth;
+        queueDepthSamples++;
+    }
+
+    public synchronized long getObjects() {
+        return objects;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getReaderStallNanos() {
+        return readerStallNanos;
+    }
+
+    public synchronized long getWriterStallNanos() {
+        return writerStallNanos;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized float getAverageQueueDepth() {
+        return queueDepthSamples == 0 ? 0 : (float) queueDepthSum / queueDepthSamples;
+    }
+
+    public synchronized void reset() {
+        objects = 0;
+        bytes = 0;
+        readerStallNanos = 0;
+        writerStallNanos = 0;
+        maxQueueDepth = 0;
+        queueDepthSum = 0;
+        queueDepthSamples = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "objects " + objects + ", bytes " + bytes
+                + ", reader stall " + readerStallNanos / 1000000 + "ms"
+                + ", writer stall " + writerStallNanos / 1000000 + "ms"
+                + ", queue depth max " + maxQueueDepth + " avg " + getAverageQueueDepth();
+    }
+}
@@ -0,0 +1,184 @@
+package cn.rainx.ptp.transfer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Moves the downstream sink onto its own writer thread.
+ *
+ * USB 线程把每一块复制到池化缓冲（小块会合并成一个缓冲，减少磁盘写入次数），
+ * 放入有界队列后立即返回继续读 USB；写线程从队列取出缓冲写入下游 sink。磁盘
+ * 跟不上时队列写满，USB 线程在 put 上阻塞（背压），反之写线程在 take 上等待，
+ * 两边的等待时间记录在 PipelineStats 中。这样磁盘的延迟尖峰（例如 SD 卡 GC）
+ * 不会直接阻塞 USB 总线，持续吞吐接近两者中较慢的一方。
+ *
+ * 下游的 begin、finish、abort 在调用者线程执行，write 在写线程执行。
+ */
+public class PipelinedSink implements ObjectSink {
+
+    public static final String TAG = "PipelinedSink";
+
+    // 队列中表示对象结束的标记
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ObjectSink downstream;
+    private final ByteBufferPool pool;
+    private final ArrayBlockingQueue<ByteBuffer> queue;
+    private final PipelineStats stats;
+
+    private ByteBuffer filling;
+    private Thread writer;
+    private volatile IOException writeError;
+    private volatile boolean aborted;
+    private long objectBytes;
+
+    /**
+     * @param downstream sink run on the writer thread
+     * @param pool buffers moved through the queue
+     * @param depth number of buffers the queue holds
+     * @param stats receives stall and queue depth metrics
+     */
+    public PipelinedSink(ObjectSink downstream, ByteBufferPool pool, int depth, PipelineStats stats) {
+        this.downstream = downstream;
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, depth));
+        this.stats = stats;
+    }
+
+    @Override
+    public void begin(int handle, long size) throws IOException {
+        queue.clear();
+        writeError = null;
+        aborted = false;
+        objectBytes = 0;
+        downstream.begin(handle, size);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG + "-" + Integer.toHexString(handle));
+        writer.start();
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+        objectBytes += chunk.remaining();
+        while (chunk.hasRemaining()) {
+            if (filling == null) {
+                filling = pool.obtain();
+            }
+            int n = Math.min(chunk.remaining(), filling.remaining());
+            filling.put(chunk.array(), chunk.arrayOffset() + chunk.position(), n);
+            chunk.position(chunk.position() + n);
+            if (!filling.hasRemaining()) {
+                enqueueFilling();
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (filling != null && filling.position() > 0) {
+            enqueueFilling();
+        }
+        put(END);
+        join();
+        if (writeError != null) {
+            throw writeError;
+        }
+        downstream.finish();
+        stats.addObject(objectBytes);
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+        if (filling != null) {
+            pool.release(filling);
+            filling = null;
+        }
+        try {
+            put(END);
+        } catch (IOException ignore) {
+        }
+        join();
+        downstream.abort();
+    }
+
+    private void enqueueFilling() throws IOException {
+        filling.flip();
+        ByteBuffer buffer = filling;
+        filling = null;
+        put(buffer);
+    }
+
+    private void put(ByteBuffer buffer) throws IOException {
+        stats.sampleQueueDepth(queue.size());
+        if (queue.offer(buffer)) {
+            return;
+        }
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } finally {
+            stats.addReaderStall(SystemClock.elapsedRealtimeNanos() - startedAt);
+        }
+    }
+
+    private void join() {
+        Thread t = writer;
+        writer = null;
+        if (t == null) {
+            return;
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 写线程，出错或中止后仍然取空队列，保证 USB 线程不会阻塞
+    private void drain() {
+        while (true) {
+            ByteBuffer buffer = queue.poll();
+            if (buffer == null) {
+                long startedAt = SystemClock.elapsedRealtimeNanos();
+                try {
+                    buffer = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    stats.addWriterStall(SystemClock.elapsedRealtimeNanos() - startedAt);
+                }
+            }
+            if (buffer == END) {
+                return;
+            }
+            if (writeError == null && !aborted) {
+                try {
+                    downstream.write(buffer);
+                } catch (IOException e) {
+                    Log.d(TAG, "write failed: " + e.getMessage());
+                    writeError = e;
+                }
+            }
+            pool.release(buffer);
+        }
+    }
+
+    public ObjectSink getDownstream() {
+        return downstream;
+    }
+}
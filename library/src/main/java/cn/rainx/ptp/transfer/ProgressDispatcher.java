@@ -0,0 +1,215 @@
+package cn.rainx.ptp.transfer;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.rainx.ptp.interfaces.TransferProgressListener;
+import cn.rainx.ptp.usbcamera.BaselineInitiator;
+
+/**
+ * Reports transfer progress from its own thread at a bounded rate.
+ *
+ * USB 读取循环每读一块只调用 {@link Transfer#add} 更新一个原子计数，不直接调用
+ * 任何回调。分发线程每隔 interval 检查所有进行中的传输，每个传输的进度前进超过
+ * step 时才回调，并附带该传输滑动平均的速度和预计剩余时间。下载可能并发进行，
+ * 每个传输有自己的计数和状态；每个传输结束时的最终进度总会回调一次。
+ */
+public class ProgressDispatcher implements Runnable {
+
+    public static final String TAG = "ProgressDispatcher";
+
+    // 速度滑动平均的权重
+    private static final double THROUGHPUT_ALPHA = 0.3;
+
+    /**
+     * One transfer, returned by {@link #begin}.
+     */
+    public static class Transfer {
+        final int handle;
+        final long total;
+        final AtomicLong transferred = new AtomicLong();
+        // 由 lock 保护
+        boolean ended;
+
+        // 只在分发线程中使用
+        long reportedBytes = -1;
+        long sampleBytes;
+        long sampleAt;
+        double bytesPerSecond;
+
+        Transfer(int handle, long total) {
+            this.handle = handle;
+            this.total = total;
+        }
+
+        /**
+         * Called by the read loop for every chunk.
+         */
+        public void add(long bytes) {
+            transferred.addAndGet(bytes);
+        }
+
+        public int getHandle() {
+            return handle;
+        }
+    }
+
+    private final BaselineInitiator bi;
+    private final TransferProgressListener listener;
+
+    private final Object lock = new Object();
+    // 进行中和已结束但还没有最终回调的传输，由 lock 保护
+    private final List<Transfer> transfers = new ArrayList<Transfer>();
+    private boolean endedPending;
+
+    private volatile long intervalMs = 100;
+    private volatile int stepPercent = 0;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param bi initiator passed to the listener
+     * @param listener receives the coalesced updates on the dispatcher thread
+     */
+    public ProgressDispatcher(BaselineInitiator bi, TransferProgressListener listener) {
+        this.bi = bi;
+        this.listener = listener;
+    }
+
+    /**
+     * Called by the read loop before the first chunk.  Starts the
+     * dispatcher thread on first use.
+     *
+     * @return the transfer to add the chunks to and to end
+     */
+    public Transfer begin(int handle, long total) {
+        Transfer transfer = new Transfer(handle, total);
+        transfer.sampleAt = SystemClock.elapsedRealtime();
+        synchronized (lock) {
+            transfers.add(transfer);
+            lock.notifyAll();
+            if (!running) {
+                running = true;
+                thread = new Thread(this, TAG);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return transfer;
+    }
+
+    /**
+     * Called by the read loop when the transfer is over.
+     */
+    public void end(Transfer transfer) {
+        synchronized (lock) {
+            if (transfer.ended) {
+                return;
+            }
+            transfer.ended = true;
+            endedPending = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+            thread = null;
+            transfers.clear();
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Transfer> snapshot = new ArrayList<Transfer>();
+        List<Boolean> ended = new ArrayList<Boolean>();
+        while (true) {
+            synchronized (lock) {
+                if (!running) {
+                    return;
+                }
+                if (!endedPending) {
+                    try {
+                        // 空闲时不轮询
+                        lock.wait(transfers.isEmpty() ? 0 : intervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                endedPending = false;
+                snapshot.clear();
+                ended.clear();
+                for (int i = 0; i < transfers.size(); i++) {
+                    Transfer transfer = transfers.get(i);
+                    snapshot.add(transfer);
+                    ended.add(transfer.ended);
+                    if (transfer.ended) {
+                        transfers.remove(i--);
+                    }
+                }
+            }
+            for (int i = 0; i < snapshot.size(); i++) {
+                report(snapshot.get(i), ended.get(i));
+            }
+        }
+    }
+
+    private void report(Transfer transfer, boolean isFinal) {
+        long now = SystemClock.elapsedRealtime();
+        long bytes = transfer.transferred.get();
+        long t = transfer.total;
+
+        long elapsed = now - transfer.sampleAt;
+        if (elapsed > 0 && bytes > transfer.sampleBytes) {
+            double rate = (bytes - transfer.sampleBytes) * 1000.0 / elapsed;
+            transfer.bytesPerSecond = transfer.bytesPerSecond == 0 ? rate
+                    : THROUGHPUT_ALPHA * rate + (1 - THROUGHPUT_ALPHA) * transfer.bytesPerSecond;
+            transfer.sampleBytes = bytes;
+            transfer.sampleAt = now;
+        }
+
+        if (!isFinal) {
+            if (bytes == transfer.reportedBytes) {
+                return;
+            }
+            long step = t * stepPercent / 100;
+            if (transfer.reportedBytes >= 0 && bytes - transfer.reportedBytes < step) {
+                return;
+            }
+        }
+        transfer.reportedBytes = bytes;
+
+        long bps = (long) transfer.bytesPerSecond;
+        long eta = isFinal ? 0 : (bps > 0 && t > 0 ? (t - bytes) * 1000 / bps : -1);
+        listener.onTransferProgress(bi, transfer.handle, t, bytes, bps, eta);
+    }
+
+    /**
+     * @param intervalMs minimal time between two updates of one transfer
+     */
+    public void setInterval(long intervalMs) {
+        this.intervalMs = Math.max(1, intervalMs);
+    }
+
+    public long getInterval() {
+        return intervalMs;
+    }
+
+    /**
+     * @param stepPercent minimal progress between two updates, in percent
+     *     of the object size; 0 reports on every interval with progress
+     */
+    public void setStep(int stepPercent) {
+        this.stepPercent = Math.max(0, Math.min(100, stepPercent));
+    }
+
+    public int getStep() {
+        return stepPercent;
+    }
+}
@@ -0,0 +1,142 @@
+package cn.rainx.ptp.transfer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import cn.rainx.ptp.usbcamera.ObjectInfo;
+
+/**
+ * The objects of one exposure: files in the same association which share
+ * a basename, such as IMG_0001.JPG and IMG_0001.CR3.
+ *
+ * 不区分大小写比较文件名；没有扩展名或不认识的格式也会归入同名的 shot。
+ */
+public class Shot {
+
+    private static final String[] RAW_EXTENSIONS = {
+            "3FR", "ARW", "CR2", "CR3", "CRW", "DCR", "DNG", "ERF", "IIQ", "K25", "MRW",
+            "NEF", "NRW", "ORF", "PEF", "RAF", "RW2", "RWL", "SR2", "SRF", "SRW", "X3F" };
+    private static final String[] JPEG_EXTENSIONS = { "JPG", "JPEG", "HEIC", "HIF" };
+
+    private final int parentObject;
+    private final String basename;
+    private final List<ObjectInfo> jpegs = new ArrayList<ObjectInfo>();
+    private final List<ObjectInfo> raws = new ArrayList<ObjectInfo>();
+    private final List<ObjectInfo> others = new ArrayList<ObjectInfo>();
+
+    Shot(int parentObject, String basename) {
+        this.parentObject = parentObject;
+        this.basename = basename;
+    }
+
+    void add(ObjectInfo info) {
+        if (isRaw(info)) {
+            raws.add(info);
+        } else if (isJpeg(info)) {
+            jpegs.add(info);
+        } else {
+            others.add(info);
+        }
+    }
+
+    /**
+     * Groups objects into shots, in the order their first object appears.
+     */
+    public static List<Shot> pair(List<ObjectInfo> infos) {
+        // 整张卡时对象很多，按文件夹和文件名查找，保持第一次出现的顺序
+        Map<String, Shot> shots = new LinkedHashMap<String, Shot>();
+        for (ObjectInfo info : infos) {
+            String basename = basename(info.getFilename());
+            String key = info.getParentObject() + "/" + basename;
+            Shot shot = shots.get(key);
+            if (shot == null) {
+                shot = new Shot(info.getParentObject(), basename);
+                shots.put(key, shot);
+            }
+            shot.add(info);
+        }
+        return new ArrayList<Shot>(shots.values());
+    }
+
+    public static boolean isRaw(ObjectInfo info) {
+        return hasExtension(info.getFilename(), RAW_EXTENSIONS);
+    }
+
+    public static boolean isJpeg(ObjectInfo info) {
+        return info.getObjectFormatCode() == ObjectInfo.EXIF_JPEG
+                || hasExtension(info.getFilename(), JPEG_EXTENSIONS);
+    }
+
+    static String basename(String filename) {
+        if (filename == null) {
+            return "";
+        }
+        int dot = filename.lastIndexOf('.');
+        return (dot > 0 ? filename.substring(0, dot) : filename).toUpperCase(Locale.US);
+    }
+
+    private static boolean hasExtension(String filename, String[] extensions) {
+        if (filename == null) {
+            return false;
+        }
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        String extension = filename.substring(dot + 1).toUpperCase(Locale.US);
+        for (String e : extensions) {
+            if (e.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getParentObject() {
+        return parentObject;
+    }
+
+    /**
+     * @return the basename shared by the objects, upper case
+     */
+    public String getBasename() {
+        return basename;
+    }
+
+    public List<ObjectInfo> getJpegs() {
+        return Collections.unmodifiableList(jpegs);
+    }
+
+    public List<ObjectInfo> getRaws() {
+        return Collections.unmodifiableList(raws);
+    }
+
+    /**
+     * @return objects which are neither RAW nor JPEG, such as videos
+     */
+    public List<ObjectInfo> getOthers() {
+        return Collections.unmodifiableList(others);
+    }
+
+    /**
+     * @return true for a RAW+JPEG shot
+     */
+    public boolean isPair() {
+        return !raws.isEmpty() && !jpegs.isEmpty();
+    }
+
+    /**
+     * @return all objects, JPEGs first
+     */
+    public List<ObjectInfo> getObjects() {
+        List<ObjectInfo> objects = new ArrayList<ObjectInfo>(jpegs.size() + raws.size() + others.size());
+        objects.addAll(jpegs);
+        objects.addAll(others);
+        objects.addAll(raws);
+        return objects;
+    }
+}
@@ -0,0 +1,147 @@
+package cn.rainx.ptp.transfer;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cn.rainx.ptp.params.SyncParams;
+import cn.rainx.ptp.usbcamera.ObjectInfo;
+
+/**
+ * Orders the downloads of a batch of new shots so JPEGs are not held up
+ * behind their RAW companions, see SyncParams.RAW_DOWNLOAD_*.
+ *
+ * 延后的 RAW 保存在这里，直到没有新照片超过 idleDelay，或者 setCharging(true)，
+ * 由 takeDue 取出。取出后下载失败的对象不在已同步列表中，下一次轮询会作为新增
+ * 对象重新安排。只在轮询线程中使用。
+ */
+public class ShotScheduler {
+
+    public static final long DEFAULT_IDLE_DELAY = 5000; // ms
+
+    private volatile int policy;
+    private volatile long idleDelay = DEFAULT_IDLE_DELAY;
+    private volatile boolean charging = false;
+
+    // handle -> ObjectInfo，按延后的先后顺序
+    private final Map<Integer, ObjectInfo> deferred = new LinkedHashMap<Integer, ObjectInfo>();
+    private long lastActivityAt = 0;
+
+    /**
+     * @param policy SyncParams.RAW_DOWNLOAD_*
+     */
+    public ShotScheduler(int policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the objects of the batch to download now, in order; RAWs the
+     * policy defers are kept until {@link #takeDue}.
+     */
+    public List<ObjectInfo> schedule(List<Shot> shots) {
+        List<ObjectInfo> now = new ArrayList<ObjectInfo>();
+        if (shots.isEmpty()) {
+            return now;
+        }
+        lastActivityAt = SystemClock.elapsedRealtime();
+        if (policy == SyncParams.RAW_DOWNLOAD_IN_ORDER) {
+            for (Shot shot : shots) {
+                now.addAll(shot.getObjects());
+            }
+            return now;
+        }
+        List<ObjectInfo> raws = new ArrayList<ObjectInfo>();
+        for (Shot shot : shots) {
+            now.addAll(shot.getJpegs());
+            now.addAll(shot.getOthers());
+            raws.addAll(shot.getRaws());
+        }
+        if (policy == SyncParams.RAW_DOWNLOAD_AFTER_JPEG) {
+            now.addAll(raws);
+        } else {
+            for (ObjectInfo raw : raws) {
+                deferred.put(raw.getHandle(), raw);
+            }
+        }
+        return now;
+    }
+
+    /**
+     * Returns the deferred RAWs which may be downloaded now and forgets
+     * them.
+     */
+    public List<ObjectInfo> takeDue() {
+        List<ObjectInfo> due = new ArrayList<ObjectInfo>();
+        if (deferred.isEmpty() || !isDue()) {
+            return due;
+        }
+        due.addAll(deferred.values());
+        deferred.clear();
+        return due;
+    }
+
+    private boolean isDue() {
+        switch (policy) {
+            case SyncParams.RAW_DOWNLOAD_WHEN_IDLE:
+                return SystemClock.elapsedRealtime() - lastActivityAt >= idleDelay;
+            case SyncParams.RAW_DOWNLOAD_WHEN_CHARGING:
+                return charging;
+            default:
+                // 策略被改回不延后
+                return true;
+        }
+    }
+
+    /**
+     * Drops deferred objects which are no longer on the camera.
+     */
+    public void retain(Collection<Integer> handles) {
+        Iterator<Integer> it = deferred.keySet().iterator();
+        while (it.hasNext()) {
+            if (!handles.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return handles of the deferred objects
+     */
+    public Set<Integer> getDeferredHandles() {
+        return deferred.keySet();
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(int policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @param idleDelay time without new objects after which deferred RAWs
+     *     are downloaded under RAW_DOWNLOAD_WHEN_IDLE
+     */
+    public void setIdleDelay(long idleDelay) {
+        this.idleDelay = idleDelay;
+    }
+
+    public boolean isCharging() {
+        return charging;
+    }
+
+    /**
+     * The library has no Context; the app forwards the charging state from
+     * its ACTION_POWER_CONNECTED / ACTION_POWER_DISCONNECTED receiver.
+     */
+    public void setCharging(boolean charging) {
+        this.charging = charging;
+    }
+}
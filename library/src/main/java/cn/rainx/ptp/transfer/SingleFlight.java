@@ -0,0 +1,98 @@
+package cn.rainx.ptp.transfer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs at most one call per key at a time; callers arriving while a call
+ * for their key is in flight wait for it and share its result.
+ *
+ * 自动下载、界面手动下载和预览可能同时请求同一个对象，这里保证它们只占用一次
+ * USB 传输。
+ */
+public class SingleFlight<K, V> {
+
+    private static class Flight<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        Throwable error;
+    }
+
+    private final Map<K, Flight<V>> flights = new HashMap<K, Flight<V>>();
+    private long calls;
+    private long sharedCalls;
+
+    /**
+     * Runs call, or waits for the call already running for key.
+     *
+     * @return the result of the call that ran
+     * @throws Exception the exception of the call that ran; waiting callers
+     *     get an Error of the call wrapped in an ExecutionException
+     */
+    public V run(K key, Callable<V> call) throws Exception {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (flights) {
+            calls++;
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight<V>();
+                flights.put(key, flight);
+                leader = true;
+            } else {
+                sharedCalls++;
+            }
+        }
+
+        if (!leader) {
+            flight.done.await();
+            if (flight.error instanceof Exception) {
+                throw (Exception) flight.error;
+            }
+            if (flight.error != null) {
+                throw new ExecutionException(flight.error);
+            }
+            return flight.value;
+        }
+
+        try {
+            flight.value = call.call();
+            return flight.value;
+        } catch (Throwable t) {
+            flight.error = t;
+            throw t;
+        } finally {
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return whether a call for key is in flight
+     */
+    public boolean isInFlight(K key) {
+        synchronized (flights) {
+            return flights.containsKey(key);
+        }
+    }
+
+    public long getCalls() {
+        synchronized (flights) {
+            return calls;
+        }
+    }
+
+    /**
+     * @return calls served by another caller's flight
+     */
+    public long getSharedCalls() {
+        synchronized (flights) {
+            return sharedCalls;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package cn.rainx.ptp.transfer;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.rainx.ptp.db.ObjectMetadata;
+import cn.rainx.ptp.params.SyncParams;
+import cn.rainx.ptp.usbcamera.ObjectInfo;
+
+/**
+ * Download plan of the objects waiting to be synced, in the order given by
+ * SyncParams.SYNC_ORDER_*, with estimated times of arrival.
+ *
+ * 新对象按顺序插入到已有计划中，不需要重新排序整个计划，所以整张卡同步时新拍的
+ * 照片可以随时插到最前面。拍摄时间优先使用元数据目录中 EXIF 的时间，没有时使用
+ * ObjectInfo 的 CaptureDate。同一次拍摄中 JPEG 总是在 RAW 之前。
+ *
+ * 预计时间由 {@link ThroughputModel} 计算，模型随下载更新，所以每次查询都按最新的
+ * 速度估算。所有方法都加锁，计划可以在下载线程之外读取。
+ */
+public class SyncPlanner {
+
+    // 大小未知（超过 4G）时估算用的对象大小
+    private static final long DEFAULT_OBJECT_SIZE = 8L * 1024 * 1024;
+
+    // 同一次拍摄中的下载先后
+    private static final int KIND_JPEG = 0;
+    private static final int KIND_OTHER = 1;
+    private static final int KIND_RAW = 2;
+
+    /**
+     * One object of the plan.
+     */
+    public static class Item {
+        private final ObjectInfo info;
+        private final long size;
+        private final long captureTime;
+        private final int kind;
+        private final int parent;
+        private final String basename;
+        private final String shotKey;
+        private final long sequence;
+        private boolean pair;
+        private long etaMillis = -1;
+
+        Item(ObjectInfo info, long captureTime, long sequence) {
+            this.info = info;
+            long objectSize = info.getObjectCompressedSize() & 0xffffffffL;
+            this.size = objectSize == 0xffffffffL ? -1 : objectSize;
+            this.captureTime = captureTime;
+            this.kind = Shot.isRaw(info) ? KIND_RAW : Shot.isJpeg(info) ? KIND_JPEG : KIND_OTHER;
+            this.parent = info.getParentObject();
+            this.basename = Shot.basename(info.getFilename());
+            this.shotKey = parent + "/" + basename;
+            this.sequence = sequence;
+        }
+
+        Item(Item item, long etaMillis) {
+            this.info = item.info;
+            this.size = item.size;
+            this.captureTime = item.captureTime;
+            this.kind = item.kind;
+            this.parent = item.parent;
+            this.basename = item.basename;
+            this.shotKey = item.shotKey;
+            this.sequence = item.sequence;
+            this.pair = item.pair;
+            this.etaMillis = etaMillis;
+        }
+
+        public ObjectInfo getInfo() {
+            return info;
+        }
+
+        public int getHandle() {
+            return info.getHandle();
+        }
+
+        /**
+         * @return size in bytes, -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return capture time in milliseconds, -1 if unknown
+         */
+        public long getCaptureTime() {
+            return captureTime;
+        }
+
+        /**
+         * @return true if the item belongs to a RAW+JPEG shot in the plan
+         */
+        public boolean isPair() {
+            return pair;
+        }
+
+        /**
+         * @return estimated time until the item is downloaded, counted from
+         *     the snapshot, see {@link SyncPlanner#getPlan}
+         */
+        public long getEtaMillis() {
+            return etaMillis;
+        }
+
+        long estimatedSize() {
+            return size >= 0 ? size : DEFAULT_OBJECT_SIZE;
+        }
+    }
+
+    private final ThroughputModel model;
+    private int order;
+    private boolean rawsLast = false;
+
+    private final List<Item> items = new ArrayList<Item>();
+    private final Map<Integer, Item> byHandle = new HashMap<Integer, Item>();
+    private final Map<String, List<Item>> shots = new HashMap<String, List<Item>>();
+    private long sequence;
+    private long plannedBytes;
+
+    // 正在下载的对象
+    private Item current;
+    private long currentStartedAt;
+
+    private final Comparator<Item> comparator = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            int c = 0;
+            if (rawsLast) {
+                c = compareInts(a.kind == KIND_RAW ? 1 : 0, b.kind == KIND_RAW ? 1 : 0);
+            }
+            if (c == 0) {
+                switch (order) {
+                    case SyncParams.SYNC_ORDER_NEWEST_FIRST:
+                        c = compareNewest(a, b);
+                        break;
+                    case SyncParams.SYNC_ORDER_SMALLEST_FIRST:
+                        c = compareLongs(a.estimatedSize(), b.estimatedSize());
+                        break;
+                    case SyncParams.SYNC_ORDER_PAIRS_FIRST:
+                        c = compareInts(a.pair ? 0 : 1, b.pair ? 0 : 1);
+                        if (c == 0) {
+                            c = compareNewest(a, b);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (c == 0 && order != SyncParams.SYNC_ORDER_CAMERA) {
+                c = compareInts(a.kind, b.kind);
+            }
+            return c != 0 ? c : compareLongs(a.sequence, b.sequence);
+        }
+    };
+
+    /**
+     * @param order SyncParams.SYNC_ORDER_*
+     * @param model speed model the estimates are computed with
+     */
+    public SyncPlanner(int order, ThroughputModel model) {
+        this.order = order;
+        this.model = model;
+    }
+
+    /**
+     * Adds new objects to the plan; objects already planned are ignored.
+     *
+     * @param metadata catalog entries in the order of infos, null entries
+     *     or a null list if not known
+     */
+    public synchronized void add(List<ObjectInfo> infos, List<ObjectMetadata> metadata) {
+        for (int i = 0; i < infos.size(); i++) {
+            ObjectInfo info = infos.get(i);
+            if (byHandle.containsKey(info.getHandle())
+                    || (current != null && current.getHandle() == info.getHandle())) {
+                continue;
+            }
+            ObjectMetadata m = metadata != null ? metadata.get(i) : null;
+            long captureTime = m != null && m.getCaptureTime() != null ? m.getCaptureTime() : info.getCaptureTime();
+            Item item = new Item(info, captureTime, sequence++);
+
+            List<Item> shot = shots.get(item.shotKey);
+            if (shot == null) {
+                shot = new ArrayList<Item>(2);
+                shots.put(item.shotKey, shot);
+            }
+            shot.add(item);
+            if (!shot.get(0).pair && isPair(shot)) {
+                // 另一半已经在计划中，整个 shot 按配对重新插入
+                for (Item other : shot) {
+                    if (other != item) {
+                        unlink(other);
+                    }
+                    other.pair = true;
+                }
+                for (Item other : shot) {
+                    if (other != item) {
+                        insert(other);
+                    }
+                }
+            } else {
+                item.pair = shot.get(0).pair;
+            }
+            insert(item);
+        }
+    }
+
+    /**
+     * Takes the next object to download; it counts as in progress until
+     * {@link #complete}.
+     *
+     * @return the next object, or null if the plan is empty
+     */
+    public synchronized ObjectInfo poll() {
+        if (items.isEmpty()) {
+            return null;
+        }
+        Item item = items.get(0);
+        remove(item);
+        current = item;
+        currentStartedAt = SystemClock.elapsedRealtime();
+        return item.info;
+    }
+
+    /**
+     * Marks the object taken by {@link #poll} as done, downloaded or not.
+     */
+    public synchronized void complete(int handle) {
+        if (current != null && current.getHandle() == handle) {
+            current = null;
+        }
+    }
+
+    /**
+     * Drops an object from the plan, for example when it left the camera.
+     */
+    public synchronized void remove(int handle) {
+        Item item = byHandle.get(handle);
+        if (item != null) {
+            remove(item);
+        }
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        byHandle.clear();
+        shots.clear();
+        plannedBytes = 0;
+        current = null;
+    }
+
+    /**
+     * @return snapshot of the plan, in download order, with the ETA of
+     *     every item
+     */
+    public synchronized List<Item> getPlan() {
+        List<Item> plan = new ArrayList<Item>(items.size());
+        long eta = currentRemainingMillis();
+        for (Item item : items) {
+            eta += model.estimateMillis(1, item.estimatedSize());
+            plan.add(new Item(item, eta));
+        }
+        return plan;
+    }
+
+    /**
+     * @return estimated time until the object is downloaded, -1 if it is
+     *     not in the plan
+     */
+    public synchronized long getEtaMillis(int handle) {
+        Item target = byHandle.get(handle);
+        if (target == null) {
+            return current != null && current.getHandle() == handle ? currentRemainingMillis() : -1;
+        }
+        int index = Collections.binarySearch(items, target, comparator);
+        long bytes = 0;
+        for (int i = 0; i <= index; i++) {
+            bytes += items.get(i).estimatedSize();
+        }
+        return currentRemainingMillis() + model.estimateMillis(index + 1, bytes);
+    }
+
+    /**
+     * @return estimated time until the whole plan is downloaded
+     */
+    public synchronized long getEtaMillis() {
+        return currentRemainingMillis() + model.estimateMillis(items.size(), plannedBytes);
+    }
+
+    /**
+     * @return number of objects waiting, the one in progress excluded
+     */
+    public synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * @return bytes waiting, unknown sizes estimated
+     */
+    public synchronized long getRemainingBytes() {
+        return plannedBytes;
+    }
+
+    public synchronized int getOrder() {
+        return order;
+    }
+
+    /**
+     * Changes the order; the plan is sorted again.
+     *
+     * @param order SyncParams.SYNC_ORDER_*
+     */
+    public synchronized void setOrder(int order) {
+        this.order = order;
+        Collections.sort(items, comparator);
+    }
+
+    /**
+     * @param rawsLast true to plan every RAW after every other object, see
+     *     SyncParams.RAW_DOWNLOAD_AFTER_JPEG
+     */
+    public synchronized void setRawsLast(boolean rawsLast) {
+        if (this.rawsLast != rawsLast) {
+            this.rawsLast = rawsLast;
+            Collections.sort(items, comparator);
+        }
+    }
+
+    public ThroughputModel getModel() {
+        return model;
+    }
+
+    private long currentRemainingMillis() {
+        if (current == null) {
+            return 0;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - currentStartedAt;
+        return Math.max(0, model.estimateMillis(1, current.estimatedSize()) - elapsed);
+    }
+
+    private void insert(Item item) {
+        int index = Collections.binarySearch(items, item, comparator);
+        items.add(index < 0 ? -index - 1 : index, item);
+        byHandle.put(item.getHandle(), item);
+        plannedBytes += item.estimatedSize();
+    }
+
+    // 从有序列表中移除，必须在修改排序字段之前调用
+    private void unlink(Item item) {
+        int index = Collections.binarySearch(items, item, comparator);
+        if (index >= 0) {
+            items.remove(index);
+            byHandle.remove(item.getHandle());
+            plannedBytes -= item.estimatedSize();
+        }
+    }
+
+    private void remove(Item item) {
+        unlink(item);
+        List<Item> shot = shots.get(item.shotKey);
+        if (shot != null) {
+            shot.remove(item);
+            if (shot.isEmpty()) {
+                shots.remove(item.shotKey);
+            }
+        }
+    }
+
+    private static boolean isPair(List<Item> shot) {
+        boolean jpeg = false;
+        boolean raw = false;
+        for (Item item : shot) {
+            jpeg |= item.kind == KIND_JPEG;
+            raw |= item.kind == KIND_RAW;
+        }
+        return jpeg && raw;
+    }
+
+    // 拍摄时间未知的排在最后；时间相同时按文件夹和文件名从大到小（相机的编号
+    // 递增），同一次拍摄的对象排在一起
+    private static int compareNewest(Item a, Item b) {
+        int c;
+        if (a.captureTime >= 0 && b.captureTime >= 0) {
+            c = compareLongs(b.captureTime, a.captureTime);
+        } else {
+            c = compareInts(a.captureTime >= 0 ? 0 : 1, b.captureTime >= 0 ? 0 : 1);
+        }
+        if (c == 0) {
+            c = compareLongs(b.parent & 0xffffffffL, a.parent & 0xffffffffL);
+        }
+        return c != 0 ? c : b.basename.compareTo(a.basename);
+    }
+
+    private static int compareInts(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
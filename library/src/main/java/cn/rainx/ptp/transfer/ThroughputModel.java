@@ -0,0 +1,92 @@
+package cn.rainx.ptp.transfer;
+
+/**
+ * Live estimate of how long an object takes to download: a fixed cost per
+ * object plus its size divided by the transfer speed.
+ *
+ * 速度由每次数据传输阶段测量（recordTransfer），每个对象的固定开销（GetObjectInfo、
+ * 创建文件、命令往返）由整个对象的处理时间减去按速度计算的传输时间得到
+ * （recordObject）。两者都是滑动平均，还没有测量数据时使用默认值。
+ */
+public class ThroughputModel {
+
+    public static final long DEFAULT_BYTES_PER_SECOND = 10L * 1024 * 1024;
+    public static final long DEFAULT_OVERHEAD_MILLIS = 50;
+
+    // 太小的传输主要是命令开销，不用于测量速度
+    private static final long MIN_RATE_SAMPLE_BYTES = 256 * 1024;
+    // 滑动平均的权重
+    private static final double ALPHA = 0.2;
+
+    private double bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private double overheadMillis = DEFAULT_OVERHEAD_MILLIS;
+    private boolean rateMeasured = false;
+    private boolean overheadMeasured = false;
+    private long samples;
+
+    /**
+     * Records the data phase of one transfer.
+     */
+    public synchronized void recordTransfer(long bytes, long nanos) {
+        if (bytes < MIN_RATE_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1000000000.0 / nanos;
+        bytesPerSecond = rateMeasured ? ALPHA * rate + (1 - ALPHA) * bytesPerSecond : rate;
+        rateMeasured = true;
+        samples++;
+    }
+
+    /**
+     * Records the whole handling of one object, transfer included.
+     */
+    public synchronized void recordObject(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double elapsedMillis = nanos / 1000000.0;
+        double transferMillis = Math.max(0, bytes) * 1000.0 / bytesPerSecond;
+        if (elapsedMillis < transferMillis / 2) {
+            // 没有传输数据，例如被同步规则跳过
+            return;
+        }
+        double overhead = Math.max(0, elapsedMillis - transferMillis);
+        overheadMillis = overheadMeasured ? ALPHA * overhead + (1 - ALPHA) * overheadMillis : overhead;
+        overheadMeasured = true;
+    }
+
+    /**
+     * @return estimated time to download the objects, bytes in total
+     */
+    public synchronized long estimateMillis(int objects, long bytes) {
+        return (long) (objects * overheadMillis + bytes * 1000.0 / bytesPerSecond);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    public synchronized long getOverheadMillis() {
+        return (long) overheadMillis;
+    }
+
+    /**
+     * @return number of transfers the speed was measured on
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized void reset() {
+        bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        overheadMillis = DEFAULT_OVERHEAD_MILLIS;
+        rateMeasured = false;
+        overheadMeasured = false;
+        samples = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (long) bytesPerSecond + " B/s, " + (long) overheadMillis + " ms per object";
+    }
+}
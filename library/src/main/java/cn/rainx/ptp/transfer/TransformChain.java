@@ -0,0 +1,101 @@
+package cn.rainx.ptp.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes every chunk through a list of transforms, in order, and hands the
+ * result to the downstream sinks.  Each USB chunk is processed once while
+ * it is in memory, so hashing, checksums and encryption no longer need
+ * their own pass over the file.
+ *
+ * 例如 SHA-256 → AES/CTR → FileSink：哈希基于明文，写入磁盘的是密文。
+ */
+public class TransformChain implements ObjectSink {
+
+    private final List<ChunkTransform> transforms = new ArrayList<ChunkTransform>();
+    private final ObjectSink[] sinks;
+    private Map<String, byte[]> results = Collections.emptyMap();
+
+    /**
+     * @param sinks receivers of the transformed bytes
+     */
+    public TransformChain(ObjectSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    public TransformChain add(ChunkTransform transform) {
+        transforms.add(transform);
+        return this;
+    }
+
+    public TransformChain addAll(List<ChunkTransform> transforms) {
+        this.transforms.addAll(transforms);
+        return this;
+    }
+
+    @Override
+    public void begin(int handle, long size) throws IOException {
+        results = Collections.emptyMap();
+        for (ChunkTransform transform : transforms) {
+            transform.begin(handle, size);
+        }
+        for (ObjectSink sink : sinks) {
+            sink.begin(handle, size);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        for (ChunkTransform transform : transforms) {
+            int position = chunk.position();
+            ByteBuffer out = transform.transform(chunk);
+            if (out == chunk) {
+                chunk.position(position);
+            }
+            chunk = out;
+        }
+        int position = chunk.position();
+        int limit = chunk.limit();
+        for (ObjectSink sink : sinks) {
+            chunk.limit(limit);
+            chunk.position(position);
+            sink.write(chunk);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        Map<String, byte[]> map = new LinkedHashMap<String, byte[]>();
+        for (ChunkTransform transform : transforms) {
+            byte[] result = transform.finish();
+            if (result != null) {
+                map.put(transform.getName(), result);
+            }
+        }
+        for (ObjectSink sink : sinks) {
+            sink.finish();
+        }
+        results = map;
+    }
+
+    @Override
+    public void abort() {
+        for (ObjectSink sink : sinks) {
+            sink.abort();
+        }
+    }
+
+    /**
+     * @return transform name to result (digest, checksum, IV) of the last
+     *     finished object
+     */
+    public Map<String, byte[]> getResults() {
+        return results;
+    }
+}
@@ -26,19 +26,58 @@ import android.widget.ImageView;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
 
+import cn.rainx.ptp.db.ObjectCache;
+import cn.rainx.ptp.db.ObjectMetadata;
 import cn.rainx.ptp.db.SyncDevice;
 import cn.rainx.ptp.db.SyncDeviceManager;
+import cn.rainx.ptp.detect.CameraDetector;
 import cn.rainx.ptp.interfaces.FileAddedListener;
+import cn.rainx.ptp.interfaces.FileDigestListener;
 import cn.rainx.ptp.interfaces.FileDownloadedListener;
 import cn.rainx.ptp.interfaces.FileTransferListener;
+import cn.rainx.ptp.interfaces.ShotListener;
+import cn.rainx.ptp.interfaces.SyncPlanListener;
+import cn.rainx.ptp.interfaces.TransferProgressListener;
+import cn.rainx.ptp.liveview.LiveViewFrame;
+import cn.rainx.ptp.params.SyncFilter;
 import cn.rainx.ptp.params.SyncParams;
+import cn.rainx.ptp.params.SyncRules;
+import cn.rainx.ptp.transfer.ByteBufferPool;
+import cn.rainx.ptp.transfer.ChannelSink;
+import cn.rainx.ptp.transfer.ChunkTransform;
+import cn.rainx.ptp.transfer.DownloadJournal;
+import cn.rainx.ptp.transfer.DownloadQueue;
+import cn.rainx.ptp.transfer.FileSink;
+import cn.rainx.ptp.transfer.ObjectKey;
+import cn.rainx.ptp.transfer.ObjectSink;
+import cn.rainx.ptp.transfer.PipelineStats;
+import cn.rainx.ptp.transfer.PipelinedSink;
+import cn.rainx.ptp.transfer.Shot;
+import cn.rainx.ptp.transfer.ShotScheduler;
+import cn.rainx.ptp.transfer.SingleFlight;
+import cn.rainx.ptp.transfer.SyncPlanner;
+import cn.rainx.ptp.transfer.ThroughputModel;
+import cn.rainx.ptp.transfer.ProgressDispatcher;
+import cn.rainx.ptp.transfer.TransformChain;
 import cn.rainx.ptp.usbcamera.sony.SonyInitiator;
 
 /**
@@ -107,6 +146,48 @@ public class BaselineInitiator extends NameFactory implements Runnable {
     protected List<FileAddedListener> fileAddedListenerList = new ArrayList<FileAddedListener>();
     protected List<FileDownloadedListener> fileDownloadedListenerList = new ArrayList<FileDownloadedListener>();
     protected List<FileTransferListener> fileTransferListenerList = new ArrayList<FileTransferListener>();
+    protected List<FileDigestListener> fileDigestListenerList = new ArrayList<FileDigestListener>();
+    // 同步规则，null 表示同步所有对象
+    protected volatile SyncFilter syncFilter = null;
+    // 相机不支持 GetObjectHandles 的格式和父对象参数时为 false
+    protected boolean pushdownSupported = true;
+    private final Map<Integer, String> folderNames = new HashMap<Integer, String>();
+    // 轮询列表模式下被同步规则拒绝的对象：不算新增，也不写入同步列表，规则改变后重新判断
+    private final Set<Integer> rejectedHandles = Collections.synchronizedSet(new HashSet<Integer>());
+    private SyncFilter rejectedBy;
+    private int rejectedFormat;
+
+    protected List<ShotListener> shotListenerList = new ArrayList<ShotListener>();
+    // RAW+JPEG 的下载顺序，默认保持对象列表顺序
+    protected final ShotScheduler shotScheduler = new ShotScheduler(SyncParams.RAW_DOWNLOAD_IN_ORDER);
+    protected List<TransferProgressListener> transferProgressListenerList = new ArrayList<TransferProgressListener>();
+
+    // 下载速度模型，由每次下载更新，用于估算同步计划的剩余时间
+    protected final ThroughputModel throughputModel = new ThroughputModel();
+    // 轮询模式下的下载计划，默认保持相机的对象列表顺序
+    protected final SyncPlanner syncPlanner = new SyncPlanner(SyncParams.SYNC_ORDER_CAMERA, throughputModel);
+    protected List<SyncPlanListener> syncPlanListenerList = new ArrayList<SyncPlanListener>();
+
+    // 读取循环只更新计数，进度回调由分发线程按频率合并后发出
+    protected final ProgressDispatcher progressDispatcher = new ProgressDispatcher(this,
+            new TransferProgressListener() {
+                @Override
+                public void onTransferProgress(BaselineInitiator bi, int fileHandle, long totalByteLength,
+                                               long transferredByteLength, long bytesPerSecond, long etaMillis) {
+                    for (FileTransferListener fileTransferListener : fileTransferListenerList) {
+                        fileTransferListener.onFileTranster(bi, fileHandle, (int) totalByteLength,
+                                (int) transferredByteLength);
+                    }
+                    for (TransferProgressListener transferProgressListener : transferProgressListenerList) {
+                        transferProgressListener.onTransferProgress(bi, fileHandle, totalByteLength,
+                                transferredByteLength, bytesPerSecond, etaMillis);
+                    }
+                }
+            });
+
+    // 自动下载时在数据流上依次执行的 transform（摘要、校验、加密）
+    // 每个下载由 factory 创建新的 transform 实例，下载可能并发进行
+    protected List<ChunkTransform.Factory> downloadTransforms = new ArrayList<ChunkTransform.Factory>();
 
     /// 是否自动下载文件
     protected boolean autoDownloadFile = true;
@@ -141,6 +222,75 @@ public class BaselineInitiator extends NameFactory implements Runnable {
     // 要重新关闭之后再进行openSession操作。
     protected boolean autoCloseSessionIfSessionAlreadyOpenWhenOpenSession = true;
 
+    // 拍摄目标位置，HOST 模式下照片不写入存储卡，直接从相机内存读取
+    protected int captureDestination = SyncParams.CAPTURE_DESTINATION_CARD;
+
+    // HOST 模式拍摄时，由拍摄线程负责读取相机内存中的照片，轮询线程需要暂停
+    protected volatile boolean hostCaptureInProgress = false;
+
+    // 轮询线程和拍摄线程读取相机内存中的照片时持有，同一张照片不会被读取两次
+    protected final Object hostObjectLock = new Object();
+
+    // 等待相机内存中照片就绪的超时时间
+    protected static final int HOST_CAPTURE_TIMEOUT = 15000; // ms
+
+    // 一次 bulkTransfer 读取的最大长度，API 28 之前 Android 限制为 16K
+    protected static final int BULK_READ_SIZE = 16 * 1024;
+
+    // transactReuse 使用的读缓冲，调用者持有 session 锁
+    private byte[] bulkReadBuffer;
+    // transactReuse 接受的最大数据阶段，实时取景的一帧远小于此
+    protected static final int MAX_REUSE_LENGTH = 32 * 1024 * 1024;
+    // 数据阶段中连续读到 0 字节的次数上限
+    private static final int MAX_EMPTY_READS = 3;
+
+    // importObject 读取循环使用的缓冲池
+    protected final ByteBufferPool bulkBufferPool = new ByteBufferPool(BULK_READ_SIZE, 4);
+    // 每个线程通过 ObjectReader 收到的字节数，见 getBytesReceivedOnThread
+    private final ThreadLocal<long[]> bytesReceivedOnThread = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    // 大文件（视频）按块读取，每块一个 GetPartialObject
+    protected static final long LARGE_OBJECT_SIZE = 1L << 31;
+    protected static final int LARGE_OBJECT_CHUNK = 32 * 1024 * 1024;
+    // 执行同步计划时重新列出对象的间隔
+    protected static final long REPLAN_INTERVAL = 2000; // ms
+    // 分块读取时调整块大小的阈值
+    private static final long PARTIAL_CHUNK_FAST_MS = 250;
+    private static final long PARTIAL_CHUNK_SLOW_MS = 1000;
+
+    // MTP ObjectSize 属性，64 位
+    protected static final int MTP_PROP_OBJECT_SIZE = 0xDC04;
+
+    // 自动下载时 USB 线程和写文件线程之间的队列
+    protected static final int PIPELINE_BUFFER_SIZE = 256 * 1024;
+    protected static final int PIPELINE_DEPTH = 8;
+    protected final ByteBufferPool pipelineBufferPool = new ByteBufferPool(PIPELINE_BUFFER_SIZE, PIPELINE_DEPTH + 2);
+    protected final PipelineStats pipelineStats = new PipelineStats();
+
+    // 同一对象的并发下载只执行一次
+    protected final SingleFlight<ObjectKey, DownloadedFile> fileFlights = new SingleFlight<ObjectKey, DownloadedFile>();
+    protected final SingleFlight<ObjectKey, File> cacheFlights = new SingleFlight<ObjectKey, File>();
+    protected boolean pipelinedDownloads = true;
+
+    // 本地对象缓存，为 null 时不缓存
+    protected ObjectCache objectCache;
+
+    // 属性可选值的缓存，key 为属性代码
+    protected final Map<Integer, int[]> allowedPropValues = new HashMap<Integer, int[]>();
+
+    // range 类型的属性展开为列表时的最大长度
+    protected static final int MAX_EXPANDED_RANGE = 1024;
+
+    // 下载队列，设置之后新文件只入队，由队列的消费线程下载，不再阻塞轮询线程和拍摄线程
+    protected DownloadQueue downloadQueue = null;
+    // 下载日志，进程被杀后从中断的地方继续，null 时不记录
+    protected DownloadJournal downloadJournal = null;
+
 
     // 提供一个默认的构造函数，供子类继承时使用
     protected BaselineInitiator() { };
@@ -366,6 +516,11 @@ public class BaselineInitiator extends NameFactory implements Runnable {
             pollingThread = null;
         }
 
+        if (downloadQueue != null) {
+            downloadQueue.stop();
+        }
+        progressDispatcher.stop();
+
         if (isSessionActive()) {
             try {
                 closeSession();
@@ -815,6 +970,106 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 
     }
 
+    /**
+     * Performs a transaction and reads its data phase into data.data with
+     * large bulk reads.  data.data is reused when large enough and grown
+     * otherwise; data.length is set to the number of bytes received, header
+     * included, or 0 if the device answered without a data phase.  The data
+     * is not parsed.  Caller is synchronized on session.
+     * Data phases over MAX_REUSE_LENGTH are refused.
+     *
+     * @param command the command
+     * @param data receives the data phase
+     * @param timeout bulk transfer timeout in ms
+     * @return response
+     */
+    protected Response transactReuse(Command command, Data data, int timeout)
+            throws PTPException {
+        if (bulkReadBuffer == null) {
+            bulkReadBuffer = new byte[BULK_READ_SIZE];
+        }
+        byte[] scratch = bulkReadBuffer;
+
+        mConnection.bulkTransfer(epOut, command.data, command.length, timeout);
+        if ((command.length % epOut.getMaxPacketSize()) == 0) {
+            mConnection.bulkTransfer(epOut, command.data, 0, timeout);
+        }
+
+        int len = mConnection.bulkTransfer(epIn, scratch, BULK_READ_SIZE, timeout);
+        if (len == 0) {
+            len = mConnection.bulkTransfer(epIn, scratch, BULK_READ_SIZE, timeout);
+        }
+        if (len < Container.HDR_LEN) {
+            throw new PTPException("short read: " + len);
+        }
+
+        int blockType = (scratch[4] & 0xff) | (scratch[5] & 0xff) << 8;
+        if (blockType == Container.BLOCK_TYPE_RESPONSE) {
+            // no data phase, e.g. the device is not ready yet
+            data.length = 0;
+            return copyResponse(scratch, len);
+        }
+
+        int total = Buffer.getS32(scratch, 0);
+        if (total < 0 || total > MAX_REUSE_LENGTH) {
+            throw new PTPException("data phase too long: " + (total & 0xffffffffL));
+        }
+        if (total < len) {
+            total = len;
+        }
+        if (data.data == null || data.data.length < total) {
+            data.data = new byte[total + total / 4];
+        }
+        System.arraycopy(scratch, 0, data.data, 0, len);
+        int received = len;
+        int emptyReads = 0;
+        while (received < total) {
+            int n = mConnection.bulkTransfer(epIn, scratch, Math.min(BULK_READ_SIZE, total - received), timeout);
+            if (n < 0 || (n == 0 && ++emptyReads > MAX_EMPTY_READS)) {
+                throw new PTPException("bulk read failed after " + received + " of " + total + " bytes");
+            }
+            if (n > 0) {
+                emptyReads = 0;
+            }
+            System.arraycopy(scratch, 0, data.data, received, n);
+            received += n;
+        }
+        data.length = received;
+        data.offset = 0;
+
+        len = mConnection.bulkTransfer(epIn, scratch, inMaxPS, timeout);
+        if (len == 0) {
+            // ZLP terminated the data phase
+            len = mConnection.bulkTransfer(epIn, scratch, inMaxPS, timeout);
+        }
+        return copyResponse(scratch, len);
+    }
+
+    /**
+     * Reads a live view frame returned as the data phase of a command into
+     * the frame buffer, without locating the JPEG.
+     *
+     * @param frame receives the data phase
+     * @param opcode the command code
+     * @param params zero or one command parameter
+     * @return response
+     */
+    protected Response transactLiveView(LiveViewFrame frame, int opcode, int... params)
+            throws PTPException {
+        synchronized (session) {
+            Command command = params.length == 0
+                    ? new Command(opcode, session)
+                    : new Command(opcode, session, params[0]);
+            return transactReuse(command, frame.buffer, DEFAULT_TIMEOUT);
+        }
+    }
+
+    private Response copyResponse(byte[] buf, int len) {
+        byte[] copy = new byte[Math.max(len, 0)];
+        System.arraycopy(buf, 0, copy, 0, copy.length);
+        return new Response(copy, copy.length, this);
+    }
+
     protected void endpointSanityCheck() throws PTPException {
         if (epIn == null) {
             throw new PTPException("No input end-point found!");
@@ -940,6 +1195,10 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 	public Response MoveFocus (int x) throws PTPException{
 		return null;
 	}
+
+	public boolean supportsFocusDrive () {
+		return false;
+	}
 	public Response setPictureStyle (int x) throws PTPException{
 		return null;
 	}
@@ -958,6 +1217,75 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 		return null;
 	}
 	
+	/**
+	 * Returns the values the property accepts, from the cache when possible.
+	 *
+	 * @param propcode property code
+	 * @return allowed values, or null if the camera does not tell
+	 */
+	public int[] getAllowedPropValues (int propcode) throws PTPException{
+		synchronized (allowedPropValues) {
+			if (allowedPropValues.containsKey(propcode)) {
+				return allowedPropValues.get(propcode);
+			}
+		}
+		int[] values = queryAllowedPropValues(propcode);
+		if (values != null) {
+			cacheAllowedPropValues(propcode, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the constraints of a property from its descriptor.  Vendors
+	 * which report constraints through events override this.
+	 */
+	protected int[] queryAllowedPropValues (int propcode) throws PTPException{
+		DevicePropDesc desc = getPropValue(propcode);
+		if (desc == null) {
+			return null;
+		}
+		Vector enumeration = desc.getEnumeration();
+		if (enumeration != null) {
+			int[] values = new int[enumeration.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = ((Number) enumeration.elementAt(i)).intValue();
+			}
+			return values;
+		}
+		DevicePropDesc.Range range = desc.getRange();
+		if (range != null) {
+			int min = ((Number) range.getMinimum()).intValue();
+			int max = ((Number) range.getMaximum()).intValue();
+			int step = Math.max(1, ((Number) range.getIncrement()).intValue());
+			int count = (max - min) / step + 1;
+			if (count <= 0 || count > MAX_EXPANDED_RANGE) {
+				return null;
+			}
+			int[] values = new int[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = min + i * step;
+			}
+			return values;
+		}
+		return null;
+	}
+
+	protected void cacheAllowedPropValues (int propcode, int[] values) {
+		synchronized (allowedPropValues) {
+			allowedPropValues.put(propcode, values);
+		}
+	}
+
+	/**
+	 * Drops the cached constraints, e.g. after the mode dial was turned.
+	 */
+	public void clearAllowedPropValues () {
+		synchronized (allowedPropValues) {
+			allowedPropValues.clear();
+		}
+	}
+
 	public void setupLiveview () throws PTPException{
 		
 	}
@@ -965,6 +1293,58 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 	public void getLiveView(ImageView x){
 		
 	}
+
+	/**
+	 * Switches the camera to live view output for the host.
+	 */
+	public void startLiveView () throws PTPException{
+		throw new PTPUnsupportedException("The camera does not support live view");
+	}
+
+	/**
+	 * Reads the next live view frame into frame, reusing its buffer.
+	 *
+	 * @return false if the camera has no new frame yet
+	 */
+	public boolean readLiveViewFrame (LiveViewFrame frame) throws PTPException{
+		return false;
+	}
+
+	public void stopLiveView () throws PTPException{
+
+	}
+
+	/**
+	 * Whether the camera can hold the shutter down and shoot at its
+	 * own drive-mode rate until {@link #stopContinuousRelease()}.
+	 */
+	public boolean supportsContinuousRelease () {
+		return false;
+	}
+
+	public Response startContinuousRelease () throws PTPException{
+		return null;
+	}
+
+	public Response stopContinuousRelease () throws PTPException{
+		return null;
+	}
+
+	/**
+	 * Fires a single frame as fast as possible; unlike initiateCapture
+	 * this does not wait for or drain the events of the capture.
+	 */
+	public Response releaseShutter () throws PTPException{
+		return initiateCapture(0, 0);
+	}
+
+	/**
+	 * Processes pending capture events on the calling thread, for
+	 * cameras which announce new objects through vendor events.
+	 */
+	public void pollCaptureEvents () throws PTPException{
+
+	}
 	
 	
 	public byte[] read(int timeout)
@@ -1058,177 +1438,959 @@ public class BaselineInitiator extends NameFactory implements Runnable {
      *      {@link android.os.Environment#getExternalStorageDirectory}
      * @return true if the file transfer succeeds
      */
-    public boolean importFile(int objectHandle, String destPath)
+    public boolean importFile(final int objectHandle, final String destPath)
             throws PTPException, IOException {
+        return shareFileTransfer(objectHandle, destPath, new Callable<DownloadedFile>() {
+            @Override
+            public DownloadedFile call() throws Exception {
+                return importFileUnshared(objectHandle, destPath);
+            }
+        });
+    }
 
+    // 返回 null 表示下载失败；回调由 shareFileTransfer 触发
+    private DownloadedFile importFileUnshared(int objectHandle, String destPath)
+            throws PTPException, IOException {
         File outputFile = new File(destPath);
-        FileOutputStream outputStream;
+        FileSink sink;
         try {
-            outputStream = new FileOutputStream(outputFile);
+            sink = new FileSink(outputFile);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             throw new PTPException("can not import file since the destPath is hit FileNotFoundException");
         }
 
-        synchronized (session) {
-            long startDownloadAt = System.currentTimeMillis();
-            // step 1 发送指令阶段
-            Command command = new Command(Command.GetObject, session, objectHandle);
-            if (!session.isActive())
-                throw new IllegalStateException("no session");
-
-            // this would be UnsupportedOperationException ...
-            // except that it's not available on jdk 1.1
-            if (info != null && !info.supportsOperation(Command.GetObject)) {
-                throw new UnsupportedOperationException(command.getCodeName(Command.GetObject));
-            }
-
-            // ok, then we'll really talk to the device
-            Response response;
-            boolean abort = true;
-            int lenC = mConnection.bulkTransfer(epOut, command.data , command.length , DEFAULT_TIMEOUT);
+        long startDownloadAt = System.currentTimeMillis();
+        ObjectSink downloadSink = wrapDownloadSink(sink);
+        if (!importObject(objectHandle, downloadSink)) {
+            return null;
+        }
+        long downloadDuring = System.currentTimeMillis() - startDownloadAt;
+        return new DownloadedFile(outputFile, downloadDuring, downloadSink);
+    }
 
-            // may need to terminate request with zero length packet
-            if ((command.length % epOut.getMaxPacketSize()) == 0) {
-                lenC = mConnection.bulkTransfer(epOut, command.data, 0, DEFAULT_TIMEOUT);
+    /**
+     * Like {@link #importFile} for objects of 2 GB and more, read with
+     * {@link #importLargeObject}.
+     *
+     * @param objectHandle handle of the object to read
+     * @param size object size, see {@link #getObjectSize64}
+     * @param destPath path to destination for the file transfer
+     * @return true if the file transfer succeeds
+     */
+    public boolean importLargeFile(final int objectHandle, final long size, final String destPath)
+            throws PTPException, IOException {
+        return shareFileTransfer(objectHandle, destPath, new Callable<DownloadedFile>() {
+            @Override
+            public DownloadedFile call() throws Exception {
+                return importLargeFileUnshared(objectHandle, size, destPath);
             }
-            // step2 读取数据阶段
-            byte readBuffer[] = new byte[inMaxPS];
-            int readLen = 0;
-            readLen = mConnection.bulkTransfer(epIn, readBuffer, inMaxPS,
-                    DEFAULT_TIMEOUT);
-
-            // 获取第一块data buffer
-            Data data = new Data(this);
-            data.data = readBuffer;
-            data.length = readLen;
+        });
+    }
 
-            // If object size 0 byte, the remote device may reply a response packet without sending any data
-            // packets.
-            if (data.getBlockType() == Container.BLOCK_TYPE_RESPONSE) {
-                response = new Response(data.data, this);
-                return response.getCode() == Response.OK;
-            }
+    private DownloadedFile importLargeFileUnshared(int objectHandle, long size, String destPath)
+            throws PTPException, IOException {
+        File outputFile = new File(destPath);
+        FileSink sink;
+        try {
+            sink = new FileSink(outputFile);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            throw new PTPException("can not import file since the destPath is hit FileNotFoundException");
+        }
 
-            if (!"data".equals(data.getBlockTypeName(data.getBlockType()))
-                    || data.getCode() != command.getCode()
-                    || data.getXID() != command.getXID()) {
-                throw new PTPException("protocol err 1, " + data);
-            }
+        long startDownloadAt = System.currentTimeMillis();
+        ObjectSink downloadSink = wrapDownloadSink(sink);
+        if (!importLargeObject(objectHandle, size, downloadSink)) {
+            return null;
+        }
+        long downloadDuring = System.currentTimeMillis() - startDownloadAt;
+        return new DownloadedFile(outputFile, downloadDuring, downloadSink);
+    }
 
-            int fullLength = data.getLength();
+    /**
+     * A file written by one download, with what its downloaded callbacks
+     * need; shared with the callers waiting for the same object.
+     */
+    public static class DownloadedFile {
+        private final File file;
+        private final long downloadDuring;
+        private final ObjectSink downloadSink;
+
+        DownloadedFile(File file, long downloadDuring, ObjectSink downloadSink) {
+            this.file = file;
+            this.downloadDuring = downloadDuring;
+            this.downloadSink = downloadSink;
+        }
 
-            if (fullLength < Container.HDR_LEN) {
-                Log.v("ptp-error", "fullLength is too short: " + fullLength);
-                return false;
-            }
+        public File getFile() {
+            return file;
+        }
 
-            int length = fullLength - Container.HDR_LEN;
-            int offset = 0;
-            int initialDataLength = data.length - Container.HDR_LEN;
+        public long getDownloadDuring() {
+            return downloadDuring;
+        }
+    }
 
-            if (initialDataLength > 0) {
-                outputStream.write(data.getData(), Container.HDR_LEN, initialDataLength);
-                offset += initialDataLength;
-                for(FileTransferListener fileTransferListener: fileTransferListenerList) {
-                    fileTransferListener.onFileTranster(BaselineInitiator.this, objectHandle, length, initialDataLength);
+    /**
+     * Runs a file download unless one for the same object is already in
+     * flight; in that case waits for it and copies its file to destPath.
+     * The downloaded callbacks fire for every destination; a caller whose
+     * source file was moved away by a callback downloads on its own.
+     */
+    private boolean shareFileTransfer(int objectHandle, String destPath,
+                                      final Callable<DownloadedFile> transfer) throws PTPException, IOException {
+        final boolean[] ran = new boolean[1];
+        DownloadedFile downloaded;
+        File outputFile = new File(destPath);
+        try {
+            downloaded = fileFlights.run(getObjectKey(objectHandle), new Callable<DownloadedFile>() {
+                @Override
+                public DownloadedFile call() throws Exception {
+                    ran[0] = true;
+                    return transfer.call();
                 }
-            }
-
-            int remaining = fullLength - readLen;
-            while (remaining > 0) {
-                int toRead = (remaining > inMaxPS )? inMaxPS : remaining;
-                readLen = mConnection.bulkTransfer(epIn, readBuffer, toRead,
-                        DEFAULT_TIMEOUT);
-                if (readLen > inMaxPS) {
-                    // should not be true; but it happens
-                    Log.d(TAG, "readLen " + readLen + " is bigger than inMaxPS:" + inMaxPS);
-                    readLen = inMaxPS;
+            });
+            if (downloaded != null && !ran[0]) {
+                if (downloaded.file.getCanonicalPath().equals(outputFile.getCanonicalPath())) {
+                    // 同一个目标文件，回调已经由执行下载的调用者触发
+                    return true;
                 }
-                outputStream.write(readBuffer, 0, readLen);
-                remaining -= readLen;
-
-                for(FileTransferListener fileTransferListener: fileTransferListenerList) {
-                    fileTransferListener.onFileTranster(this, objectHandle, length, length-remaining);
+                try {
+                    copyFile(downloaded.file, outputFile);
+                    downloaded = new DownloadedFile(outputFile, downloaded.downloadDuring, downloaded.downloadSink);
+                } catch (FileNotFoundException e) {
+                    Log.d(TAG, "shared file of 0x" + Integer.toHexString(objectHandle) + " is gone, download again");
+                    downloaded = transfer.call();
                 }
             }
-            outputStream.close();
-            // step3 接收response阶段
-            response = readResponse();
-            if (response != null && response.getCode() == Response.OK) {
-                long downloadDuring = System.currentTimeMillis() - startDownloadAt;
-                for(FileDownloadedListener fileDownloadedListener: fileDownloadedListenerList) {
-                    fileDownloadedListener.onFileDownloaded(this, objectHandle, outputFile, downloadDuring);
+        } catch (PTPException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PTPException("interrupted waiting for the transfer of 0x" + Integer.toHexString(objectHandle), e);
+        } catch (Exception e) {
+            throw new PTPException(e.getMessage(), e);
+        }
+        if (downloaded == null) {
+            return false;
+        }
+        notifyFileDownloaded(objectHandle, downloaded.file, downloaded.downloadDuring, downloaded.downloadSink);
+        return true;
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
                 }
-                return true;
+            } finally {
+                out.close();
             }
+        } finally {
+            in.close();
         }
-        return false;
     }
 
-    public Response readResponse() {
-        Response response;
-        byte buf[] = new byte[inMaxPS];
-//            Log.d(TAG, "read response");
-        int len = mConnection.bulkTransfer(epIn, buf ,inMaxPS , DEFAULT_TIMEOUT);//device.getInputStream(epIn).read(buf);
-//            Log.d(TAG, "received data bytes: " +len);
-
-        // ZLP terminated previous data?
-        if (len == 0) {
-            len = mConnection.bulkTransfer(epIn, buf ,inMaxPS , DEFAULT_TIMEOUT);// device.getInputStream(epIn).read(buf);
-//                Log.d(TAG, "received data bytes: " +len);
+    /**
+     * Returns a local file with the content of the object, from the object
+     * cache when it holds the same object, downloaded into the cache
+     * otherwise.  Only the ObjectInfo is read over USB on a hit.  Cache
+     * fills are raw: no download transforms, no downloaded callbacks.
+     *
+     * @return the local file, or null if the download failed
+     */
+    public File openCachedObject(final int objectHandle) throws PTPException, IOException {
+        ObjectCache cache = objectCache;
+        if (cache == null) {
+            throw new PTPException("object cache is not set");
         }
-
-        response = new Response(buf, len, this);
-        if (TRACE) {
-            System.err.println(response.toString());
+        ObjectInfo info = getObjectInfo(objectHandle);
+        String deviceUUID = getDeviceUUID();
+        File file = cache.lookup(deviceUUID, info);
+        if (file != null) {
+            return file;
         }
-
-        return response;
-    }
-
-
-
-    public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(byte b: a)
-            sb.append(String.format("%02x", b));
-        return sb.toString();
-    }
-
-    public void resetListeners() {
-        resetFileAddedlistener();
-        resetFileDownloadedListener();
-        resetFileTransferListener();
+        final File cacheFile = cache.newFile(deviceUUID, info);
+        final int size = info.getObjectCompressedSize();
+        try {
+            // 同一对象的并发填充只执行一次，不和普通下载共享，它们的文件经过下载变换
+            file = cacheFlights.run(getObjectKey(objectHandle), new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return fillCacheFile(objectHandle, size, cacheFile) ? cacheFile : null;
+                }
+            });
+        } catch (PTPException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PTPException("interrupted waiting for the transfer of 0x" + Integer.toHexString(objectHandle), e);
+        } catch (Exception e) {
+            throw new PTPException(e.getMessage(), e);
+        }
+        if (file == null) {
+            cacheFile.delete();
+            return null;
+        }
+        cache.put(deviceUUID, info, file);
+        return file;
     }
 
-    public void resetFileAddedlistener() {
-        fileAddedListenerList.clear();
+    /**
+     * Downloads the object as is into the cache: no download transforms,
+     * no downloaded callbacks.
+     */
+    private boolean fillCacheFile(int objectHandle, int size, File file) throws PTPException, IOException {
+        long objectSize = size & 0xffffffffL;
+        if (objectSize >= LARGE_OBJECT_SIZE) {
+            objectSize = getObjectSize64(objectHandle);
+            if (objectSize != 0xffffffffL) {
+                try {
+                    return importLargeObject(objectHandle, objectSize, new FileSink(file));
+                } catch (PTPUnsupportedException e) {
+                    Log.d(TAG, "no partial read for object, fall back to GetObject: " + e.getMessage());
+                }
+            }
+        }
+        return importObject(objectHandle, new FileSink(file));
     }
 
-    public void resetFileDownloadedListener() {
-        fileDownloadedListenerList.clear();
+    /**
+     * @return the id the sync database uses for this camera
+     */
+    public String getDeviceUUID() {
+        return new CameraDetector(device).getDeviceUniqName();
     }
 
-    public void resetFileTransferListener() {
-        fileTransferListenerList.clear();
+    /**
+     * @return key of the whole object on this device
+     */
+    public ObjectKey getObjectKey(int objectHandle) {
+        return ObjectKey.whole(device != null ? device.getDeviceName() : null, objectHandle);
     }
 
-    public void setFileAddedListener(FileAddedListener l) {
-        if (!fileAddedListenerList.contains(l)) {
-            fileAddedListenerList.add(l);
+    /**
+     * Puts the download transforms, if any, in front of sink, and moves
+     * both onto a writer thread when pipelined downloads are enabled.
+     */
+    protected ObjectSink wrapDownloadSink(ObjectSink sink) throws IOException {
+        ObjectSink downloadSink = sink;
+        if (!downloadTransforms.isEmpty()) {
+            TransformChain chain = new TransformChain(sink);
+            for (ChunkTransform.Factory factory : downloadTransforms) {
+                chain.add(factory.create());
+            }
+            downloadSink = chain;
         }
+        if (pipelinedDownloads) {
+            downloadSink = new PipelinedSink(downloadSink, pipelineBufferPool, PIPELINE_DEPTH, pipelineStats);
+        }
+        return downloadSink;
     }
 
-    public void setFileDownloadedListener(FileDownloadedListener l) {
-        if (!fileDownloadedListenerList.contains(l)) {
-            fileDownloadedListenerList.add(l);
+    /**
+     * Fires the downloaded callbacks for a file written through a sink
+     * returned by {@link #wrapDownloadSink}.
+     */
+    protected void notifyFileDownloaded(int objectHandle, File outputFile, long downloadDuring,
+                                        ObjectSink downloadSink) {
+        for(FileDownloadedListener fileDownloadedListener: fileDownloadedListenerList) {
+            fileDownloadedListener.onFileDownloaded(this, objectHandle, outputFile, downloadDuring);
+        }
+        if (!fileDigestListenerList.isEmpty()) {
+            if (downloadSink instanceof PipelinedSink) {
+                downloadSink = ((PipelinedSink) downloadSink).getDownstream();
+            }
+            Map<String, byte[]> digests = downloadSink instanceof TransformChain
+                    ? ((TransformChain) downloadSink).getResults()
+                    : new HashMap<String, byte[]>();
+            for (FileDigestListener fileDigestListener : fileDigestListenerList) {
+                fileDigestListener.onFileDownloaded(this, objectHandle, outputFile, downloadDuring, digests);
+            }
         }
     }
 
-    public void setFileTransferListener(FileTransferListener l) {
-        if (!fileTransferListenerList.contains(l)) {
-            fileTransferListenerList.add(l);
+    /**
+     * Streams an object to an OutputStream.  The stream is flushed but not
+     * closed.
+     *
+     * @see #importObject(int, ObjectSink...)
+     */
+    public boolean importObject(int objectHandle, OutputStream out)
+            throws PTPException, IOException {
+        return importObject(objectHandle, new OutputStreamData(out, this));
+    }
+
+    /**
+     * Streams an object to a WritableByteChannel.  The channel is not
+     * closed.
+     *
+     * @see #importObject(int, ObjectSink...)
+     */
+    public boolean importObject(int objectHandle, WritableByteChannel channel)
+            throws PTPException, IOException {
+        return importObject(objectHandle, new ChannelSink(channel));
+    }
+
+    /**
+     * Reads an object with GetObject and hands every USB chunk to all the
+     * sinks, in order, straight from the read loop.  Nothing is written to
+     * disk unless one of the sinks does so.
+     *
+     * 某个 sink 出错时仍会读完数据阶段和 response，保证相机回到空闲状态，然后
+     * 对所有 sink 调用 abort 并抛出该异常。
+     *
+     * @param objectHandle handle of the object to read
+     * @param sinks receivers of the object data
+     * @return true if the camera confirmed the transfer; sinks are finished
+     *     on success and aborted otherwise
+     */
+    public boolean importObject(int objectHandle, ObjectSink... sinks)
+            throws PTPException, IOException {
+        synchronized (session) {
+            if (!session.isActive())
+                throw new IllegalStateException("no session");
+
+            // this would be UnsupportedOperationException ...
+            // except that it's not available on jdk 1.1
+            if (info != null && !info.supportsOperation(Command.GetObject)) {
+                throw new UnsupportedOperationException(Command._getOpcodeString(Command.GetObject));
+            }
+            Command command = new Command(Command.GetObject, session, objectHandle);
+            return readObject(command, objectHandle, sinks);
+        }
+    }
+
+    /**
+     * Sends command and streams its data phase to sinks.  Caller is
+     * synchronized on session.
+     */
+    protected boolean readObject(Command command, int objectHandle, ObjectSink[] sinks)
+            throws PTPException, IOException {
+        ObjectReader reader = new ObjectReader(objectHandle, sinks);
+        try {
+            Response response = reader.transfer(command);
+            if (response == null || response.getCode() != Response.OK) {
+                return false;
+            }
+            return reader.finish();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads an object of any size with a series of partial reads, sized
+     * between getMinPartialChunk and getMaxPartialChunk, using 64-bit
+     * offsets where the camera
+     * supports them.  Every chunk is streamed to the sinks as it comes off
+     * USB.  The session lock is released between chunks, so other
+     * commands are not held up by a long video transfer.
+     *
+     * @param objectHandle handle of the object to read
+     * @param size object size, see {@link #getObjectSize64}
+     * @param sinks receivers of the object data
+     * @return true if every chunk was confirmed by the camera
+     * @throws PTPUnsupportedException if the camera has no partial read
+     *     reaching that far
+     */
+    public boolean importLargeObject(int objectHandle, long size, ObjectSink... sinks)
+            throws PTPException, IOException {
+        ObjectReader reader = new ObjectReader(objectHandle, sinks);
+        try {
+            reader.begin(size);
+            long offset = 0;
+            int chunkSize = getMinPartialChunk();
+            while (offset < size) {
+                int length = (int) Math.min(chunkSize, size - offset);
+                long before = reader.getReceived();
+                long chunkStartedAt = System.currentTimeMillis();
+                Response response;
+                synchronized (session) {
+                    if (!session.isActive())
+                        throw new IllegalStateException("no session");
+                    response = reader.transfer(newPartialObjectCommand(objectHandle, offset, length));
+                }
+                if (response == null || response.getCode() != Response.OK) {
+                    Log.d(TAG, "partial read failed at " + offset + ": " + response);
+                    return false;
+                }
+                long received = reader.getReceived() - before;
+                if (received <= 0) {
+                    throw new PTPException("Short read pulling object 0x" + Integer.toHexString(objectHandle));
+                }
+                offset += received;
+                chunkSize = adaptPartialChunk(chunkSize, System.currentTimeMillis() - chunkStartedAt);
+            }
+            return reader.finish();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads length bytes at offset of an object into memory with one
+     * partial read, see {@link #newPartialObjectCommand}.  The read is not
+     * reported to the transfer listeners.
+     *
+     * @return the bytes read, shorter than length at the end of the object
+     * @throws PTPUnsupportedException if the camera has no partial read
+     *     reaching that far
+     */
+    public byte[] readPartialObject(int objectHandle, long offset, int length)
+            throws PTPException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        ObjectReader reader = new ObjectReader(objectHandle,
+                new ObjectSink[] { new OutputStreamData(out, this) }, false);
+        try {
+            Response response;
+            synchronized (session) {
+                if (!session.isActive())
+                    throw new IllegalStateException("no session");
+                response = reader.transfer(newPartialObjectCommand(objectHandle, offset, length));
+            }
+            if (response == null || response.getCode() != Response.OK) {
+                throw new PTPException("partial read of 0x" + Integer.toHexString(objectHandle)
+                        + " failed at " + offset + ": " + response,
+                        response == null ? 0 : response.getCode());
+            }
+            reader.finish();
+        } finally {
+            reader.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Opens an object for random access through partial reads, so parsers
+     * fetch only the blocks they touch.
+     */
+    public ObjectChannel openObjectChannel(int objectHandle) throws PTPException {
+        return new ObjectChannel(this, objectHandle);
+    }
+
+    /**
+     * Returns the embedded JPEG preview of a RAW object, read with partial
+     * reads, see {@link RawPreviewExtractor}.
+     *
+     * @return the JPEG, or null if none was found
+     */
+    public byte[] getRawPreview(int objectHandle) throws PTPException, IOException {
+        return new RawPreviewExtractor(this).extract(objectHandle);
+    }
+
+    /**
+     * Reads capture time, orientation, rating and serial of an object from
+     * its header, see {@link RemoteMetadataReader}.  Use the reader
+     * directly to read many objects at once.
+     */
+    public ObjectMetadata readObjectMetadata(int objectHandle) throws PTPException, IOException {
+        return new RemoteMetadataReader(this).read(getObjectInfo(objectHandle));
+    }
+
+    /**
+     * Returns a preview of the object through a vendor operation, for
+     * cameras or files without a usable partial read.  The default has
+     * none.
+     *
+     * @return the JPEG, or null
+     */
+    protected byte[] readVendorPreview(int objectHandle) throws PTPException {
+        return null;
+    }
+
+    /**
+     * Grows the chunk while chunks complete quickly and shrinks it when
+     * one takes long, so each partial read keeps the bus busy without
+     * holding the session lock for seconds.
+     */
+    private int adaptPartialChunk(int chunkSize, long elapsedMs) {
+        if (elapsedMs < PARTIAL_CHUNK_FAST_MS && chunkSize < getMaxPartialChunk()) {
+            return Math.min(chunkSize * 2, getMaxPartialChunk());
+        }
+        if (elapsedMs > PARTIAL_CHUNK_SLOW_MS && chunkSize > getMinPartialChunk()) {
+            return Math.max(chunkSize / 2, getMinPartialChunk());
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Size of the first partial read of {@link #importLargeObject}, and the
+     * lower bound of the adaptive chunk size.
+     */
+    protected int getMinPartialChunk() {
+        return LARGE_OBJECT_CHUNK;
+    }
+
+    /**
+     * Upper bound of the adaptive chunk size of {@link #importLargeObject}.
+     */
+    protected int getMaxPartialChunk() {
+        return LARGE_OBJECT_CHUNK;
+    }
+
+    /**
+     * Whether automatic downloads should use {@link #importLargeObject} for
+     * every object of known size, not only for objects of 2 GB and more.
+     */
+    protected boolean preferPartialReads() {
+        return false;
+    }
+
+    /**
+     * Creates the command reading length bytes at offset of an object.
+     * Called with the session lock held.  The default is GetPartialObject,
+     * whose offset is 32 bits; vendors with a 64-bit partial read override
+     * this.
+     */
+    protected Command newPartialObjectCommand(int objectHandle, long offset, int length)
+            throws PTPException {
+        if (info != null && !info.supportsOperation(Command.GetPartialObject)) {
+            throw new PTPUnsupportedException("GetPartialObject is not supported");
+        }
+        if (offset + length > 0xffffffffL) {
+            throw new PTPUnsupportedException("GetPartialObject can not read beyond 4 GB");
+        }
+        return new Command(Command.GetPartialObject, session, objectHandle, (int) offset, length);
+    }
+
+    /**
+     * Returns the size of an object as an unsigned 64-bit value.  ObjectInfo
+     * only has 32 bits and reports 0xFFFFFFFF for objects of 4 GB and more;
+     * the MTP ObjectSize property is used for those when available.
+     *
+     * @return the size, or 0xFFFFFFFF if the camera can not tell
+     */
+    public long getObjectSize64(int objectHandle) throws PTPException {
+        long size = getObjectInfo(objectHandle).getObjectCompressedSize() & 0xffffffffL;
+        if (size != 0xffffffffL
+                || info == null || !info.supportsOperation(Command.MtpGetObjectPropValue)) {
+            return size;
+        }
+        Data data = new Data(this);
+        Response response = transact2(Command.MtpGetObjectPropValue, data, objectHandle, MTP_PROP_OBJECT_SIZE);
+        if (response.getCode() == Response.OK && data.length >= Container.HDR_LEN + 8) {
+            return data.getS64(Container.HDR_LEN);
+        }
+        return size;
+    }
+
+    /**
+     * Streams data phases into a set of sinks: one for GetObject, or one per
+     * chunk for partial reads.  Sizes are 64 bits end to end; a data phase
+     * of 4 GB or more, whose container length is 0xFFFFFFFF, is read until
+     * the device ends it with a short packet.
+     *
+     * 某个 sink 出错时仍会读完数据阶段和 response，保证相机回到空闲状态，
+     * finish 时再抛出该异常。
+     */
+    private class ObjectReader {
+        private final int objectHandle;
+        private final ObjectSink[] sinks;
+        private final ByteBuffer chunk;
+        private final boolean reportProgress;
+        private ProgressDispatcher.Transfer progress;
+        private IOException sinkError;
+        private boolean begun;
+        private boolean done;
+        private long received;
+        private long begunAt;
+
+        ObjectReader(int objectHandle, ObjectSink[] sinks) {
+            this(objectHandle, sinks, true);
+        }
+
+        /**
+         * @param reportProgress false for small reads, such as previews,
+         *     which should not show up as transfers
+         */
+        ObjectReader(int objectHandle, ObjectSink[] sinks, boolean reportProgress) {
+            this.objectHandle = objectHandle;
+            this.sinks = sinks;
+            this.reportProgress = reportProgress;
+            this.chunk = bulkBufferPool.obtain();
+        }
+
+        /**
+         * @param size object size, or -1 if unknown
+         */
+        void begin(long size) {
+            for (ObjectSink sink : sinks) {
+                try {
+                    sink.begin(objectHandle, size);
+                } catch (IOException e) {
+                    sinkError = e;
+                    break;
+                }
+            }
+            begun = true;
+            begunAt = System.nanoTime();
+            if (reportProgress) {
+                progress = progressDispatcher.begin(objectHandle, size);
+            }
+        }
+
+        /**
+         * Sends command and streams its data phase.  Caller is synchronized
+         * on session.  Begins the sinks with the size of the data phase if
+         * they are not begun yet.
+         *
+         * @return the response of the command
+         */
+        Response transfer(Command command) throws PTPException {
+            // step 1 发送指令阶段
+            mConnection.bulkTransfer(epOut, command.data, command.length, DEFAULT_TIMEOUT);
+            // may need to terminate request with zero length packet
+            if ((command.length % epOut.getMaxPacketSize()) == 0) {
+                mConnection.bulkTransfer(epOut, command.data, 0, DEFAULT_TIMEOUT);
+            }
+
+            // step2 读取数据阶段
+            byte[] readBuffer = chunk.array();
+            int readLen = mConnection.bulkTransfer(epIn, readBuffer, BULK_READ_SIZE, DEFAULT_TIMEOUT);
+            if (readLen == 0) {
+                readLen = mConnection.bulkTransfer(epIn, readBuffer, BULK_READ_SIZE, DEFAULT_TIMEOUT);
+            }
+            if (readLen < Container.HDR_LEN) {
+                throw new PTPException("short read: " + readLen);
+            }
+            Data data = new Data(BaselineInitiator.this);
+            data.data = readBuffer;
+            data.length = readLen;
+
+            // If object size 0 byte, the remote device may reply a response packet without sending any data
+            // packets.
+            if (data.getBlockType() == Container.BLOCK_TYPE_RESPONSE) {
+                return copyResponse(readBuffer, readLen);
+            }
+
+            if (!"data".equals(data.getBlockTypeName(data.getBlockType()))
+                    || data.getCode() != command.getCode()
+                    || data.getXID() != command.getXID()) {
+                throw new PTPException("protocol err 1, " + data);
+            }
+
+            long fullLength = data.getLength() & 0xffffffffL;
+            boolean unbounded = fullLength == 0xffffffffL;
+            if (fullLength < Container.HDR_LEN) {
+                throw new PTPException("fullLength is too short: " + fullLength);
+            }
+            if (!begun) {
+                begin(unbounded ? -1 : fullLength - Container.HDR_LEN);
+            }
+
+            write(Container.HDR_LEN, readLen);
+            long phase = readLen;
+            boolean shortPacket = readLen < BULK_READ_SIZE;
+            int emptyReads = 0;
+            while (unbounded ? !shortPacket : phase < fullLength) {
+                int toRead = unbounded ? BULK_READ_SIZE : (int) Math.min(BULK_READ_SIZE, fullLength - phase);
+                readLen = mConnection.bulkTransfer(epIn, readBuffer, toRead, DEFAULT_TIMEOUT);
+                // 长度未知时 0 字节的包表示数据阶段结束
+                if (readLen < 0 || (readLen == 0 && !unbounded && ++emptyReads > MAX_EMPTY_READS)) {
+                    throw new PTPException("bulk read failed after " + phase + " of " + fullLength + " bytes");
+                }
+                if (readLen > 0) {
+                    emptyReads = 0;
+                }
+                write(0, readLen);
+                phase += readLen;
+                shortPacket = readLen < toRead;
+            }
+
+            // step3 接收response阶段
+            return readResponse();
+        }
+
+        // 每个 sink 看到同样的 [from, to) 区间；出错后不再写入
+        private void write(int from, int to) {
+            int length = to - from;
+            received += length;
+            if (progress != null) {
+                progress.add(length);
+            }
+            if (sinkError != null || length == 0) {
+                return;
+            }
+            for (ObjectSink sink : sinks) {
+                chunk.limit(to);
+                chunk.position(from);
+                try {
+                    sink.write(chunk);
+                } catch (IOException e) {
+                    sinkError = e;
+                    return;
+                }
+            }
+        }
+
+        long getReceived() {
+            return received;
+        }
+
+        /**
+         * Finishes the sinks; throws the first sink error instead.
+         *
+         * @return true
+         */
+        boolean finish() throws IOException {
+            if (!begun) {
+                begin(0);
+            }
+            if (sinkError != null) {
+                throw sinkError;
+            }
+            for (ObjectSink sink : sinks) {
+                sink.finish();
+            }
+            done = true;
+            return true;
+        }
+
+        void close() {
+            if (!done) {
+                for (ObjectSink sink : sinks) {
+                    sink.abort();
+                }
+            }
+            bytesReceivedOnThread.get()[0] += received;
+            if (progress != null) {
+                progressDispatcher.end(progress);
+                if (done) {
+                    throughputModel.recordTransfer(received, System.nanoTime() - begunAt);
+                }
+            }
+            bulkBufferPool.release(chunk);
+        }
+    }
+
+    public Response readResponse() {
+        Response response;
+        byte buf[] = new byte[inMaxPS];
+//            Log.d(TAG, "read response");
+        int len = mConnection.bulkTransfer(epIn, buf ,inMaxPS , DEFAULT_TIMEOUT);//device.getInputStream(epIn).read(buf);
+//            Log.d(TAG, "received data bytes: " +len);
+
+        // ZLP terminated previous data?
+        if (len == 0) {
+            len = mConnection.bulkTransfer(epIn, buf ,inMaxPS , DEFAULT_TIMEOUT);// device.getInputStream(epIn).read(buf);
+//                Log.d(TAG, "received data bytes: " +len);
+        }
+
+        response = new Response(buf, len, this);
+        if (TRACE) {
+            System.err.println(response.toString());
+        }
+
+        return response;
+    }
+
+
+
+    public static String byteArrayToHex(byte[] a) {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for(byte b: a)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    public void resetListeners() {
+        resetShotListener();
+        resetSyncPlanListener();
+        resetFileAddedlistener();
+        resetFileDownloadedListener();
+        resetFileTransferListener();
+        resetFileDigestListener();
+        resetTransferProgressListener();
+    }
+
+    public void resetFileAddedlistener() {
+        fileAddedListenerList.clear();
+    }
+
+    public void resetFileDownloadedListener() {
+        fileDownloadedListenerList.clear();
+    }
+
+    public void resetFileTransferListener() {
+        fileTransferListenerList.clear();
+    }
+
+    public void resetShotListener() {
+        shotListenerList.clear();
+    }
+
+    public void setShotListener(ShotListener l) {
+        if (!shotListenerList.contains(l)) {
+            shotListenerList.add(l);
+        }
+    }
+
+    public ShotScheduler getShotScheduler() {
+        return shotScheduler;
+    }
+
+    /**
+     * @param rawDownloadPolicy SyncParams.RAW_DOWNLOAD_*, used by the poll
+     *     list mode
+     */
+    public void setRawDownloadPolicy(int rawDownloadPolicy) {
+        shotScheduler.setPolicy(rawDownloadPolicy);
+    }
+
+    /**
+     * Forwards the phone charging state for RAW_DOWNLOAD_WHEN_CHARGING.
+     */
+    public void setCharging(boolean charging) {
+        shotScheduler.setCharging(charging);
+    }
+
+    public void resetSyncPlanListener() {
+        syncPlanListenerList.clear();
+    }
+
+    public void setSyncPlanListener(SyncPlanListener l) {
+        if (!syncPlanListenerList.contains(l)) {
+            syncPlanListenerList.add(l);
+        }
+    }
+
+    public SyncPlanner getSyncPlanner() {
+        return syncPlanner;
+    }
+
+    public ThroughputModel getThroughputModel() {
+        return throughputModel;
+    }
+
+    /**
+     * @param syncOrder SyncParams.SYNC_ORDER_*, used by the poll list mode
+     */
+    public void setSyncOrder(int syncOrder) {
+        syncPlanner.setOrder(syncOrder);
+    }
+
+    public void resetTransferProgressListener() {
+        transferProgressListenerList.clear();
+    }
+
+    public void setTransferProgressListener(TransferProgressListener l) {
+        if (!transferProgressListenerList.contains(l)) {
+            transferProgressListenerList.add(l);
+        }
+    }
+
+    /**
+     * @param intervalMs minimal time between two progress callbacks,
+     *     e.g. 100 for 10 Hz
+     */
+    public void setProgressInterval(long intervalMs) {
+        progressDispatcher.setInterval(intervalMs);
+    }
+
+    /**
+     * @param stepPercent minimal progress between two progress callbacks,
+     *     in percent of the object size
+     */
+    public void setProgressStep(int stepPercent) {
+        progressDispatcher.setStep(stepPercent);
+    }
+
+    public boolean isPipelinedDownloads() {
+        return pipelinedDownloads;
+    }
+
+    /**
+     * @param pipelinedDownloads true to write downloaded files on a separate
+     *     thread so disk stalls do not hold up USB reads
+     */
+    public void setPipelinedDownloads(boolean pipelinedDownloads) {
+        this.pipelinedDownloads = pipelinedDownloads;
+    }
+
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    /**
+     * @return bytes of object data received on the calling thread so far,
+     *     for callers which measure their own downloads
+     */
+    public long getBytesReceivedOnThread() {
+        return bytesReceivedOnThread.get()[0];
+    }
+
+    public SingleFlight<ObjectKey, DownloadedFile> getFileFlights() {
+        return fileFlights;
+    }
+
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * @param objectCache cache used by {@link #openCachedObject}, null to
+     *     disable caching
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    public void resetFileDigestListener() {
+        fileDigestListenerList.clear();
+    }
+
+    public void setFileDigestListener(FileDigestListener l) {
+        if (!fileDigestListenerList.contains(l)) {
+            fileDigestListenerList.add(l);
+        }
+    }
+
+    /**
+     * Adds a transform applied to every automatic download while the bytes
+     * come off USB, e.g. DigestTransform.factory("SHA-256").  Each download
+     * gets its own transforms from the factory.  Transforms run in the order
+     * they are added; results are passed to FileDigestListener.
+     */
+    public void addDownloadTransform(ChunkTransform.Factory factory) {
+        downloadTransforms.add(factory);
+    }
+
+    public void resetDownloadTransforms() {
+        downloadTransforms.clear();
+    }
+
+    public void setFileAddedListener(FileAddedListener l) {
+        if (!fileAddedListenerList.contains(l)) {
+            fileAddedListenerList.add(l);
+        }
+    }
+
+    public void setFileDownloadedListener(FileDownloadedListener l) {
+        if (!fileDownloadedListenerList.contains(l)) {
+            fileDownloadedListenerList.add(l);
+        }
+    }
+
+    public void setFileTransferListener(FileTransferListener l) {
+        if (!fileTransferListenerList.contains(l)) {
+            fileTransferListenerList.add(l);
         }
     }
 
@@ -1388,27 +2550,40 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         Log.v("PTP_EVENT", "开始event轮询");
         long loopTimes = 0;
         pollEventSetUp();
+        resumeJournal();
         if (epEv != null) {
             byte[] buffer = new byte[intrMaxPS];
             int length;
             while (isSessionActive()) {
                 loopTimes++;
 
-                ObjectInfo singal = (ObjectInfo) waitVendorSpecifiedFileReadySignal();
-                if(singal!=null){
+                if (hostCaptureInProgress) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
 
+                synchronized (hostObjectLock) {
+                    // 等待期间开始 HOST 拍摄时返回 null，照片由拍摄线程读取
+                    ObjectInfo singal = (ObjectInfo) waitVendorSpecifiedFileReadySignal();
+                    if(singal!=null){
 
-                    File outputFile = new File(new File(fileDownloadPath), singal.filename);
-                    if (outputFile.exists()) {
-                        outputFile.delete();
-                    }
-                    String outputFilePath = outputFile.getPath();
-                    try {
-                        importFile(singal.handle, outputFilePath);
-                    } catch (PTPException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+
+                        File outputFile = new File(new File(fileDownloadPath), singal.filename);
+                        if (outputFile.exists()) {
+                            outputFile.delete();
+                        }
+                        String outputFilePath = outputFile.getPath();
+                        try {
+                            importFile(singal.handle, outputFilePath);
+                        } catch (PTPException e) {
+                            e.printStackTrace();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
                     }
                 }
 
@@ -1470,9 +2645,33 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         }
 
 
+        // 上次运行被杀时已经完成的对象记为已同步；还没有完成的对象由 resumeJournal
+        // 下载，不作为新增对象，日志放弃时再从列表中移除（forgetAbandoned）
+        DownloadJournal journal = journal();
+        if (journal != null) {
+            Set<Integer> known = new HashSet<Integer>(oldObjectHandles);
+            List<Integer> recovered = journal.getCommitted();
+            for (Integer h : recovered) {
+                if (known.add(h)) {
+                    oldObjectHandles.add(h);
+                }
+            }
+            if (syncRecordMode == SyncParams.SYNC_RECORD_MODE_REMEMBER && !recovered.isEmpty()) {
+                syncDeviceManager = new SyncDeviceManager(device);
+                syncDeviceManager.updateIdList(oldObjectHandles);
+                journal.acknowledge(oldObjectHandles);
+            }
+            for (DownloadJournal.Entry entry : journal.getPending()) {
+                if (known.add(entry.handle)) {
+                    oldObjectHandles.add(entry.handle);
+                }
+            }
+            resumeJournal();
+        }
+
         Log.v(PTP_POLL_LIST, "初始objectHandle列表: " + oldObjectHandles.toString());
         while(pollThreadRunning) {
-            if (!isSessionActive() || !autoPollEvent || mConnection == null) {
+            if (!isSessionActive() || !autoPollEvent || mConnection == null || hostCaptureInProgress) {
                 try {
                     Thread.sleep(DEFAULT_TIMEOUT);
                 } catch (InterruptedException e) {
@@ -1489,26 +2688,48 @@ public class BaselineInitiator extends NameFactory implements Runnable {
                     return;
                 }
 
+                if (forgetAbandoned(oldObjectHandles)
+                        && syncRecordMode == SyncParams.SYNC_RECORD_MODE_REMEMBER) {
+                    syncDeviceManager = new SyncDeviceManager(device);
+                    syncDeviceManager.updateIdList(syncedHandles(oldObjectHandles));
+                }
+                forgetRejected(oldObjectHandles);
+
                 List<Integer> newObjectHandles = getObjectHandlesByStorageIds(sids);
                 List<Integer> newAdded = getAllNewAddedObjectHandles(oldObjectHandles, newObjectHandles);
+                // 延后下载的 RAW 不算新增
+                shotScheduler.retain(newObjectHandles);
+                newAdded.removeAll(shotScheduler.getDeferredHandles());
                 Log.v(PTP_POLL_LIST, "New Added objectHandle : " + newAdded.toString());
+                List<Object> toDownload = scheduleNewObjects(newAdded);
                 List<Integer> newAddedDownloaded = new ArrayList<Integer>();
-                if (newAdded.size() > 0) {
+                if (toDownload.size() > 0) {
                     boolean downloadInterrupted = false;
-                    for (int h : newAdded) {
-                        if (processFileAddEvent(h, null)) {
-                            // 如果文件下载成功，则记录
-                            newAddedDownloaded.add(h);
-                        } else {
-                            // 如果下载失败，退出循环
-                            downloadInterrupted = true;
-                            break;
+                    // 整批一次写入日志，中断后不需要重新列出对象
+                    journalEnqueued(toDownload);
+                    if (usesSyncPlan()) {
+                        // 执行计划期间新增的对象会加入 newObjectHandles
+                        downloadInterrupted = !runSyncPlan(toDownload, sids, newObjectHandles,
+                                newAddedDownloaded);
+                    } else {
+                        for (Object o : toDownload) {
+                            // 轮询模式下只有需要配对时才读取了 ObjectInfo
+                            int h = o instanceof ObjectInfo ? ((ObjectInfo) o).getHandle() : (Integer) o;
+                            if (processFileAddEvent(h, o instanceof ObjectInfo ? o : null)) {
+                                // 如果文件下载成功，则记录
+                                newAddedDownloaded.add(h);
+                            } else {
+                                // 如果下载失败，退出循环
+                                downloadInterrupted = true;
+                                break;
+                            }
                         }
                     }
 
                     // 更新oldObjectHandle ,到最新的版本
                     if (!downloadInterrupted) {
                         oldObjectHandles = new ArrayList<>(newObjectHandles);
+                        oldObjectHandles.removeAll(shotScheduler.getDeferredHandles());
                     } else {
                         // 如果下载终端，则只添加成功下载的handle id
                         oldObjectHandles.addAll(newAddedDownloaded);
@@ -1516,7 +2737,10 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 
                     if (syncRecordMode == SyncParams.SYNC_RECORD_MODE_REMEMBER) {
                         syncDeviceManager = new SyncDeviceManager(device);
-                        syncDeviceManager.updateIdList(oldObjectHandles);
+                        syncDeviceManager.updateIdList(syncedHandles(oldObjectHandles));
+                        if (downloadJournal != null) {
+                            downloadJournal.acknowledge(oldObjectHandles);
+                        }
                     }
                 }
 
@@ -1530,6 +2754,165 @@ public class BaselineInitiator extends NameFactory implements Runnable {
     }
 
 
+    /**
+     * Pairs the new objects into shots, announces them, and orders their
+     * downloads by the RAW download policy.  Deferred RAWs which are due
+     * are appended.  The ObjectInfo of every new object is only read when
+     * there is a shot listener, sync rules, a sync plan, or a policy other
+     * than RAW_DOWNLOAD_IN_ORDER.
+     *
+     * @return ObjectInfo, or Integer handles when no ObjectInfo was read
+     */
+    protected List<Object> scheduleNewObjects(List<Integer> newAdded) throws PTPException {
+        List<Object> toDownload = new ArrayList<Object>();
+        SyncFilter filter = syncFilter;
+        if (shotListenerList.isEmpty() && shotScheduler.getPolicy() == SyncParams.RAW_DOWNLOAD_IN_ORDER
+                && filter == null && !usesSyncPlan()) {
+            toDownload.addAll(newAdded);
+        } else if (!newAdded.isEmpty()) {
+            List<ObjectInfo> infos = new ArrayList<ObjectInfo>(newAdded.size());
+            for (int h : newAdded) {
+                try {
+                    infos.add(getObjectInfo(h));
+                } catch (PTPException e) {
+                    // 不参与配对，由 processFileAddEvent 处理，失败时下次轮询重试
+                    Log.d(TAG, "getObjectInfo " + Integer.toHexString(h) + " failed: " + e.getMessage());
+                    toDownload.add(h);
+                }
+            }
+            if (filter != null && filter.needsMetadata()) {
+                // 一次读取整批的评分，之后 acceptObject 从数据库中取；失败的对象由
+                // acceptObject 逐个读取
+                try {
+                    new RemoteMetadataReader(this).readAll(infos);
+                } catch (PTPException e) {
+                    Log.d(TAG, "metadata prefetch failed: " + e.getMessage());
+                } catch (IOException e) {
+                    Log.d(TAG, "metadata prefetch failed: " + e.getMessage());
+                }
+            }
+            List<Shot> shots = Shot.pair(infos);
+            for (Shot shot : shots) {
+                for (ShotListener shotListener : shotListenerList) {
+                    shotListener.onShotAdded(BaselineInitiator.this, shot);
+                }
+            }
+            toDownload.addAll(shotScheduler.schedule(shots));
+        }
+        toDownload.addAll(shotScheduler.takeDue());
+        return toDownload;
+    }
+
+    /**
+     * @return true if the poll list mode downloads through the sync plan
+     */
+    protected boolean usesSyncPlan() {
+        return syncPlanner.getOrder() != SyncParams.SYNC_ORDER_CAMERA || !syncPlanListenerList.isEmpty();
+    }
+
+    /**
+     * Downloads the objects in the order of the sync plan.  The camera is
+     * listed again every REPLAN_INTERVAL, objects added meanwhile are
+     * planned in and objects gone are dropped, so new shots overtake the
+     * rest of a full card.
+     *
+     * @param handles handles listed so far, handles added meanwhile are
+     *     appended
+     * @param downloaded handles processed successfully are appended
+     * @return false if a download failed or polling stopped; the rest of
+     *     the plan is dropped and listed again as new by the next poll
+     */
+    private boolean runSyncPlan(List<Object> objects, int[] sids, List<Integer> handles,
+                                List<Integer> downloaded) throws PTPException {
+        syncPlanner.setRawsLast(shotScheduler.getPolicy() == SyncParams.RAW_DOWNLOAD_AFTER_JPEG);
+        planObjects(objects);
+        long plannedAt = System.nanoTime();
+        ObjectInfo info;
+        while ((info = syncPlanner.poll()) != null) {
+            int h = info.getHandle();
+            long startAt = System.nanoTime();
+            boolean ok = pollThreadRunning && processFileAddEvent(h, info);
+            syncPlanner.complete(h);
+            if (!ok) {
+                syncPlanner.clear();
+                notifySyncPlanChanged();
+                return false;
+            }
+            downloaded.add(h);
+            if (downloadQueue == null) {
+                // 使用下载队列时这里只是入队，不能用于测量
+                throughputModel.recordObject(info.getObjectCompressedSize() & 0xffffffffL,
+                        System.nanoTime() - startAt);
+            }
+
+            if (System.nanoTime() - plannedAt >= REPLAN_INTERVAL * 1000000L) {
+                plannedAt = System.nanoTime();
+                List<Integer> listed = getObjectHandlesByStorageIds(sids);
+                Set<Integer> listedSet = new HashSet<Integer>(listed);
+                DownloadJournal journal = journal();
+                for (SyncPlanner.Item item : syncPlanner.getPlan()) {
+                    if (!listedSet.contains(item.getHandle())) {
+                        syncPlanner.remove(item.getHandle());
+                        if (journal != null) {
+                            try {
+                                journal.drop(item.getHandle());
+                            } catch (IOException e) {
+                                Log.d(TAG, "journal write failed: " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+                // 整张卡时对象很多，用集合比较
+                Set<Integer> known = new HashSet<Integer>(handles);
+                List<Integer> added = new ArrayList<Integer>();
+                for (Integer listedHandle : listed) {
+                    if (!known.contains(listedHandle)) {
+                        added.add(listedHandle);
+                    }
+                }
+                shotScheduler.retain(listedSet);
+                added.removeAll(shotScheduler.getDeferredHandles());
+                if (!added.isEmpty()) {
+                    Log.v(TAG, "replan, new added objectHandle : " + added);
+                    handles.addAll(added);
+                }
+                planObjects(scheduleNewObjects(added));
+            }
+            notifySyncPlanChanged();
+        }
+        return true;
+    }
+
+    // 加入计划，拍摄时间优先取元数据目录中的记录
+    private void planObjects(List<Object> objects) throws PTPException {
+        if (objects.isEmpty()) {
+            return;
+        }
+        List<ObjectInfo> infos = new ArrayList<ObjectInfo>(objects.size());
+        for (Object o : objects) {
+            ObjectInfo info = o instanceof ObjectInfo ? (ObjectInfo) o : getObjectInfo((Integer) o);
+            if (info.associationType != 1) { // skip folder
+                infos.add(info);
+            }
+        }
+        journalEnqueued(objects);
+        syncPlanner.add(infos, new RemoteMetadataReader(this).lookupAll(infos));
+        notifySyncPlanChanged();
+    }
+
+    private void notifySyncPlanChanged() {
+        if (syncPlanListenerList.isEmpty()) {
+            return;
+        }
+        int remainingObjects = syncPlanner.size();
+        long remainingBytes = syncPlanner.getRemainingBytes();
+        long etaMillis = syncPlanner.getEtaMillis();
+        for (SyncPlanListener syncPlanListener : syncPlanListenerList) {
+            syncPlanListener.onSyncPlanChanged(BaselineInitiator.this, syncPlanner, remainingObjects,
+                    remainingBytes, etaMillis);
+        }
+    }
+
     private List<Integer> getAllNewAddedObjectHandles(List<Integer> oldHandles, List<Integer> newHandles) {
         List<Integer> newAdded = new ArrayList<>();
         for (Integer newHandle: newHandles) {
@@ -1543,8 +2926,30 @@ public class BaselineInitiator extends NameFactory implements Runnable {
     private List<Integer> getObjectHandlesByStorageIds(int[] sids) throws PTPException {
         List<Integer> objectHandles;
         objectHandles = new ArrayList<Integer>();
+        SyncFilter filter = syncFilter;
+        int[] formats = filter != null ? filter.getFormats() : null;
+        int parent = filter != null ? filter.getPushdownParent() : 0;
+        if (formats == null) {
+            formats = new int[] { getObjectHandleFilterParam };
+        }
         for(int sid : sids) {
-            int[] oneStorageObjectHandles = getObjectHandles(sid, getObjectHandleFilterParam, 0);
+            if (pushdownSupported && (formats.length > 1 || formats[0] != 0 || parent != 0)) {
+                try {
+                    // 每种格式查询一次，由相机过滤
+                    for (int format : formats) {
+                        for (int h : getObjectHandles(sid, format, parent)) {
+                            objectHandles.add(h);
+                        }
+                    }
+                    continue;
+                } catch (PTPException e) {
+                    Log.d(TAG, "GetObjectHandles filter not supported, filter locally: " + e.getMessage());
+                    pushdownSupported = false;
+                    objectHandles.clear();
+                    return getObjectHandlesByStorageIds(sids);
+                }
+            }
+            int[] oneStorageObjectHandles = getObjectHandles(sid, pushdownSupported ? getObjectHandleFilterParam : 0, 0);
             for (int h : oneStorageObjectHandles) {
                 objectHandles.add(h);
             }
@@ -1552,6 +2957,51 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         return objectHandles;
     }
 
+    /**
+     * Whether an object passes the sync rules, see {@link #setSyncRules}.
+     * The ObjectInfo is read when event is not one, and the file header
+     * when a rule needs the rating.
+     */
+    protected boolean acceptObject(int fileHandle, Object event) throws PTPException, IOException {
+        SyncFilter filter = syncFilter;
+        // 相机不支持按格式列出对象时，getObjectHandleFilterParam 在这里过滤
+        boolean filterFormat = !pushdownSupported && getObjectHandleFilterParam != 0
+                && (filter == null || filter.getFormats() == null);
+        if (filter == null && !filterFormat) {
+            return true;
+        }
+        ObjectInfo info = event instanceof ObjectInfo ? (ObjectInfo) event : getObjectInfo(fileHandle);
+        if (filterFormat && info.getObjectFormatCode() != getObjectHandleFilterParam
+                && info.associationType != 1) {
+            return false;
+        }
+        if (filter == null) {
+            return true;
+        }
+        String parentName = filter.needsFolderNames() ? getFolderName(info.getParentObject()) : null;
+        if (!filter.matches(info, parentName, null)) {
+            return false;
+        }
+        if (filter.needsMetadata()) {
+            return filter.matches(info, parentName, new RemoteMetadataReader(this).read(info));
+        }
+        return true;
+    }
+
+    private String getFolderName(int folderHandle) throws PTPException {
+        if (folderHandle == 0 || folderHandle == -1) {
+            return "";
+        }
+        synchronized (folderNames) {
+            String name = folderNames.get(folderHandle);
+            if (name == null) {
+                name = getObjectInfo(folderHandle).getFilename();
+                folderNames.put(folderHandle, name != null ? name : "");
+            }
+            return name;
+        }
+    }
+
     // 可以被子类覆盖，进行轮询之前的准备工作
     protected void pollListSetUp() {
 
@@ -1571,6 +3021,15 @@ public class BaselineInitiator extends NameFactory implements Runnable {
 
     }
 
+    /**
+     * Whether an added object is an association (folder), which is never
+     * downloaded.  Reads the ObjectInfo if the event does not carry it.
+     */
+    protected boolean isAssociation(int fileHandle, Object event) throws PTPException {
+        ObjectInfo info = event instanceof ObjectInfo ? (ObjectInfo) event : getObjectInfo(fileHandle);
+        return info.associationType == 1;
+    }
+
     protected boolean processFileAddEvent(int fileHandle, Object event) {
         Log.v(TAG, "start processFileAddEvent : handle -> " + fileHandle);
         for(FileAddedListener fileAddedListener: fileAddedListenerList) {
@@ -1578,37 +3037,41 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         }
         if (autoDownloadFile && fileDownloadPath != null) {
             try {
-                String downloadFileName;
-
-                ObjectInfo objectInfo = null;
-
-
-                    objectInfo = (ObjectInfo) event;
-
-
-                if (objectInfo.associationType == 1) { // skip folder
+                // 轮询模式下只有需要配对时才读取了 ObjectInfo，这里补读以跳过文件夹
+                if (event == null) {
+                    event = getObjectInfo(fileHandle);
+                }
+                if (isAssociation(fileHandle, event)) { // skip folder
+                    journalCommitted(fileHandle);
                     return true;
                 }
+                if (!acceptObject(fileHandle, event)) {
+                    Log.v(TAG, "skipped by sync rules : handle -> " + fileHandle);
+                    if (syncTriggerMode == SyncParams.SYNC_TRIGGER_MODE_POLL_LIST) {
+                        rejectedHandles.add(fileHandle);
+                    }
+                    journalDrop(fileHandle);
+                    return true;
+                }
+                // EOS 事件模式下 event 为 EosEvent
+                int size = event instanceof ObjectInfo ? ((ObjectInfo) event).objectCompressedSize : 0;
 
-
-                        // 因为索尼always 固定的ID，所以我们需要给它一个随机id
-                        downloadFileName = getRandomFileName();
-
-
-
-                File outputFile = new File(new File(fileDownloadPath), downloadFileName);
-                if (outputFile.exists()) {
-                    outputFile.delete();
+                journalEnqueued(Collections.<Object>singletonList(
+                        event instanceof ObjectInfo ? event : Integer.valueOf(fileHandle)));
+                if (downloadQueue != null) {
+                    return downloadQueue.enqueue(fileHandle, size, null, false);
                 }
-                String outputFilePath = outputFile.getPath();
-                importFile(fileHandle, outputFilePath);
-                return true;
+                // 因为索尼always 固定的ID，所以我们需要给它一个随机id
+                return downloadObject(fileHandle, size, null, false);
             } catch (PTPException e) {
                 e.printStackTrace();
                 return false;
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             } catch (Exception e) {
                 e.printStackTrace();
                 return false;
@@ -1617,6 +3080,319 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         return false;
     }
 
+    /**
+     * HOST 模式下拍摄的照片只存在于相机内存中，不会出现在存储卡的对象列表里，
+     * 如果不读取就会丢失，所以这里不受 autoDownloadFile 的控制。
+     *
+     * @param fileHandle 相机内存中的对象句柄
+     * @param size 对象大小，未知时为 0
+     * @param filename 相机给出的文件名，可以为 null
+     * @param event 对应的 Event 或者 ObjectInfo
+     * @return true if the object has been pulled from camera RAM
+     */
+    protected boolean processHostObjectAdded(int fileHandle, int size, String filename, Object event) {
+        Log.v(TAG, "start processHostObjectAdded : handle -> " + Integer.toHexString(fileHandle));
+        for(FileAddedListener fileAddedListener: fileAddedListenerList) {
+            fileAddedListener.onFileAdded(BaselineInitiator.this, fileHandle, event);
+        }
+        if (fileDownloadPath == null) {
+            Log.d(TAG, "fileDownloadPath is null, host object " + Integer.toHexString(fileHandle) + " dropped");
+            return false;
+        }
+
+        try {
+            if (downloadQueue != null && canQueueHostObjects()) {
+                return downloadQueue.enqueue(fileHandle, size, filename, true);
+            }
+            return downloadObject(fileHandle, size, filename, true);
+        } catch (PTPException e) {
+            e.printStackTrace();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Downloads an object into fileDownloadPath.  Called inline by the
+     * event handlers, or by the consumer thread of the download queue.
+     *
+     * @param fileHandle object handle
+     * @param size object size in bytes, or 0 if unknown
+     * @param filename file name to use, a random one is generated if null
+     * @param inMemory true if the object only lives in camera RAM
+     * @return true if the file transfer succeeds
+     */
+    public boolean downloadObject(int fileHandle, int size, String filename, boolean inMemory)
+            throws PTPException, IOException {
+        String downloadFileName = (filename != null && filename.length() > 0) ? filename : getRandomFileName();
+        File outputFile = new File(new File(fileDownloadPath), downloadFileName);
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+        String outputFilePath = outputFile.getPath();
+        if (inMemory) {
+            return importHostObject(fileHandle, size, outputFilePath);
+        }
+        journalStarted(fileHandle);
+        boolean done = false;
+        try {
+            done = importSizedFile(fileHandle, size, outputFilePath);
+            return done;
+        } finally {
+            if (done) {
+                journalCommitted(fileHandle);
+            } else {
+                journalFailed(fileHandle);
+            }
+        }
+    }
+
+    /**
+     * Downloads the objects a killed run left pending in the download
+     * journal, before anything new, without listing the camera.  Objects
+     * whose ObjectInfo is gone or changed are dropped from the journal.
+     *
+     * @return handles downloaded or queued
+     */
+    protected List<Integer> resumeJournal() {
+        List<Integer> resumed = new ArrayList<Integer>();
+        DownloadJournal journal = journal();
+        if (journal == null || !autoDownloadFile || fileDownloadPath == null) {
+            return resumed;
+        }
+        for (DownloadJournal.Entry entry : journal.getPending()) {
+            if (!isSessionActive()) {
+                break;
+            }
+            try {
+                if (entry.getAttempts() >= DownloadJournal.MAX_ATTEMPTS) {
+                    journal.drop(entry.handle);
+                    continue;
+                }
+                try {
+                    ObjectInfo info = getObjectInfo(entry.handle);
+                    if (entry.size != 0 && info.objectCompressedSize != entry.size) {
+                        // 同一个 handle 已经是别的对象，例如换了存储卡
+                        journal.drop(entry.handle);
+                        continue;
+                    }
+                } catch (PTPException e) {
+                    journal.drop(entry.handle);
+                    continue;
+                }
+                Log.d(TAG, "resume " + Integer.toHexString(entry.handle)
+                        + (entry.isStarted() ? ", interrupted download" : ""));
+                boolean ok;
+                if (downloadQueue != null) {
+                    ok = downloadQueue.enqueue(entry.handle, entry.size, entry.filename, false);
+                } else {
+                    ok = downloadObject(entry.handle, entry.size, entry.filename, false);
+                }
+                if (ok) {
+                    resumed.add(entry.handle);
+                }
+            } catch (PTPException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * Whether downloads of the handle are written to the download journal.
+     * Handles which are reused for different objects return false.
+     */
+    protected boolean isJournaled(int fileHandle) {
+        return true;
+    }
+
+    // 打开当前设备的日志，失败时不记录
+    protected DownloadJournal journal() {
+        DownloadJournal journal = downloadJournal;
+        if (journal == null) {
+            return null;
+        }
+        try {
+            journal.open(getDeviceUUID());
+            return journal;
+        } catch (IOException e) {
+            Log.d(TAG, "download journal not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // ObjectInfo 或 Integer handle
+    private void journalEnqueued(List<Object> objects) {
+        DownloadJournal journal = journal();
+        if (journal == null) {
+            return;
+        }
+        List<DownloadJournal.Entry> entries = new ArrayList<DownloadJournal.Entry>(objects.size());
+        for (Object o : objects) {
+            int h = o instanceof ObjectInfo ? ((ObjectInfo) o).getHandle() : (Integer) o;
+            if (isJournaled(h) && !journal.isPending(h)) {
+                entries.add(new DownloadJournal.Entry(h, o instanceof ObjectInfo
+                        ? ((ObjectInfo) o).objectCompressedSize : 0, null));
+            }
+        }
+        try {
+            journal.enqueued(entries);
+        } catch (IOException e) {
+            Log.d(TAG, "journal write failed: " + e.getMessage());
+        }
+    }
+
+    // 日志写入失败只影响中断后的恢复，不影响下载本身
+    private void journalStarted(int fileHandle) {
+        DownloadJournal journal = isJournaled(fileHandle) ? journal() : null;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.started(fileHandle);
+        } catch (IOException e) {
+            Log.d(TAG, "journal write failed: " + e.getMessage());
+        }
+    }
+
+    private void journalFailed(int fileHandle) {
+        DownloadJournal journal = isJournaled(fileHandle) ? journal() : null;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.failed(fileHandle);
+        } catch (IOException e) {
+            Log.d(TAG, "journal write failed: " + e.getMessage());
+        }
+    }
+
+    private void journalDrop(int fileHandle) {
+        DownloadJournal journal = isJournaled(fileHandle) ? journal() : null;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.drop(fileHandle);
+        } catch (IOException e) {
+            Log.d(TAG, "journal write failed: " + e.getMessage());
+        }
+    }
+
+    // 日志放弃的对象不再算已同步，之后的轮询重新作为新增对象；被规则拒绝的除外
+    private boolean forgetAbandoned(List<Integer> oldObjectHandles) {
+        DownloadJournal journal = downloadJournal;
+        if (journal == null) {
+            return false;
+        }
+        List<Integer> abandoned = journal.takeAbandoned();
+        abandoned.removeAll(rejectedHandles);
+        return !abandoned.isEmpty() && oldObjectHandles.removeAll(abandoned);
+    }
+
+    // 同步规则或格式参数改变后，被拒绝的对象重新作为新增对象
+    private void forgetRejected(List<Integer> oldObjectHandles) {
+        SyncFilter filter = syncFilter;
+        int format = getObjectHandleFilterParam;
+        if (filter == rejectedBy && format == rejectedFormat) {
+            return;
+        }
+        synchronized (rejectedHandles) {
+            oldObjectHandles.removeAll(rejectedHandles);
+            rejectedHandles.clear();
+        }
+        rejectedBy = filter;
+        rejectedFormat = format;
+    }
+
+    // 写入同步列表的 handle，不包括被同步规则拒绝的对象
+    private List<Integer> syncedHandles(List<Integer> handles) {
+        synchronized (rejectedHandles) {
+            if (rejectedHandles.isEmpty()) {
+                return handles;
+            }
+            List<Integer> synced = new ArrayList<Integer>(handles);
+            synced.removeAll(rejectedHandles);
+            return synced;
+        }
+    }
+
+    // 轮询列表并记住同步列表时，完成的 handle 保留到写入同步列表；其他模式下不需要
+    private void journalCommitted(int fileHandle) {
+        DownloadJournal journal = isJournaled(fileHandle) ? journal() : null;
+        if (journal == null || !journal.isPending(fileHandle)) {
+            return;
+        }
+        try {
+            journal.committed(fileHandle);
+        } catch (IOException e) {
+            Log.d(TAG, "journal write failed: " + e.getMessage());
+        }
+        if (syncTriggerMode != SyncParams.SYNC_TRIGGER_MODE_POLL_LIST
+                || syncRecordMode != SyncParams.SYNC_RECORD_MODE_REMEMBER) {
+            journal.acknowledge(Collections.singletonList(fileHandle));
+        }
+    }
+
+    /**
+     * Picks GetObject or partial reads for the object by its size.
+     *
+     * @param size object size from ObjectInfo, or 0 if unknown
+     */
+    private boolean importSizedFile(int fileHandle, int size, String outputFilePath)
+            throws PTPException, IOException {
+        long objectSize = size & 0xffffffffL;
+        boolean large = objectSize >= LARGE_OBJECT_SIZE;
+        if (large || (size > 0 && preferPartialReads())) {
+            if (large) {
+                // 视频等大文件，ObjectInfo 的 32 位长度不可靠
+                objectSize = getObjectSize64(fileHandle);
+            }
+            if (objectSize != 0xffffffffL) {
+                try {
+                    return importLargeFile(fileHandle, objectSize, outputFilePath);
+                } catch (PTPUnsupportedException e) {
+                    Log.d(TAG, "no partial read for object, fall back to GetObject: " + e.getMessage());
+                }
+            }
+        }
+        return importFile(fileHandle, outputFilePath);
+    }
+
+    /**
+     * Whether objects in camera RAM keep their handle until they are read.
+     * Cameras which reuse one fixed handle for every in-memory capture
+     * must pull the object before the next frame, so they return false.
+     */
+    protected boolean canQueueHostObjects() {
+        return true;
+    }
+
+    /**
+     * Pulls an object which only lives in camera RAM.  The default
+     * implementation is a plain GetObject; vendors with a dedicated
+     * transfer protocol override this.
+     *
+     * @param objectHandle handle of the in-memory object
+     * @param size object size in bytes, or 0 if unknown
+     * @param destPath path to destination for the file transfer
+     * @return true if the file transfer succeeds
+     */
+    protected boolean importHostObject(int objectHandle, int size, String destPath)
+            throws PTPException, IOException {
+        return importFile(objectHandle, destPath);
+    }
+
     private String getRandomFileName() {
         String downloadFileName;
         Integer randId = rand.nextInt();
@@ -1658,6 +3434,70 @@ public class BaselineInitiator extends NameFactory implements Runnable {
         this.getObjectHandleFilterParam = getObjectHandleFilterParam;
     }
 
+    public SyncFilter getSyncFilter() {
+        return syncFilter;
+    }
+
+    /**
+     * Selects the objects to sync; the rules are compiled here and checked
+     * before any transfer.  Formats and a single folder are passed to
+     * GetObjectHandles, so the camera does not list the other objects.
+     *
+     * @param rules the rules, or null to sync every object
+     */
+    public void setSyncRules(SyncRules rules) {
+        syncFilter = rules == null ? null : rules.compile();
+        synchronized (folderNames) {
+            folderNames.clear();
+        }
+    }
+
+    public int getCaptureDestination() {
+        return captureDestination;
+    }
+
+    /**
+     * 设置拍摄目标位置
+     * @param captureDestination SyncParams.CAPTURE_DESTINATION_CARD 或 SyncParams.CAPTURE_DESTINATION_HOST
+     */
+    public void setCaptureDestination(int captureDestination) {
+        this.captureDestination = captureDestination;
+    }
+
+    /**
+     * Called before releasing the shutter.  HOST 模式下照片只能读到
+     * fileDownloadPath，没有设置时相机内存中的照片无法读取，也不会被释放。
+     */
+    protected void checkCaptureDestination() throws PTPException {
+        if (captureDestination == SyncParams.CAPTURE_DESTINATION_HOST && fileDownloadPath == null) {
+            throw new PTPException("fileDownloadPath is not set, unable to capture to host");
+        }
+    }
+
+    public DownloadQueue getDownloadQueue() {
+        return downloadQueue;
+    }
+
+    /**
+     * 设置下载队列，设置为 null 时恢复在事件线程中直接下载
+     * @param downloadQueue
+     */
+    public void setDownloadQueue(DownloadQueue downloadQueue) {
+        this.downloadQueue = downloadQueue;
+    }
+
+    public DownloadJournal getDownloadJournal() {
+        return downloadJournal;
+    }
+
+    /**
+     * 设置下载日志，下一次开始轮询时继续上次没有完成的下载，设置为 null 时不记录
+     * @param downloadJournal
+     */
+    public void setDownloadJournal(DownloadJournal downloadJournal) {
+        this.downloadJournal = downloadJournal;
+    }
+
     public int getFileNameRule() {
         return fileNameRule;
     }
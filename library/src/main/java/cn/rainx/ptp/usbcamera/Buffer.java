@@ -187,6 +187,12 @@ public class Buffer
 
     /** Unmarshals a signed 32 bit integer from a fixed buffer offset. */
     protected final int getS32 (int index)
+    {
+	return getS32 (data, index);
+    }
+
+    /** Unmarshals a signed 32 bit little endian integer from a byte array. */
+    public static int getS32 (byte [] data, int index)
     {
 	int retval;
 
@@ -79,12 +79,48 @@ public class Command extends ParamVector {
      * @param param2 second operation parameter
      * @param param3 third operation parameter
      */
-    Command(int code, Session s, int param1, int param2, int param3) {
+    public Command(int code, Session s, int param1, int param2, int param3) {
         this(3, code, s);
         put32(param1);
         put32(param2);
         put32(param3);
     }
+
+    /**
+     * This creates a four-parameter command.
+     * @param code as defined in section 10, table 18
+     * @param s session this command is associated with
+     * @param param1 first operation parameter
+     * @param param2 second operation parameter
+     * @param param3 third operation parameter
+     * @param param4 fourth operation parameter
+     */
+    public Command(int code, Session s, int param1, int param2, int param3, int param4) {
+        this(4, code, s);
+        put32(param1);
+        put32(param2);
+        put32(param3);
+        put32(param4);
+    }
+
+    /**
+     * This creates a five-parameter command.
+     * @param code as defined in section 10, table 18
+     * @param s session this command is associated with
+     * @param param1 first operation parameter
+     * @param param2 second operation parameter
+     * @param param3 third operation parameter
+     * @param param4 fourth operation parameter
+     * @param param5 fifth operation parameter
+     */
+    public Command(int code, Session s, int param1, int param2, int param3, int param4, int param5) {
+        this(5, code, s);
+        put32(param1);
+        put32(param2);
+        put32(param3);
+        put32(param4);
+        put32(param5);
+    }
     // allegedly some commands could have up to five params
     public static final int GetDeviceInfo               = 0x1001;
     public static final int OpenSession                 = 0x1002;
@@ -176,6 +212,7 @@ public class Command extends ParamVector {
     public static final int EosZoomPosition             = 0x9159;
     public static final int EosSetLiveAFFrame           = 0x915a;
     public static final int EosAFCancel                 = 0x9160;
+    public static final int EosGetPartialObject64       = 0x9172;
     public static final int EosFapiMessageTx            = 0x91fe;
     public static final int EosFapiMessageRx            = 0x91ff;
     public static final int MtpGetObjectPropsSupported  = 0x9801;
@@ -234,6 +271,8 @@ public class Command extends ParamVector {
     public static final int PTP_OC_NIKON_MfDrive						= 0x9204;
     public static final int PTP_OC_NIKON_ChangeAfArea					= 0x9205;
     public static final int PTP_OC_NIKON_AfDriveCancel					= 0x9206;
+    public static final int PTP_OC_NIKON_GetObjectSize					= 0x9421;
+    public static final int PTP_OC_NIKON_GetPartialObjectEx				= 0x9431;
 	
 	
 	
@@ -325,6 +364,7 @@ public class Command extends ParamVector {
             case EosRemoeReleaseOff:          return "EosRemoeReleaseOff";
             case EosDoAF:                     return "EosDoAF";
             case EosAFCancel:                 return "EosAFCancel";
+            case EosGetPartialObject64:       return "EosGetPartialObject64";
             case EosRegistBackgroundImage:    return "EosRegistBackgroundImage";
             case EosChangePhotoStadIOMode:    return "EosChangePhotoStadIOMode";
             case EosGetPartialObjectEx:       return "EosGetPartialObjectEx";
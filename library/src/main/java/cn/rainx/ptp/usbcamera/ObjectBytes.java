@@ -0,0 +1,108 @@
+package cn.rainx.ptp.usbcamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte access for format parsers over an {@link ObjectChannel}, bounded by
+ * the number of bytes the parser may pull over USB.
+ */
+class ObjectBytes {
+    final int objectHandle;
+    final long size;
+    private final ObjectChannel channel;
+    private final long maxFetchBytes;
+    private final ByteBuffer one = ByteBuffer.allocate(1);
+
+    /**
+     * @param headerSize bytes read up front with one partial read
+     * @param maxFetchBytes reads past this many fetched bytes fail
+     */
+    ObjectBytes(ObjectChannel channel, int headerSize, long maxFetchBytes) throws PTPException, IOException {
+        this.channel = channel;
+        this.objectHandle = channel.getObjectHandle();
+        this.size = channel.size();
+        this.maxFetchBytes = maxFetchBytes;
+        try {
+            // 第一次读取整个文件头
+            channel.prefetch(0, headerSize);
+        } catch (IOException e) {
+            throw unwrap(e);
+        }
+    }
+
+    int u8(long pos) throws PTPException, IOException {
+        if (pos < 0 || pos >= size) {
+            throw new PTPException("offset " + pos + " beyond object 0x" + Integer.toHexString(objectHandle));
+        }
+        one.clear();
+        int n;
+        try {
+            channel.position(pos);
+            if (channel.getBytesFetched() >= maxFetchBytes && !channel.isCached(pos)) {
+                throw new PTPException("offset " + pos + " of 0x" + Integer.toHexString(objectHandle)
+                        + " is past the " + maxFetchBytes + " bytes to read");
+            }
+            n = channel.read(one);
+        } catch (IOException e) {
+            throw unwrap(e);
+        }
+        if (n < 1) {
+            throw new PTPException("short partial read at " + pos);
+        }
+        return one.get(0) & 0xff;
+    }
+
+    int u16(long pos, boolean le) throws PTPException, IOException {
+        int a = u8(pos);
+        int b = u8(pos + 1);
+        return le ? b << 8 | a : a << 8 | b;
+    }
+
+    long u32(long pos, boolean le) throws PTPException, IOException {
+        long a = u16(pos, le);
+        long b = u16(pos + 2, le);
+        return le ? b << 16 | a : a << 16 | b;
+    }
+
+    boolean matches(long pos, String ascii) throws PTPException, IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (pos + i >= size || u8(pos + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean matches(long pos, byte[] bytes) throws PTPException, IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            if (pos + i >= size || u8(pos + i) != (bytes[i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads length bytes as ISO-8859-1, up to the first NUL.
+     */
+    String ascii(long pos, int length) throws PTPException, IOException {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int c = u8(pos + i);
+            if (c == 0) {
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    // ObjectChannel 把 PTPException 包装成 IOException，这里还原
+    private PTPException unwrap(IOException e) throws IOException {
+        if (e.getCause() instanceof PTPException) {
+            return (PTPException) e.getCause();
+        }
+        throw e;
+    }
+}
@@ -0,0 +1,211 @@
+package cn.rainx.ptp.usbcamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only random access to an object on the camera, backed by partial
+ * reads with a block cache and read-ahead.
+ *
+ * 接口与 SeekableByteChannel 相同（position、size、read），但 SeekableByteChannel
+ * 需要 API 24，这里只实现 ReadableByteChannel；需要 InputStream 的解析器可以用
+ * Channels.newInputStream 包装。
+ *
+ * 未命中缓存时按块读取，连续顺序读取时预读的块数逐次翻倍，随机跳转时恢复为一块。
+ * 缓存按 LRU 淘汰，一次读取的块数不超过缓存的块数。不是线程安全的，每个使用者
+ * 单独打开一个。
+ */
+public class ObjectChannel implements ReadableByteChannel {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CACHE_BLOCKS = 32;
+    // 预读最多的块数
+    private static final int MAX_READ_AHEAD_BLOCKS = 16;
+
+    private final BaselineInitiator initiator;
+    private final int objectHandle;
+    private final long size;
+    private final int blockSize;
+    private final int cacheBlocks;
+    private final Map<Long, byte[]> blocks;
+
+    private long position;
+    private boolean open = true;
+
+    // 上一次未命中读取的结束块，用于判断顺序读取
+    private long nextSequentialBlock = -1;
+    private int readAhead = 1;
+
+    private long fetches;
+    private long bytesFetched;
+
+    /**
+     * Opens the object with the default block size and cache.
+     */
+    public ObjectChannel(BaselineInitiator initiator, int objectHandle) throws PTPException {
+        this(initiator, objectHandle, initiator.getObjectSize64(objectHandle),
+                DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_BLOCKS);
+    }
+
+    /**
+     * @param size object size, see {@link BaselineInitiator#getObjectSize64}
+     * @param blockSize size of one partial read without read-ahead
+     * @param cacheBlocks number of blocks kept
+     */
+    public ObjectChannel(BaselineInitiator initiator, int objectHandle, long size,
+                         int blockSize, final int cacheBlocks) {
+        this.initiator = initiator;
+        this.objectHandle = objectHandle;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.cacheBlocks = Math.max(1, cacheBlocks);
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > ObjectChannel.this.cacheBlocks;
+            }
+        };
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            byte[] block = block(position / blockSize);
+            int offset = (int) (position % blockSize);
+            if (offset >= block.length) {
+                // 相机返回的数据比声明的大小短
+                break;
+            }
+            int n = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, n);
+            position += n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Reads the blocks covering [position, position + length) with one
+     * partial read, for callers which know what they will touch, such as
+     * a file header.  Only as many blocks as the cache holds are read.
+     */
+    public void prefetch(long position, int length) throws IOException {
+        long first = position / blockSize;
+        long last = (Math.min(position + length, size) - 1) / blockSize;
+        if (last >= first) {
+            fetch(first, (int) Math.min(last - first + 1, cacheBlocks));
+        }
+    }
+
+    /**
+     * @return true if the byte at position is in the block cache
+     */
+    public boolean isCached(long position) {
+        return blocks.containsKey(position / blockSize);
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public ObjectChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int getObjectHandle() {
+        return objectHandle;
+    }
+
+    /**
+     * @return number of partial reads issued
+     */
+    public long getFetches() {
+        return fetches;
+    }
+
+    /**
+     * @return bytes read over USB
+     */
+    public long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        blocks.clear();
+    }
+
+    private byte[] block(long index) throws IOException {
+        byte[] block = blocks.get(index);
+        if (block != null) {
+            return block;
+        }
+        if (index == nextSequentialBlock) {
+            readAhead = Math.min(readAhead * 2, Math.min(MAX_READ_AHEAD_BLOCKS, cacheBlocks));
+        } else {
+            readAhead = 1;
+        }
+        int count = 1;
+        while (count < readAhead && !blocks.containsKey(index + count)
+                && (index + count) * blockSize < size) {
+            count++;
+        }
+        return fetch(index, count);
+    }
+
+    /**
+     * @return the first block read
+     */
+    private byte[] fetch(long first, int count) throws IOException {
+        long offset = first * blockSize;
+        int length = (int) Math.min((long) count * blockSize, size - offset);
+        byte[] data;
+        try {
+            data = initiator.readPartialObject(objectHandle, offset, length);
+        } catch (PTPException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        fetches++;
+        bytesFetched += data.length;
+        nextSequentialBlock = first + count;
+        byte[] firstBlock = null;
+        for (int i = 0; i < count; i++) {
+            int from = i * blockSize;
+            int n = Math.max(0, Math.min(blockSize, data.length - from));
+            byte[] block = new byte[n];
+            if (n > 0) {
+                System.arraycopy(data, from, block, 0, n);
+            }
+            blocks.put(first + i, block);
+            if (i == 0) {
+                firstBlock = block;
+            }
+        }
+        return firstBlock;
+    }
+}
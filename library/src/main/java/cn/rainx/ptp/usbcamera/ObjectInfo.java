@@ -20,6 +20,9 @@ package cn.rainx.ptp.usbcamera;
 import android.widget.TextView;
 
 import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
 import java.net.URLConnection;
 
 
@@ -539,6 +542,56 @@ public class ObjectInfo extends Data
     public static final int JPX = 0x3810;
 
 
+    /** Returns the handle this information describes. */
+    public int getHandle ()
+	{ return handle; }
+
+    /** Returns the object file name (sans path), or null. */
+    public String getFilename ()
+	{ return filename; }
+
+    /** Returns the object format code, as defined in section 6.2 */
+    public int getObjectFormatCode ()
+	{ return objectFormatCode; }
+
+    /** Returns the object size in bytes; it is unsigned on the wire. */
+    public int getObjectCompressedSize ()
+	{ return objectCompressedSize; }
+
+    /** Returns the capture date as a PTP DateTime string, or null. */
+    public String getCaptureDate ()
+	{ return captureDate; }
+
+    /**
+     * Returns the capture date in milliseconds, read in the local time
+     * zone, or -1 if the camera did not report a valid one.
+     */
+    public long getCaptureTime ()
+    {
+	// PTP DateTime: YYYYMMDDThhmmss, optionally followed by .s and a zone
+	if (captureDate == null || captureDate.length () < 15)
+	    return -1;
+	try {
+	    SimpleDateFormat format = new SimpleDateFormat ("yyyyMMdd'T'HHmmss", Locale.US);
+	    format.setLenient (false);
+	    return format.parse (captureDate.substring (0, 15)).getTime ();
+	} catch (ParseException e) {
+	    return -1;
+	}
+    }
+
+    /** Returns 0 for read/write objects, non-zero for protected ones. */
+    public int getProtectionStatus ()
+	{ return protectionStatus; }
+
+    /** Returns the id of the storage holding the object. */
+    public int getStorageId ()
+	{ return storageId; }
+
+    /** Returns the handle of the parent association, or 0 at the root. */
+    public int getParentObject ()
+	{ return parentObject; }
+
     /**
      * Returns true for format codes that have the image type bit set.
      */
@@ -18,16 +18,21 @@ package cn.rainx.ptp.usbcamera;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import cn.rainx.ptp.transfer.ObjectSink;
 
 /**
  * Used with {@link BaselineInitiator#fillObject fillObject}, this writes
- * objects to a give output stream.
+ * objects to a give output stream.  It is also the sink used by
+ * {@link BaselineInitiator#importObject(int, OutputStream)}; the stream
+ * is flushed but not closed when the object is complete.
  *
  * @see BaselineInitiator#fillObject
  *
  * @author ste
  */
-public class OutputStreamData extends Data {
+public class OutputStreamData extends Data implements ObjectSink {
 
     private OutputStream out;
 
@@ -53,6 +58,25 @@ public class OutputStreamData extends Data {
         out.close();
     }
 
+    @Override
+    public void begin(int handle, long size) throws IOException {
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        chunk.position(chunk.limit());
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void abort() {
+    }
+
     @Override
     protected final void parse() {
     }
@@ -0,0 +1,243 @@
+package cn.rainx.ptp.usbcamera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the JPEG preview embedded in a RAW file without downloading it.
+ *
+ * 通过 ObjectChannel 用 GetPartialObject（佳能为 EosGetPartialObject）只读取
+ * 文件头，按格式定位内嵌的 JPEG，再读取这一段：
+ *
+ * CR2、NEF、ARW、DNG、ORF、PEF、RW2 等 TIFF 格式遍历 IFD 链和 SubIFD，取
+ * JPEGInterchangeFormat、压缩方式为 JPEG 的单条 strip 和 RW2 的 JpgFromRaw 中
+ * 最大的一个可显示的 JPEG（无损 JPEG 的 RAW 数据被排除）；CR3 读取 ISO-BMFF
+ * 顶层的 PRVW uuid box；RAF 读取文件头中的 JPEG 位置。
+ *
+ * 相机不支持部分读取或找不到预览时，使用厂商的预览指令（见
+ * BaselineInitiator.readVendorPreview）。
+ */
+public class RawPreviewExtractor {
+
+    public static final String TAG = "RawPreviewExtractor";
+
+    // 第一次读取的文件头大小，通常已包含所有 IFD
+    private static final int HEADER_SIZE = 256 * 1024;
+    // 定位预览时最多读取的字节数
+    private static final int MAX_PROBE_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_IFDS = 32;
+    private static final int MAX_IFD_ENTRIES = 512;
+    private static final int MAX_BOXES = 64;
+
+    private static final int TAG_JPG_FROM_RAW = 0x002e;
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int TAG_STRIP_BYTE_COUNTS = 0x0117;
+    private static final int TAG_SUB_IFDS = 0x014a;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+
+    // CR3 预览所在 uuid box 的 uuid
+    private static final byte[] PRVW_UUID = {
+            (byte) 0xea, (byte) 0xf4, (byte) 0x2b, (byte) 0x5e, (byte) 0x1c, (byte) 0x98, (byte) 0x4b, (byte) 0x88,
+            (byte) 0xb9, (byte) 0xfb, (byte) 0xb7, (byte) 0xdc, (byte) 0x40, (byte) 0x6e, (byte) 0x4d, (byte) 0x16 };
+
+    private final BaselineInitiator initiator;
+    private int maxPreviewBytes = 16 * 1024 * 1024;
+
+    public RawPreviewExtractor(BaselineInitiator initiator) {
+        this.initiator = initiator;
+    }
+
+    /**
+     * @return the embedded JPEG, or null if none was found
+     */
+    public byte[] extract(int objectHandle) throws PTPException, IOException {
+        long startedAt = System.currentTimeMillis();
+        byte[] preview = null;
+        try {
+            ObjectBytes reader = new ObjectBytes(new ObjectChannel(initiator, objectHandle), HEADER_SIZE, MAX_PROBE_BYTES);
+            long[] range = locate(reader);
+            if (range != null) {
+                preview = initiator.readPartialObject(objectHandle, range[0], (int) range[1]);
+            }
+        } catch (PTPException e) {
+            // 包括 PTPUnsupportedException：相机不支持部分读取
+            Log.d(TAG, "embedded preview not read: " + e.getMessage());
+        }
+        if (preview == null) {
+            preview = initiator.readVendorPreview(objectHandle);
+        }
+        Log.d(TAG, "preview of 0x" + Integer.toHexString(objectHandle) + ": "
+                + (preview == null ? "none" : preview.length + " bytes")
+                + " in " + (System.currentTimeMillis() - startedAt) + "ms");
+        return preview;
+    }
+
+    /**
+     * @param maxPreviewBytes larger embedded JPEGs are skipped
+     */
+    public void setMaxPreviewBytes(int maxPreviewBytes) {
+        this.maxPreviewBytes = maxPreviewBytes;
+    }
+
+    /**
+     * @return offset and length of the preview, or null
+     */
+    long[] locate(ObjectBytes r) throws PTPException, IOException {
+        if (r.size < 16) {
+            return null;
+        }
+        if (r.matches(0, "FUJIFILMCCD-RAW")) {
+            return checked(r, r.u32(84, false), r.u32(88, false));
+        }
+        if (r.matches(4, "ftyp")) {
+            return locateBmff(r);
+        }
+        if (r.matches(0, "II") || r.matches(0, "MM")) {
+            return locateTiff(r);
+        }
+        return null;
+    }
+
+    private long[] locateTiff(ObjectBytes r) throws PTPException, IOException {
+        boolean le = r.u8(0) == 'I';
+        List<long[]> candidates = new ArrayList<long[]>();
+        Set<Long> visited = new HashSet<Long>();
+        LinkedList<Long> pending = new LinkedList<Long>();
+        pending.add(r.u32(4, le));
+
+        while (!pending.isEmpty() && visited.size() < MAX_IFDS) {
+            long ifd = pending.removeFirst();
+            if (ifd < 8 || ifd + 2 > r.size || !visited.add(ifd)) {
+                continue;
+            }
+            int count = Math.min(r.u16(ifd, le), MAX_IFD_ENTRIES);
+            Map<Integer, Long> values = new HashMap<Integer, Long>();
+            for (int i = 0; i < count; i++) {
+                long entry = ifd + 2 + 12 * i;
+                int tag = r.u16(entry, le);
+                int type = r.u16(entry + 2, le);
+                long n = r.u32(entry + 4, le);
+                if (tag == TAG_SUB_IFDS) {
+                    long at = n == 1 ? entry + 8 : r.u32(entry + 8, le);
+                    for (int k = 0; k < Math.min(n, MAX_IFDS); k++) {
+                        pending.add(r.u32(at + 4 * k, le));
+                    }
+                } else if (tag == TAG_JPG_FROM_RAW && n > 4) {
+                    candidates.add(new long[] { r.u32(entry + 8, le), n });
+                } else if (n == 1 && (type == 3 || type == 4)) {
+                    values.put(tag, type == 3 ? r.u16(entry + 8, le) : r.u32(entry + 8, le));
+                }
+            }
+            pending.add(r.u32(ifd + 2 + 12 * count, le));
+
+            Long jpegOffset = values.get(TAG_JPEG_OFFSET);
+            Long jpegLength = values.get(TAG_JPEG_LENGTH);
+            if (jpegOffset != null && jpegLength != null) {
+                candidates.add(new long[] { jpegOffset, jpegLength });
+            }
+            Long compression = values.get(TAG_COMPRESSION);
+            Long stripOffset = values.get(TAG_STRIP_OFFSETS);
+            Long stripLength = values.get(TAG_STRIP_BYTE_COUNTS);
+            if (compression != null && (compression == 6 || compression == 7)
+                    && stripOffset != null && stripLength != null) {
+                candidates.add(new long[] { stripOffset, stripLength });
+            }
+        }
+
+        // 最大的优先，无损 JPEG（RAW 数据本身）由 checked 排除
+        Collections.sort(candidates, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[1] < b[1] ? 1 : a[1] > b[1] ? -1 : 0;
+            }
+        });
+        for (long[] candidate : candidates) {
+            long[] range = checked(r, candidate[0], candidate[1]);
+            if (range != null) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    private long[] locateBmff(ObjectBytes r) throws PTPException, IOException {
+        long pos = 0;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= r.size; i++) {
+            long size = r.u32(pos, false);
+            int header = 8;
+            if (size == 1) {
+                size = r.u32(pos + 8, false) << 32 | r.u32(pos + 12, false);
+                header = 16;
+            } else if (size == 0) {
+                size = r.size - pos;
+            }
+            if (size < header) {
+                return null;
+            }
+            if (r.matches(pos + 4, "uuid") && r.matches(pos + header, PRVW_UUID)) {
+                return locatePrvw(r, pos + header + 16, pos + size);
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    // PRVW box 中 JPEG 前面紧跟着 32 位的 JPEG 长度
+    private long[] locatePrvw(ObjectBytes r, long from, long end) throws PTPException, IOException {
+        for (long pos = from; pos + 3 < Math.min(end, from + 64); pos++) {
+            if (r.u8(pos) == 0xff && r.u8(pos + 1) == 0xd8 && r.u8(pos + 2) == 0xff && pos - 4 >= from) {
+                return checked(r, pos, r.u32(pos - 4, false));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the range if it holds a JPEG a decoder can show
+     */
+    private long[] checked(ObjectBytes r, long offset, long length) throws PTPException, IOException {
+        if (length <= 4 || length > maxPreviewBytes || offset + length > r.size || !isDisplayableJpeg(r, offset, length)) {
+            return null;
+        }
+        return new long[] { offset, length };
+    }
+
+    // 找到第一个 SOF：只接受 baseline、extended 和 progressive
+    private boolean isDisplayableJpeg(ObjectBytes r, long offset, long length) throws PTPException, IOException {
+        if (r.u8(offset) != 0xff || r.u8(offset + 1) != 0xd8) {
+            return false;
+        }
+        long end = offset + length;
+        long pos = offset + 2;
+        while (pos + 4 <= end) {
+            if (r.u8(pos) != 0xff) {
+                return false;
+            }
+            int marker = r.u8(pos + 1);
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                return marker <= 0xc2;
+            }
+            if (marker == 0xda) {
+                return false;
+            }
+            pos += 2 + r.u16(pos + 2, false);
+        }
+        return false;
+    }
+}
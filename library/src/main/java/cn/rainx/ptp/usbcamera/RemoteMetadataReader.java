@@ -0,0 +1,405 @@
+package cn.rainx.ptp.usbcamera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import cn.rainx.ptp.db.ObjectCache;
+import cn.rainx.ptp.db.ObjectMetadata;
+
+/**
+ * Reads capture time, orientation, rating and camera serial of objects on
+ * the camera from their first 128 KB, through partial reads.
+ *
+ * 只解析需要的几个 TIFF/EXIF 标签：JPEG 读 APP1 中的 EXIF 和 XMP，CR2、NEF、
+ * ARW、DNG 等 TIFF 格式直接读 IFD，CR3 读 moov 中 Canon uuid box 的 CMT1/CMT2，
+ * RAF 读内嵌 JPEG 的 EXIF。
+ *
+ * 结果按对象指纹保存到 ObjectMetadata 表，再次读取时不走 USB。相机不支持部分
+ * 读取时只用 ObjectInfo 的拍摄时间，这种结果不保存。
+ */
+public class RemoteMetadataReader {
+
+    public static final String TAG = "RemoteMetadataReader";
+
+    // 先读 64K，必要时再读一块，最多 128K
+    private static final int HEADER_SIZE = 64 * 1024;
+    private static final int MAX_FETCH_BYTES = 128 * 1024;
+    private static final int BLOCK_SIZE = 32 * 1024;
+    private static final int MAX_IFD_ENTRIES = 512;
+    private static final int MAX_XMP_SCAN = 16 * 1024;
+    private static final int MAX_BOXES = 64;
+    // sqlite 单条语句的参数个数限制为 999
+    private static final int LOOKUP_BATCH = 500;
+
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_XMP = 0x02bc;
+    private static final int TAG_RATING = 0x4746;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_BODY_SERIAL_NUMBER = 0xa431;
+
+    private static final String XMP_APP1 = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String XMP_RATING = "xmp:Rating";
+
+    // CR3 moov 中保存 CMT1..CMT4 的 uuid box
+    private static final byte[] CANON_UUID = {
+            (byte) 0x85, (byte) 0xc0, (byte) 0xb6, (byte) 0x87, (byte) 0x82, (byte) 0x0f, (byte) 0x11, (byte) 0xe0,
+            (byte) 0x81, (byte) 0x11, (byte) 0xf4, (byte) 0xce, (byte) 0x46, (byte) 0x2b, (byte) 0x6a, (byte) 0x48 };
+    // CR3 顶层保存 XMP 的 uuid box
+    private static final byte[] XMP_UUID = {
+            (byte) 0xbe, (byte) 0x7a, (byte) 0xcf, (byte) 0xcb, (byte) 0x97, (byte) 0xa9, (byte) 0x42, (byte) 0xe8,
+            (byte) 0x9c, (byte) 0x71, (byte) 0x99, (byte) 0x94, (byte) 0x91, (byte) 0xe3, (byte) 0xaf, (byte) 0xac };
+
+    private final BaselineInitiator initiator;
+    private long remoteReads;
+    private long catalogHits;
+
+    public RemoteMetadataReader(BaselineInitiator initiator) {
+        this.initiator = initiator;
+    }
+
+    /**
+     * @return metadata of the object, from the catalog if it was read before
+     */
+    public ObjectMetadata read(ObjectInfo info) throws PTPException, IOException {
+        return readAll(Collections.singletonList(info)).get(0);
+    }
+
+    /**
+     * Reads many objects: the catalog is queried in batches, missing objects
+     * are read from the camera one after another and saved in one
+     * transaction.  An object which fails to read is left out of the
+     * catalog and does not stop the others.
+     *
+     * @return metadata in the order of infos
+     */
+    public List<ObjectMetadata> readAll(List<ObjectInfo> infos) throws PTPException, IOException {
+        String deviceUUID = initiator.getDeviceUUID();
+        Map<String, ObjectMetadata> cached = lookup(deviceUUID, infos);
+        List<ObjectMetadata> result = new ArrayList<ObjectMetadata>(infos.size());
+        List<ObjectMetadata> fresh = new ArrayList<ObjectMetadata>();
+        for (ObjectInfo info : infos) {
+            String cacheKey = ObjectCache.cacheKey(deviceUUID, info);
+            ObjectMetadata metadata = cached.get(cacheKey);
+            if (metadata != null) {
+                catalogHits++;
+                result.add(metadata);
+                continue;
+            }
+            metadata = new ObjectMetadata(cacheKey);
+            boolean read;
+            try {
+                read = readRemote(info, metadata);
+            } catch (PTPException e) {
+                // 一个对象读取失败不影响其他对象，已经读到的对象仍然保存
+                Log.d(TAG, "metadata of 0x" + Integer.toHexString(info.getHandle()) + " not read: " + e.getMessage());
+                read = false;
+            } catch (IOException e) {
+                Log.d(TAG, "metadata of 0x" + Integer.toHexString(info.getHandle()) + " not read: " + e.getMessage());
+                read = false;
+            }
+            if (read) {
+                remoteReads++;
+                metadata.setCreatedAt(new Date().getTime());
+                fresh.add(metadata);
+            } else if (info.getCaptureTime() >= 0) {
+                metadata.setCaptureTime(info.getCaptureTime());
+            }
+            result.add(metadata);
+        }
+        if (!fresh.isEmpty()) {
+            ObjectMetadata.saveInTx(fresh);
+        }
+        return result;
+    }
+
+    /**
+     * Looks the objects up in the catalog only, without reading anything
+     * from the camera.
+     *
+     * @return metadata in the order of infos, null for objects never read
+     */
+    public List<ObjectMetadata> lookupAll(List<ObjectInfo> infos) {
+        String deviceUUID = initiator.getDeviceUUID();
+        Map<String, ObjectMetadata> cached = lookup(deviceUUID, infos);
+        List<ObjectMetadata> result = new ArrayList<ObjectMetadata>(infos.size());
+        for (ObjectInfo info : infos) {
+            ObjectMetadata metadata = cached.get(ObjectCache.cacheKey(deviceUUID, info));
+            if (metadata != null) {
+                catalogHits++;
+            }
+            result.add(metadata);
+        }
+        return result;
+    }
+
+    public long getRemoteReads() {
+        return remoteReads;
+    }
+
+    public long getCatalogHits() {
+        return catalogHits;
+    }
+
+    private Map<String, ObjectMetadata> lookup(String deviceUUID, List<ObjectInfo> infos) {
+        Map<String, ObjectMetadata> found = new HashMap<String, ObjectMetadata>();
+        for (int from = 0; from < infos.size(); from += LOOKUP_BATCH) {
+            List<ObjectInfo> batch = infos.subList(from, Math.min(infos.size(), from + LOOKUP_BATCH));
+            StringBuilder where = new StringBuilder();
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < args.length; i++) {
+                where.append(i == 0 ? "?" : ",?");
+                args[i] = ObjectCache.cacheKey(deviceUUID, batch.get(i));
+            }
+            for (ObjectMetadata metadata : ObjectMetadata.find(ObjectMetadata.class,
+                    "CACHE_KEY IN (" + where + ")", args)) {
+                found.put(metadata.getCacheKey(), metadata);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return false if the object can not be read remotely
+     */
+    private boolean readRemote(ObjectInfo info, ObjectMetadata metadata) throws PTPException, IOException {
+        long size = info.getObjectCompressedSize() & 0xffffffffL;
+        if (size < 16) {
+            return false;
+        }
+        ObjectBytes b;
+        try {
+            b = new ObjectBytes(new ObjectChannel(initiator, info.getHandle(), size, BLOCK_SIZE,
+                    MAX_FETCH_BYTES / BLOCK_SIZE), HEADER_SIZE, MAX_FETCH_BYTES);
+        } catch (PTPUnsupportedException e) {
+            Log.d(TAG, "no partial read: " + e.getMessage());
+            return false;
+        }
+        try {
+            if (b.u16(0, false) == 0xffd8) {
+                parseJpeg(b, 0, metadata);
+            } else if (b.matches(0, "FUJIFILMCCD-RAW")) {
+                parseJpeg(b, b.u32(84, false), metadata);
+            } else if (b.matches(4, "ftyp")) {
+                parseBmff(b, metadata);
+            } else if (b.matches(0, "II") || b.matches(0, "MM")) {
+                parseTiff(b, 0, metadata);
+            }
+        } catch (PTPException e) {
+            // 标签在读取范围之外，保留已经读到的字段
+            Log.d(TAG, "metadata of 0x" + Integer.toHexString(info.getHandle()) + " incomplete: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void parseJpeg(ObjectBytes b, long offset, ObjectMetadata metadata) throws PTPException, IOException {
+        if (b.u16(offset, false) != 0xffd8) {
+            return;
+        }
+        long pos = offset + 2;
+        while (pos + 4 <= b.size) {
+            if (b.u8(pos) != 0xff) {
+                return;
+            }
+            int marker = b.u8(pos + 1);
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                return;
+            }
+            int length = b.u16(pos + 2, false);
+            long segment = pos + 4;
+            if (marker == 0xe1) {
+                if (b.matches(segment, "Exif\0\0")) {
+                    parseTiff(b, segment + 6, metadata);
+                } else if (b.matches(segment, XMP_APP1)) {
+                    parseXmp(b, segment + XMP_APP1.length(), Math.max(0, length - 2 - XMP_APP1.length()),
+                            metadata);
+                }
+            }
+            pos += 2 + length;
+        }
+    }
+
+    private void parseTiff(ObjectBytes b, long base, ObjectMetadata metadata) throws PTPException, IOException {
+        boolean le = b.u8(base) == 'I';
+        long ifd = b.u32(base + 4, le);
+        long exifIfd = parseIfd(b, base, ifd, le, metadata);
+        if (exifIfd > 0) {
+            parseIfd(b, base, exifIfd, le, metadata);
+        }
+    }
+
+    /**
+     * Picks the wanted tags out of one IFD; the tags are unique across IFD0
+     * and the EXIF IFD, so both go through here.
+     *
+     * @return offset of the EXIF IFD, or 0
+     */
+    private long parseIfd(ObjectBytes b, long base, long ifd, boolean le, ObjectMetadata metadata)
+            throws PTPException, IOException {
+        long exifIfd = 0;
+        String dateTime = null;
+        int count = Math.min(b.u16(base + ifd, le), MAX_IFD_ENTRIES);
+        for (int i = 0; i < count; i++) {
+            long entry = base + ifd + 2 + 12 * i;
+            int tag = b.u16(entry, le);
+            int type = b.u16(entry + 2, le);
+            long n = b.u32(entry + 4, le);
+            long value = n * (type == 3 ? 2 : type == 4 ? 4 : 1) <= 4 ? entry + 8 : base + b.u32(entry + 8, le);
+            switch (tag) {
+                case TAG_MAKE:
+                    metadata.setMake(b.ascii(value, (int) Math.min(n, 64)).trim());
+                    break;
+                case TAG_MODEL:
+                    metadata.setModel(b.ascii(value, (int) Math.min(n, 64)).trim());
+                    break;
+                case TAG_ORIENTATION:
+                    metadata.setOrientation(b.u16(value, le));
+                    break;
+                case TAG_RATING:
+                    metadata.setRating(b.u16(value, le));
+                    break;
+                case TAG_DATE_TIME:
+                    dateTime = b.ascii(value, (int) Math.min(n, 32));
+                    break;
+                case TAG_DATE_TIME_ORIGINAL:
+                    Long captureTime = parseExifDate(b.ascii(value, (int) Math.min(n, 32)));
+                    if (captureTime != null) {
+                        metadata.setCaptureTime(captureTime);
+                    }
+                    break;
+                case TAG_BODY_SERIAL_NUMBER:
+                    metadata.setSerialNumber(b.ascii(value, (int) Math.min(n, 64)).trim());
+                    break;
+                case TAG_EXIF_IFD:
+                    exifIfd = b.u32(value, le);
+                    break;
+                case TAG_XMP:
+                    if (metadata.getRating() == null) {
+                        parseXmp(b, value, (int) Math.min(n, MAX_XMP_SCAN), metadata);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        // 没有 DateTimeOriginal 时用 DateTime
+        if (metadata.getCaptureTime() == null && dateTime != null) {
+            metadata.setCaptureTime(parseExifDate(dateTime));
+        }
+        return exifIfd;
+    }
+
+    // 只取 xmp:Rating，属性形式 xmp:Rating="3" 或元素形式 <xmp:Rating>3</xmp:Rating>
+    private void parseXmp(ObjectBytes b, long offset, int length, ObjectMetadata metadata)
+            throws PTPException, IOException {
+        String xmp = b.ascii(offset, Math.min(length, MAX_XMP_SCAN));
+        int at = xmp.indexOf(XMP_RATING);
+        if (at < 0) {
+            return;
+        }
+        int i = at + XMP_RATING.length();
+        while (i < xmp.length() && (xmp.charAt(i) == '=' || xmp.charAt(i) == '"'
+                || xmp.charAt(i) == '\'' || xmp.charAt(i) == '>')) {
+            i++;
+        }
+        int start = i;
+        if (i < xmp.length() && xmp.charAt(i) == '-') {
+            i++;
+        }
+        while (i < xmp.length() && Character.isDigit(xmp.charAt(i))) {
+            i++;
+        }
+        if (i > start && !(i == start + 1 && xmp.charAt(start) == '-')) {
+            metadata.setRating(Integer.parseInt(xmp.substring(start, i)));
+        }
+    }
+
+    private void parseBmff(ObjectBytes b, ObjectMetadata metadata) throws PTPException, IOException {
+        long[] moov = findBox(b, 0, b.size, "moov", null);
+        if (moov != null) {
+            long[] canon = findBox(b, moov[0], moov[1], "uuid", CANON_UUID);
+            if (canon != null) {
+                long[] cmt1 = findBox(b, canon[0], canon[1], "CMT1", null);
+                if (cmt1 != null) {
+                    parseTiff(b, cmt1[0], metadata);
+                }
+                long[] cmt2 = findBox(b, canon[0], canon[1], "CMT2", null);
+                if (cmt2 != null) {
+                    parseTiff(b, cmt2[0], metadata);
+                }
+            }
+        }
+        if (metadata.getRating() == null) {
+            long[] xmp = findBox(b, 0, b.size, "uuid", XMP_UUID);
+            if (xmp != null) {
+                parseXmp(b, xmp[0], (int) Math.min(xmp[1] - xmp[0], MAX_XMP_SCAN), metadata);
+            }
+        }
+    }
+
+    /**
+     * Finds a child box in [from, end).
+     *
+     * @param uuid for uuid boxes, the uuid to match; the payload then
+     *     starts after it
+     * @return payload start and box end, or null
+     */
+    private long[] findBox(ObjectBytes b, long from, long end, String type, byte[] uuid)
+            throws PTPException, IOException {
+        long pos = from;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= end; i++) {
+            long size = b.u32(pos, false);
+            int header = 8;
+            if (size == 1) {
+                size = b.u32(pos + 8, false) << 32 | b.u32(pos + 12, false);
+                header = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < header) {
+                return null;
+            }
+            if (b.matches(pos + 4, type)) {
+                if (uuid == null) {
+                    return new long[] { pos + header, pos + size };
+                }
+                if (b.matches(pos + header, uuid)) {
+                    return new long[] { pos + header + 16, pos + size };
+                }
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    private static Long parseExifDate(String date) {
+        if (date == null || date.length() < 19) {
+            return null;
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+            // 相机未设置时间时写入 0000:00:00 00:00:00
+            format.setLenient(false);
+            return format.parse(date.substring(0, 19)).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
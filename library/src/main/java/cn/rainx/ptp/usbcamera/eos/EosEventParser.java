@@ -22,6 +22,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 
+import cn.rainx.ptp.usbcamera.Buffer;
 import cn.rainx.ptp.usbcamera.PTPException;
 import cn.rainx.ptp.usbcamera.PTPUnsupportedException;
 
@@ -105,6 +106,8 @@ public class EosEventParser implements EosEventConstants {
                     Log.d("EventParser", "          params " + i + ": " + String.format("%s", p));
                 } else if (p instanceof Boolean) {
                     Log.d("EventParser", "          params " + i + ": " + String.format("%b", p));
+                } else if (p instanceof int[]) {
+                    Log.d("EventParser", "          params " + i + ": " + ((int[]) p).length + " values");
                 } else{
                     Log.d("EventParser", "          params " + i + ": " + String.format("0x%04x  %d", p, p));
                 }
@@ -134,6 +137,10 @@ public class EosEventParser implements EosEventConstants {
              event.setParam(1, getNextS32());
         } else if (code == EosEventObjectAddedEx) {
              parseEosEventObjectAddedEx(event);
+        } else if (code == EosEventRequestObjectTransfer) {
+             parseEosEventRequestObjectTransfer(event, len);
+        } else if (code == EosEventAvailListChanged) {
+             parseEosEventAvailListChanged(event, len);
         } else{
             is.skip(len);
             throw new PTPUnsupportedException("Unsupported event");
@@ -192,6 +199,64 @@ public class EosEventParser implements EosEventConstants {
         is.skip(4);
     }
 
+    /**
+     * Sent instead of ObjectAddedEx when the capture destination is the host:
+     * the object only lives in camera RAM. Parameters use the same indexes
+     * as ObjectAddedEx; storage id and parent object are always 0.
+     */
+    private void parseEosEventRequestObjectTransfer(EosEvent event, int len)
+    throws IOException {
+        if (len < 16) {
+            throw new IOException("RequestObjectTransfer event too short: " + len);
+        }
+        byte[] record = readRecord(len);
+
+        event.setParam(1, Buffer.getS32(record, 0));        // object id
+        event.setParam(2, 0);                        // storage id
+        event.setParam(3, 0);                        // parent object id
+        event.setParam(4, Buffer.getS32(record, 4) & 0xffff); // format
+        event.setParam(5, Buffer.getS32(record, 12));       // size
+        StringBuilder name = new StringBuilder();
+        for (int i = 20; i < len && record[i] != 0; i++) {
+            name.append((char) record[i]);
+        }
+        event.setParam(6, name.toString());          // file name
+    }
+
+    /**
+     * The list of values a property accepts in the current camera mode.
+     * Parameter 1 is the property code, parameter 2 an int[] of values.
+     */
+    private void parseEosEventAvailListChanged(EosEvent event, int len)
+    throws IOException {
+        byte[] record = readRecord(len);
+        if (len < 12) {
+            throw new IOException("AvailListChanged event too short: " + len);
+        }
+        int count = Buffer.getS32(record, 8);
+        // values are 32 bit, whatever the property type
+        count = Math.max(0, Math.min(count, (len - 12) / 4));
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Buffer.getS32(record, 12 + i * 4);
+        }
+        event.setParam(1, Buffer.getS32(record, 0));  // property
+        event.setParam(2, values);
+    }
+
+    private byte[] readRecord(int len) throws IOException {
+        byte[] record = new byte[len];
+        int read = 0;
+        while (read < len) {
+            int n = is.read(record, read, len - read);
+            if (n < 0) {
+                throw new IOException("Truncated event record");
+            }
+            read += n;
+        }
+        return record;
+    }
+
     /**
      * Reads and return the next signed 32 bit integer read from the input
      * stream.
@@ -24,15 +24,22 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import cn.rainx.ptp.liveview.JpegLocator;
+import cn.rainx.ptp.liveview.LiveViewFrame;
+
+import cn.rainx.ptp.params.SyncFilter;
 import cn.rainx.ptp.params.SyncParams;
 import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.Buffer;
 import cn.rainx.ptp.usbcamera.Command;
 import cn.rainx.ptp.usbcamera.Container;
 import cn.rainx.ptp.usbcamera.Data;
 import cn.rainx.ptp.usbcamera.DevicePropDesc;
+import cn.rainx.ptp.usbcamera.ObjectInfo;
 import cn.rainx.ptp.usbcamera.PTPException;
 import cn.rainx.ptp.usbcamera.PTPUnsupportedException;
 import cn.rainx.ptp.usbcamera.Response;
@@ -54,6 +61,29 @@ public class EosInitiator extends BaselineInitiator {
 	public static final int CANON_VID = 1193;
 	
 	public static boolean eventListenerRunning = false;
+
+    // EOS_DPC_CaptureDestination values
+    public static final int EOS_CAPTURE_DESTINATION_CARD = 2;
+    public static final int EOS_CAPTURE_DESTINATION_HOST = 4;
+
+    // EosGetPartialObject 每块的大小范围，按传输速度自适应
+    protected static final int EOS_MIN_PARTIAL_CHUNK = 1024 * 1024;
+    protected static final int EOS_MAX_PARTIAL_CHUNK = 8 * 1024 * 1024;
+
+    // GetLiveViewPicture 在还没有新帧时返回的响应码
+    public static final int EOS_RC_NOT_READY = 0xA102;
+
+    // live view 数据中 JPEG 记录的类型
+    private static final int EOS_LIVEVIEW_RECORD_JPEG = 1;
+
+    // getLiveView(ImageView) 复用的帧缓冲，新代码请使用 LiveViewEngine + LiveViewDecoder
+    private LiveViewFrame liveViewFrame;
+
+    // capture destination currently set on the camera, -1 if unknown
+    private int appliedCaptureDestination = -1;
+
+    // number of in-memory objects pulled so far, by any thread
+    private volatile int hostObjectsPulled = 0;
     /**
      * This is essentially a class driver, following Annex D of
      * the PTP specification.
@@ -62,6 +92,16 @@ public class EosInitiator extends BaselineInitiator {
         super(dev, connection);
     }
 
+    /**
+     * Forgets the capture destination written in a previous session: after
+     * a reconnect or a power cycle the camera is back on its own setting.
+     */
+    @Override
+    public void openSession() throws PTPException {
+        appliedCaptureDestination = -1;
+        super.openSession();
+    }
+
     /**
      * Fills out the provided device property description.
      *
@@ -172,41 +212,268 @@ public class EosInitiator extends BaselineInitiator {
 //            throw new PTPException("Unable to set remote mode", ret);
 //        }
 
-        try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-        checkEvents(); // Prevents  EosRemoteRelease!
-        try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-        checkEvents(); // Prevents  EosRemoteRelease!
-        try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-        checkEvents(); // Prevents  EosRemoteRelease!
+        checkCaptureDestination();
+        boolean toHost = captureDestination == SyncParams.CAPTURE_DESTINATION_HOST;
+        applyCaptureDestination();
+        int pulledBefore = hostObjectsPulled;
+        hostCaptureInProgress = toHost;
+        try {
+            try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+            checkEvents(); // Prevents  EosRemoteRelease!
+            try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+            checkEvents(); // Prevents  EosRemoteRelease!
+            try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+            checkEvents(); // Prevents  EosRemoteRelease!
+
+            resp = transact0(Command.EosRemoteRelease, null);
+            ret = resp.getCode();
+            Log.d(TAG, "  EosRemoteRelease Response code: 0x" + Integer.toHexString(ret) +"  OK: " +(ret == Response.OK));
+            if (ret != Response.OK) {
+                String msg = "Canon EOS Capture failed to release: Unknown error "
+                        + ret
+                        + " , please report.";
+                if (ret == 1) {
+                    msg = "Canon EOS Capture failed to release: Perhaps no focus?";
+                } else if (ret == 7) {
+                    msg = "Canon EOS Capture failed to release: Perhaps no more memory on card?";
+                }
+                Log.d(TAG, msg);
+                throw new PTPException(msg, ret);
+            }
+          ret = transact1(Command.EosSetRemoteMode, null, 0).getCode();
+          showResponseCode ("  EosSetRemoteMode 0: ", ret);
+          if (ret != Response.OK) {
+              throw new PTPException("Unable to set remote mode", ret);
+          }
+
+          if (toHost) {
+              // the image is in camera RAM: wait for RequestObjectTransfer and pull it
+              waitHostObject(pulledBefore, HOST_CAPTURE_TIMEOUT);
+          } else {
+              try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+              checkEvents(); // Prevents  EosRemoteRelease!
+              try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+              checkEvents(); // Prevents  EosRemoteRelease!
+              try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
+              checkEvents(); // Prevents  EosRemoteRelease!
+          }
+        } finally {
+            hostCaptureInProgress = false;
+        }
+
+      return resp;
+    }
+
+    /**
+     * Polls camera events until an in-memory object has been pulled (by
+     * this thread or by the polling thread) or the timeout expires.
+     */
+    private void waitHostObject(int pulledBefore, int timeout) throws PTPException {
+        long start = System.currentTimeMillis();
+        while (hostObjectsPulled == pulledBefore) {
+            if (System.currentTimeMillis() - start > timeout) {
+                throw new PTPException("Canon EOS capture to host: timeout waiting for the image");
+            }
+            handleEosEvents(checkEvents());
+            try { Thread.sleep(50);  } catch (InterruptedException e) {
+                throw new PTPException("Canon EOS capture to host interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Sets EOS_DPC_CaptureDestination according to the current capture
+     * destination.  When capturing to host the camera also needs to be told
+     * the host has room, otherwise it refuses to release the shutter.
+     */
+    protected void applyCaptureDestination() throws PTPException {
+        if (appliedCaptureDestination == captureDestination) {
+            return;
+        }
+        Response resp;
+        if (captureDestination == SyncParams.CAPTURE_DESTINATION_HOST) {
+            resp = setDevicePropValueEx(Command.EOS_DPC_CaptureDestination, EOS_CAPTURE_DESTINATION_HOST);
+            if (resp.getCode() == Response.OK) {
+                resp = transact3(Command.EosPCHDDCapacity, null, 0x0fffffff, 0x00001000, 0x00000001);
+            }
+        } else {
+            resp = setDevicePropValueEx(Command.EOS_DPC_CaptureDestination, EOS_CAPTURE_DESTINATION_CARD);
+        }
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Unable to set capture destination", resp.getCode());
+        }
+        appliedCaptureDestination = captureDestination;
+    }
 
-        resp = transact0(Command.EosRemoteRelease, null);
-        ret = resp.getCode();
-        Log.d(TAG, "  EosRemoteRelease Response code: 0x" + Integer.toHexString(ret) +"  OK: " +(ret == Response.OK));
+    @Override
+    public void setCaptureDestination(int captureDestination) {
+        super.setCaptureDestination(captureDestination);
+        if (isSessionActive()) {
+            // apply now, so the shutter button on the body honours it too
+            try {
+                applyCaptureDestination();
+            } catch (PTPException e) {
+                Log.d(TAG, "applyCaptureDestination failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsContinuousRelease() {
+        return info.supportsOperation(Command.EosRemoeReleaseOn)
+                && info.supportsOperation(Command.EosRemoeReleaseOff);
+    }
+
+    /**
+     * Presses the shutter button fully and keeps it down, so the camera
+     * shoots at the rate of its drive mode until released.
+     */
+    @Override
+    public Response startContinuousRelease() throws PTPException {
+        int ret = transact1(Command.EosSetRemoteMode, null, 1).getCode();
         if (ret != Response.OK) {
-            String msg = "Canon EOS Capture failed to release: Unknown error "
-                    + ret
-                    + " , please report.";
-            if (ret == 1) {
-                msg = "Canon EOS Capture failed to release: Perhaps no focus?";
-            } else if (ret == 7) {
-                msg = "Canon EOS Capture failed to release: Perhaps no more memory on card?";
+            throw new PTPException("Unable to set remote mode", ret);
+        }
+        checkCaptureDestination();
+        applyCaptureDestination();
+        // 3: full press, 0: with AF
+        Response resp = transact2(Command.EosRemoeReleaseOn, null, 3, 0);
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Canon EOS failed to press the shutter", resp.getCode());
+        }
+        return resp;
+    }
+
+    @Override
+    public Response stopContinuousRelease() throws PTPException {
+        Response resp = transact1(Command.EosRemoeReleaseOff, null, 3);
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Canon EOS failed to release the shutter", resp.getCode());
+        }
+        return resp;
+    }
+
+    @Override
+    public Response releaseShutter() throws PTPException {
+        int ret = transact1(Command.EosSetRemoteMode, null, 1).getCode();
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to set remote mode", ret);
+        }
+        checkCaptureDestination();
+        applyCaptureDestination();
+        Response resp = transact0(Command.EosRemoteRelease, null);
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Canon EOS Capture failed to release", resp.getCode());
+        }
+        return resp;
+    }
+
+    @Override
+    public void pollCaptureEvents() throws PTPException {
+        handleEosEvents(checkEvents());
+    }
+
+    /**
+     * Checks the sync rules against the ObjectAddedEx payload first, which
+     * carries format, size, parent and file name, so most objects are
+     * decided without GetObjectInfo.
+     */
+    @Override
+    protected boolean acceptObject(int fileHandle, Object event) throws PTPException, IOException {
+        SyncFilter filter = syncFilter;
+        if (filter == null || !(event instanceof EosEvent)) {
+            return super.acceptObject(fileHandle, event);
+        }
+        EosEvent e = (EosEvent) event;
+        if (!filter.matches(e.getIntParam(4), e.getIntParam(5) & 0xffffffffL, e.getIntParam(3), null,
+                e.getStringParam(6), -1, -1, null)) {
+            return false;
+        }
+        return !filter.needsObjectInfo() || super.acceptObject(fileHandle, null);
+    }
+
+    /**
+     * Takes the format from the ObjectAddedEx payload, without GetObjectInfo.
+     */
+    @Override
+    protected boolean isAssociation(int fileHandle, Object event) throws PTPException {
+        if (event instanceof EosEvent) {
+            return ((EosEvent) event).getIntParam(4) == ObjectInfo.Association;
+        }
+        return super.isAssociation(fileHandle, event);
+    }
+
+    /**
+     * Dispatches the events returned by {@link #checkEvents}.
+     */
+    protected void handleEosEvents(List<EosEvent> events) {
+        for (EosEvent event : events) {
+            Log.v("PTP_EVENT", event.toString());
+
+            if (event.getCode() == EosEventConstants.EosEventObjectAddedEx) {
+                processFileAddEvent(event.getIntParam(1), event);
+            } else if (event.getCode() == EosEventConstants.EosEventRequestObjectTransfer) {
+                processHostObjectAdded(event.getIntParam(1), event.getIntParam(5),
+                        event.getStringParam(6), event);
+            } else if (event.getCode() == EosEventConstants.EosEventAvailListChanged) {
+                cacheAllowedPropValues(event.getIntParam(1), (int[]) event.getParam(2));
             }
-            Log.d(TAG, msg);
-            throw new PTPException(msg, ret);
-        }
-      ret = transact1(Command.EosSetRemoteMode, null, 0).getCode();
-      showResponseCode ("  EosSetRemoteMode 0: ", ret);
-      if (ret != Response.OK) {
-          throw new PTPException("Unable to set remote mode", ret);
-      }
-      try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-      checkEvents(); // Prevents  EosRemoteRelease!
-      try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-      checkEvents(); // Prevents  EosRemoteRelease!
-      try { Thread.sleep(100);  } catch (InterruptedException e) {e.printStackTrace();}
-      checkEvents(); // Prevents  EosRemoteRelease!
+        }
+    }
 
-      return resp;
+    /**
+     * Pulls an object out of camera RAM with EosGetPartialObject, then
+     * releases it with EosTransferComplete.
+     */
+    @Override
+    protected boolean importHostObject(int objectHandle, int size, String destPath)
+            throws PTPException, IOException {
+        // RequestObjectTransfer 没有给出大小时向相机查询
+        long objectSize = size > 0 ? size & 0xffffffffL : getObjectSize64(objectHandle);
+        boolean done;
+        if (objectSize > 0 && objectSize != 0xffffffffL) {
+            done = super.importLargeFile(objectHandle, objectSize, destPath);
+        } else {
+            done = super.importHostObject(objectHandle, size, destPath);
+        }
+        if (!done) {
+            return false;
+        }
+        transferComplete(objectHandle);
+        hostObjectsPulled++;
+        return true;
+    }
+
+    @Override
+    protected boolean preferPartialReads() {
+        return info != null && info.supportsOperation(Command.EosGetPartialObject);
+    }
+
+    @Override
+    protected int getMinPartialChunk() {
+        return EOS_MIN_PARTIAL_CHUNK;
+    }
+
+    @Override
+    protected int getMaxPartialChunk() {
+        return EOS_MAX_PARTIAL_CHUNK;
+    }
+
+    /**
+     * Uses EosGetPartialObject below 4 GB and EosGetPartialObject64, whose
+     * offset is 64 bits, beyond.
+     */
+    @Override
+    protected Command newPartialObjectCommand(int objectHandle, long offset, int length)
+            throws PTPException {
+        if (offset + length <= 0xffffffffL && info.supportsOperation(Command.EosGetPartialObject)) {
+            return new Command(Command.EosGetPartialObject, session, objectHandle, (int) offset, length);
+        }
+        if (!info.supportsOperation(Command.EosGetPartialObject64)) {
+            return super.newPartialObjectCommand(objectHandle, offset, length);
+        }
+        return new Command(Command.EosGetPartialObject64, session, objectHandle,
+                (int) offset, (int) (offset >>> 32), length);
     }
 
     /**
@@ -293,6 +560,33 @@ public class EosInitiator extends BaselineInitiator {
 
     } 
     
+    /**
+     * Opens the shutter in bulb mode until {@link #stopBulb()}.
+     */
+    @Override
+    public Response startBulb () throws PTPException{
+        int ret = transact1(Command.EosSetRemoteMode, null, 1).getCode();
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to set remote mode", ret);
+        }
+        checkCaptureDestination();
+        applyCaptureDestination();
+        Response resp = startBulbs();
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Canon EOS failed to start bulb", resp.getCode());
+        }
+        return resp;
+    }
+
+    @Override
+    public Response stopBulb () throws PTPException{
+        Response resp = stopBulbs();
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Canon EOS failed to stop bulb", resp.getCode());
+        }
+        return resp;
+    }
+
     public Response startBulbs () throws PTPException{
     
        setDevicePropValueEx (Command.EOS_DPC_ShutterSpeed, EosEventConstants.SHUTTER_SPEED_BULB);
@@ -318,6 +612,11 @@ public class EosInitiator extends BaselineInitiator {
     	//GetDevicePropInfo PtpValues.StandardOperations.GET_DEVICE_PROP_DESC, self.sessionid, self.NewTransaction(), (propertyId,))
     }
     
+    @Override
+    public boolean supportsFocusDrive() {
+        return info.supportsOperation(Command.EosDriveLens);
+    }
+
     public Response MoveFocus(int step) throws PTPException{
 
         return  transact1(Command.EosDriveLens,null,step); 
@@ -381,38 +680,73 @@ public class EosInitiator extends BaselineInitiator {
 		
 	}
     
-	public void getLiveView(final ImageView imageView)
+	@Override
+	public void startLiveView() throws PTPException
 	{
-		Command command = new Command(Command.EOS_OC_GetLiveViewPicture, session,0x00100000);
-		write(command.data, command.length, DEFAULT_TIMEOUT);				
-		byte buf[] = read(DEFAULT_TIMEOUT);
-		Data item = new Data(true, buf, this); 
+		setupLiveview();
+	}
 
-		int totalLength = item.getLength();
-		int left = totalLength - buf.length;
+	@Override
+	public void stopLiveView() throws PTPException
+	{
+		setDevicePropValueEx(Command.EOS_DPC_LiveView, 0);
+	}
 
-		int needToRead = (left/inMaxPS);
-		
-		if((left%inMaxPS) != 0)
-			needToRead++;
-		
-		byte imageBuf[] = new byte[inMaxPS*(needToRead+1)];
-		
-		System.arraycopy(buf,0,imageBuf,0,512);
-		
-		for (int i=0; i<(needToRead); i++)
-		{
+	/**
+	 * Reads one frame with large bulk reads into the frame buffer and
+	 * locates the JPEG record in place.
+	 */
+	@Override
+	public boolean readLiveViewFrame(LiveViewFrame frame) throws PTPException
+	{
+		Response response = transactLiveView(frame, Command.EOS_OC_GetLiveViewPicture, 0x00100000);
+		if (response.getCode() == EOS_RC_NOT_READY) {
+			return false;
+		}
+		if (response.getCode() != Response.OK) {
+			throw new PTPException("GetLiveViewPicture failed", response.getCode());
+		}
 
-			buf = read(DEFAULT_TIMEOUT);
-			System.arraycopy(buf,0,imageBuf,512*(i+1),512);
+		// the data phase is a list of records: u32 size, u32 type, payload
+		byte[] data = frame.buffer.data;
+		int length = frame.buffer.length;
+		int pos = 12;
+		while (pos + 8 <= length) {
+			int size = Buffer.getS32(data, pos);
+			int type = Buffer.getS32(data, pos + 4);
+			if (size < 8) {
+				break;
+			}
+			if (type == EOS_LIVEVIEW_RECORD_JPEG) {
+				frame.jpegOffset = pos + 8;
+				frame.jpegLength = Math.min(size, length - pos) - 8;
+				return true;
+			}
+			pos += size;
+		}
+		// unknown record layout
+		return JpegLocator.locate(frame, 12);
+	}
 
+	public void getLiveView(final ImageView imageView)
+	{
+		if (liveViewFrame == null) {
+			liveViewFrame = new LiveViewFrame(this);
+		}
+		try {
+			if (!readLiveViewFrame(liveViewFrame)) {
+				return;
+			}
+		} catch (PTPException e) {
+			Log.d(TAG, "getLiveView failed: " + e.getMessage());
+			return;
+		}
 
+		final Bitmap bMap = BitmapFactory.decodeByteArray(liveViewFrame.getData(),
+				liveViewFrame.getJpegOffset(), liveViewFrame.getJpegLength());
+		if (bMap == null) {
+			return;
 		}
-		Data completedData = new Data(true, imageBuf, this); 	
-		
-		final Bitmap bMap = BitmapFactory.decodeByteArray(completedData.data, 20, completedData.getLength()-20);
-		Bitmap scaled = Bitmap.createScaledBitmap(bMap, bMap.getWidth()/10, bMap.getHeight()/10, false);
-		
 		imageView.post(new Runnable(){
 
 			@Override
@@ -423,16 +757,6 @@ public class EosInitiator extends BaselineInitiator {
 			}
 			
 		});
-		/*
-		tv6.setText(" Height:"+bMap.getHeight());
-		tv6.append(" Width:"+bMap.getWidth());
-		*/
-		byte buf1[] = read(DEFAULT_TIMEOUT);
-
-		Response response = new Response (buf1, inMaxPS, this);
-		//tv6.append(response.toString());
-
-		
 	}
 	/////////////////////////
 	public void setFocusPos(int x, int y)
@@ -502,17 +826,13 @@ public class EosInitiator extends BaselineInitiator {
             e.printStackTrace();
         }
 
+        resumeJournal();
 
         byte[] buffer = new byte[intrMaxPS];
         while (isSessionActive()) {
             try {
-                List<EosEvent> events = checkEvents();
-                for (EosEvent event : events) {
-                    Log.v("PTP_EVENT", event.toString());
-
-                    if(event.getCode() == EosEventConstants.EosEventObjectAddedEx) {
-                        processFileAddEvent(event.getIntParam(1), event);
-                    }
+                if (!hostCaptureInProgress) {
+                    handleEosEvents(checkEvents());
                 }
             }catch (PTPException e) {
                 continue;
@@ -20,11 +20,15 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
 
+import cn.rainx.ptp.liveview.JpegLocator;
+import cn.rainx.ptp.liveview.LiveViewFrame;
+import cn.rainx.ptp.params.SyncParams;
 import cn.rainx.ptp.usbcamera.BaselineInitiator;
 import cn.rainx.ptp.usbcamera.Command;
 import cn.rainx.ptp.usbcamera.Container;
 import cn.rainx.ptp.usbcamera.Data;
 import cn.rainx.ptp.usbcamera.DevicePropDesc;
+import cn.rainx.ptp.usbcamera.ObjectInfo;
 import cn.rainx.ptp.usbcamera.PTPException;
 import cn.rainx.ptp.usbcamera.Response;
 
@@ -46,6 +50,12 @@ public class NikonInitiator extends BaselineInitiator {
 	public static final int NIKON_VID = 1200;
 	
 	public static boolean eventListenerRunning = false;
+
+    // Nikon keeps an image captured in SDRAM under this fixed handle
+    public static final int NIKON_SDRAM_OBJECT_HANDLE = 0xFFFF0001;
+
+    // GetLiveViewImg 在 live view 没有启动时返回的响应码
+    public static final int NIKON_RC_NOT_LIVE_VIEW = 0xA00B;
     /**
      * This is essentially a class driver, following Annex D of
      * the PTP specification.
@@ -93,6 +103,9 @@ public class NikonInitiator extends BaselineInitiator {
      */
     public Response initiateCapture(int storageId, int formatCode)
             throws PTPException {
+        if (captureDestination == SyncParams.CAPTURE_DESTINATION_HOST) {
+            return initiateCaptureInSdram();
+        }
     	Response resp = null;
         //
         // Special initialization for EOS cameras
@@ -125,6 +138,120 @@ public class NikonInitiator extends BaselineInitiator {
       return resp;
     }
 
+    /**
+     * Captures into camera SDRAM without writing the card, then pulls the
+     * image with GetObject as soon as the camera reports it is ready.
+     */
+    protected Response initiateCaptureInSdram() throws PTPException {
+        if (!info.supportsOperation(Command.NK_OC_CaptureInSDRAM)) {
+            Log.d(TAG, "The camera does not support Nikon capture in SDRAM");
+            throw new PTPException("The camera does not support Nikon capture in SDRAM");
+        }
+        checkCaptureDestination();
+
+        hostCaptureInProgress = true;
+        try {
+            Response resp = transact0(Command.NK_OC_CaptureInSDRAM, null);
+            int ret = resp.getCode();
+            Log.d(TAG, "  NK_OC_CaptureInSDRAM Response code: 0x" + Integer.toHexString(ret) +"  OK: " +(ret == Response.OK));
+            if (ret != Response.OK) {
+                throw new PTPException("NK_OC_CaptureInSDRAM failed", ret);
+            }
+
+            waitDeviceReady(HOST_CAPTURE_TIMEOUT);
+
+            ObjectInfo objectInfo = getObjectInfo(NIKON_SDRAM_OBJECT_HANDLE);
+            if (!processHostObjectAdded(NIKON_SDRAM_OBJECT_HANDLE,
+                    objectInfo.getObjectCompressedSize(), objectInfo.getFilename(), objectInfo)) {
+                throw new PTPException("Unable to pull the image from SDRAM");
+            }
+            return resp;
+        } finally {
+            hostCaptureInProgress = false;
+        }
+    }
+
+    /**
+     * Fires one frame without the settle delays of initiateCapture, then
+     * waits until the camera can accept the next one.
+     */
+    @Override
+    public Response releaseShutter() throws PTPException {
+        if (captureDestination == SyncParams.CAPTURE_DESTINATION_HOST) {
+            return initiateCaptureInSdram();
+        }
+        Response resp = transact0(Command.InitiateCapture, null);
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("NK_OC_Capture failed to release", resp.getCode());
+        }
+        if (info.supportsOperation(Command.NK_OC_DeviceReady)) {
+            waitDeviceReady(HOST_CAPTURE_TIMEOUT);
+        }
+        return resp;
+    }
+
+    // SDRAM 中的照片总是使用同一个句柄，下一张拍摄前必须读取
+    @Override
+    protected boolean canQueueHostObjects() {
+        return false;
+    }
+
+    @Override
+    public void startLiveView() throws PTPException {
+        Response resp = transact0(Command.PTP_OC_NIKON_StartLiveView, null);
+        if (resp.getCode() != Response.OK) {
+            throw new PTPException("Nikon StartLiveView failed", resp.getCode());
+        }
+        if (info.supportsOperation(Command.NK_OC_DeviceReady)) {
+            waitDeviceReady(HOST_CAPTURE_TIMEOUT);
+        }
+    }
+
+    @Override
+    public void stopLiveView() throws PTPException {
+        transact0(Command.PTP_OC_NIKON_EndLiveView, null);
+    }
+
+    /**
+     * The header in front of the JPEG differs between bodies, so the JPEG
+     * is located by its markers.
+     */
+    @Override
+    public boolean readLiveViewFrame(LiveViewFrame frame) throws PTPException {
+        Response resp = transactLiveView(frame, Command.PTP_OC_NIKON_GetLiveViewImg);
+        int code = resp.getCode();
+        if (code == Response.DeviceBusy || code == NIKON_RC_NOT_LIVE_VIEW) {
+            return false;
+        }
+        if (code != Response.OK) {
+            throw new PTPException("Nikon GetLiveViewImg failed", code);
+        }
+        return JpegLocator.locate(frame, 12);
+    }
+
+    /**
+     * Polls NK_OC_DeviceReady until the camera has finished processing
+     * the last capture.
+     */
+    protected void waitDeviceReady(int timeout) throws PTPException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            int ret = transact0(Command.NK_OC_DeviceReady, null).getCode();
+            if (ret == Response.OK) {
+                return;
+            }
+            if (ret != Response.DeviceBusy) {
+                throw new PTPException("NK_OC_DeviceReady failed", ret);
+            }
+            if (System.currentTimeMillis() - start > timeout) {
+                throw new PTPException("Nikon device not ready: timeout", ret);
+            }
+            try { Thread.sleep(50);  } catch (InterruptedException e) {
+                throw new PTPException("Nikon device ready wait interrupted", e);
+            }
+        }
+    }
+
     /**
      * Retrieves a chunk of the object identified by the given object id.
      *
@@ -145,6 +272,62 @@ public class NikonInitiator extends BaselineInitiator {
         }
     }
 
+    /**
+     * Uses GetPartialObjectEx, whose offset and length are 64 bits, when
+     * the camera has it.
+     */
+    @Override
+    protected Command newPartialObjectCommand(int objectHandle, long offset, int length)
+            throws PTPException {
+        if (!info.supportsOperation(Command.PTP_OC_NIKON_GetPartialObjectEx)) {
+            return super.newPartialObjectCommand(objectHandle, offset, length);
+        }
+        return new Command(Command.PTP_OC_NIKON_GetPartialObjectEx, session, objectHandle,
+                (int) offset, (int) (offset >>> 32), length, 0);
+    }
+
+    /**
+     * Asks the camera with GetObjectSize, which returns a 64-bit size.
+     */
+    @Override
+    public long getObjectSize64(int objectHandle) throws PTPException {
+        if (!info.supportsOperation(Command.PTP_OC_NIKON_GetObjectSize)) {
+            return super.getObjectSize64(objectHandle);
+        }
+        Data data = new Data(this);
+        Response ret = transact1(Command.PTP_OC_NIKON_GetObjectSize, data, objectHandle);
+        if (ret.getCode() != Response.OK || data.getLength() < 20) {
+            return super.getObjectSize64(objectHandle);
+        }
+        byte[] buf = data.getData();
+        long size = 0;
+        for (int i = 7; i >= 0; i--) {
+            size = size << 8 | (buf[12 + i] & 0xff);
+        }
+        return size;
+    }
+
+    /**
+     * Uses GetPreviewImg, which returns the preview of the latest capture
+     * together with its handle; it is only used when that handle matches.
+     */
+    @Override
+    protected byte[] readVendorPreview(int objectHandle) throws PTPException {
+        if (!info.supportsOperation(Command.PTP_OC_NIKON_GetPreviewImg)) {
+            return null;
+        }
+        Data data = new Data(this);
+        Response ret = transact0(Command.PTP_OC_NIKON_GetPreviewImg, data);
+        if (ret.getCode() != Response.OK || ret.getParam1() != objectHandle
+                || data.getLength() <= 12) {
+            return null;
+        }
+        // 跳过 12 字节的容器头
+        byte[] preview = new byte[data.getLength() - 12];
+        System.arraycopy(data.getData(), 12, preview, 0, preview.length);
+        return preview;
+    }
+
     public void transferComplete(int oid)
     throws PTPException {
         Response ret =
@@ -172,6 +355,11 @@ public class NikonInitiator extends BaselineInitiator {
         return response;
     }
     
+    @Override
+    public Response setDevicePropValueEx (int property, int value) throws PTPException{
+        return setDevicePropValueNikon(property, value);
+    }
+
     public int getDevicePropValue(int propcode, DevicePropDesc desc)
     		throws PTPException {
     	return transact1(Command.GetDevicePropValue, desc, propcode).getCode();
@@ -11,7 +11,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import cn.rainx.ptp.liveview.JpegLocator;
+import cn.rainx.ptp.liveview.LiveViewFrame;
+import cn.rainx.ptp.params.SyncParams;
 import cn.rainx.ptp.usbcamera.BaselineInitiator;
+import cn.rainx.ptp.usbcamera.Buffer;
 import cn.rainx.ptp.usbcamera.Command;
 import cn.rainx.ptp.usbcamera.Data;
 import cn.rainx.ptp.usbcamera.DeviceInfo;
@@ -34,9 +38,26 @@ public class SonyInitiator extends BaselineInitiator {
     protected int PTP_DPC_SONY_ObjectInMemory = 0xD215;
     protected int PTP_OC_SONY_GetDevicePropdesc = 0x9203;
     protected int PTP_OC_SONY_GetSDIOGetExtDeviceInfo = 0x9202;
+    protected int PTP_OC_SONY_SetControlDeviceA = 0x9205;
+    protected int PTP_OC_SONY_SetControlDeviceB = 0x9207;
+    protected int PTP_DPC_SONY_StillImageStoreDestination = 0xD222;
+    protected int PTP_DPC_SONY_AutoFocus = 0xD2C1;
+    protected int PTP_DPC_SONY_Capture = 0xD2C2;
+
+    // StillImageStoreDestination values
+    public static final int SONY_STORE_DESTINATION_HOST = 0x01;
+    public static final int SONY_STORE_DESTINATION_CARD = 0x10;
+
+    // Sony 拍摄后保存在相机内存中的对象，句柄固定
+    public static final int SONY_IN_MEMORY_OBJECT_HANDLE = 0xffffc001;
+    // live view 画面对象，句柄固定
+    public static final int SONY_LIVEVIEW_OBJECT_HANDLE = 0xffffc002;
 
     SonyExtDeviceInfo sonyExtDeviceInfo = null;
 
+    // 最后一次写入相机的 StillImageStoreDestination 对应的拍摄目的地，初始为相机默认的存储卡
+    private int appliedDestination = SyncParams.CAPTURE_DESTINATION_CARD;
+
     /**
      * Constructs a class driver object, if the device supports
      * operations according to Annex D of the PTP specification.
@@ -155,9 +176,23 @@ public class SonyInitiator extends BaselineInitiator {
     }
 
     protected Object waitVendorSpecifiedFileReadySignal() {
+        return waitObjectInMemory(true);
+    }
+
+    /**
+     * Polls ObjectInMemory until an image is in camera memory.
+     *
+     * @param yieldToCapture true on the event thread: gives up as soon as a
+     *     host capture starts, the capturing thread pulls the image
+     * @return the ObjectInfo of the image, or null on timeout
+     */
+    private ObjectInfo waitObjectInMemory(boolean yieldToCapture) {
         long start = System.currentTimeMillis();
         // 5 秒的超时时间
         while (System.currentTimeMillis() - start < 15000) {
+            if (yieldToCapture && hostCaptureInProgress) {
+                return null;
+            }
             // to avoid cache
             getAllDevicePropDesc();
             List<DevicePropDesc> props = getAllDevicePropDesc();
@@ -256,6 +291,116 @@ public class SonyInitiator extends BaselineInitiator {
     }
 
 
+    /**
+     * When capturing to host, releases the shutter through the SDIO control
+     * properties (half press, full press, then release both) and pulls the
+     * image from camera memory before returning.  Capturing to card uses
+     * InitiateCapture as before.  StillImageStoreDestination is only written
+     * when the capture destination changed.
+     */
+    @Override
+    public Response initiateCapture(int storageId, int formatCode) throws PTPException {
+        checkCaptureDestination();
+        boolean toHost = captureDestination == SyncParams.CAPTURE_DESTINATION_HOST;
+        applyCaptureDestination();
+        if (!toHost) {
+            return super.initiateCapture(storageId, formatCode);
+        }
+        // 轮询线程看到标志后放弃等待，正在读取的照片读完后才开始拍摄
+        hostCaptureInProgress = true;
+        try {
+            synchronized (hostObjectLock) {
+                setControlDeviceValue(PTP_OC_SONY_SetControlDeviceB, PTP_DPC_SONY_AutoFocus, 2);
+                Response resp = setControlDeviceValue(PTP_OC_SONY_SetControlDeviceB, PTP_DPC_SONY_Capture, 2);
+                setControlDeviceValue(PTP_OC_SONY_SetControlDeviceB, PTP_DPC_SONY_Capture, 1);
+                setControlDeviceValue(PTP_OC_SONY_SetControlDeviceB, PTP_DPC_SONY_AutoFocus, 1);
+                if (resp.getCode() != Response.OK) {
+                    throw new PTPException("Sony capture failed to release", resp.getCode());
+                }
+
+                ObjectInfo info = waitObjectInMemory(false);
+                if (info == null) {
+                    throw new PTPException("Sony capture to host: timeout waiting for the image");
+                }
+                if (!processHostObjectAdded(SONY_IN_MEMORY_OBJECT_HANDLE,
+                        info.getObjectCompressedSize(), info.getFilename(), info)) {
+                    throw new PTPException("Unable to pull the image from camera memory");
+                }
+                return resp;
+            }
+        } finally {
+            hostCaptureInProgress = false;
+        }
+    }
+
+    // 拍摄目的地改变后写入一次 StillImageStoreDestination
+    private void applyCaptureDestination() throws PTPException {
+        int destination = captureDestination;
+        if (destination == appliedDestination) {
+            return;
+        }
+        Response resp = setControlDeviceValue(PTP_OC_SONY_SetControlDeviceA, PTP_DPC_SONY_StillImageStoreDestination,
+                destination == SyncParams.CAPTURE_DESTINATION_HOST
+                        ? SONY_STORE_DESTINATION_HOST : SONY_STORE_DESTINATION_CARD);
+        if (resp == null || resp.getCode() != Response.OK) {
+            throw new PTPException("Sony failed to set the capture destination",
+                    resp == null ? 0 : resp.getCode());
+        }
+        appliedDestination = destination;
+    }
+
+    /**
+     * Sony serves the live view image as an object.  The data starts with
+     * the offset and size of the JPEG, followed by focus information.
+     */
+    @Override
+    public void startLiveView() throws PTPException {
+        // live view 在 SDIO 连接之后一直可用
+    }
+
+    @Override
+    public boolean readLiveViewFrame(LiveViewFrame frame) throws PTPException {
+        Response resp = transactLiveView(frame, Command.GetObject, SONY_LIVEVIEW_OBJECT_HANDLE);
+        int code = resp.getCode();
+        if (code == Response.AccessDenied || code == Response.DeviceBusy) {
+            return false;
+        }
+        if (code != Response.OK) {
+            throw new PTPException("Sony live view GetObject failed", code);
+        }
+        byte[] data = frame.buffer.data;
+        if (frame.buffer.length < 12 + 8) {
+            return false;
+        }
+        int offset = Buffer.getS32(data, 12);
+        int size = Buffer.getS32(data, 16);
+        return JpegLocator.locateAt(frame, 12 + offset, size, 12 + 8);
+    }
+
+    // 内存中的照片总是使用同一个句柄，下一张拍摄前必须读取
+    @Override
+    protected boolean canQueueHostObjects() {
+        return false;
+    }
+
+    // 同一个句柄每次都是不同的照片，不能从下载日志中恢复
+    @Override
+    protected boolean isJournaled(int fileHandle) {
+        return fileHandle != SONY_IN_MEMORY_OBJECT_HANDLE;
+    }
+
+    /**
+     * Writes a 16 bit SDIO control property with SetControlDeviceA/B.
+     */
+    protected Response setControlDeviceValue(int opcode, int propcode, int value) throws PTPException {
+        // container header is filled by transactUnsync, the u16 value follows it
+        byte[] buff = new byte[12 + 2];
+        Data data = new Data(false, buff, buff.length, this);
+        buff[12] = (byte) value;
+        buff[13] = (byte) (value >> 8);
+        return transact1(opcode, data, propcode);
+    }
+
     public Response setSDIOConnect(int mode) {
         Log.d(TAG, "set setSDIOConnect :" + mode);
         Response response;
@@ -328,6 +473,8 @@ public class SonyInitiator extends BaselineInitiator {
     public void openSession() throws PTPException {
         Log.d(TAG,"claimInterface");
         mConnection.claimInterface(intf, false);
+        // 重连或相机重启后相机恢复为存储卡，HOST 模式下次拍摄时重新写入
+        appliedDestination = SyncParams.CAPTURE_DESTINATION_CARD;
         super.openSession();
     }
 
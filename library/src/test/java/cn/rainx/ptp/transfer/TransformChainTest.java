@@ -0,0 +1,116 @@
+package cn.rainx.ptp.transfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two downloads running at the same time through transforms created by the
+ * same factories must not share state.
+ */
+public class TransformChainTest {
+
+    private static final int CHUNK = 1000;
+
+    private static class BytesSink implements ObjectSink {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void begin(int handle, long size) {
+        }
+
+        @Override
+        public void write(ByteBuffer chunk) {
+            bytes.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    @Test
+    public void interleavedDownloads_keepTheirOwnState() throws Exception {
+        SecretKey key = new SecretKeySpec(new byte[16], "AES");
+        ChunkTransform.Factory sha = DigestTransform.factory("SHA-256");
+        ChunkTransform.Factory crc = Crc32Transform.factory();
+        ChunkTransform.Factory aes = AesCtrTransform.factory(key);
+
+        byte[] dataA = randomBytes(1, 5500);
+        byte[] dataB = randomBytes(2, 4200);
+        BytesSink sinkA = new BytesSink();
+        BytesSink sinkB = new BytesSink();
+        TransformChain chainA = new TransformChain(sinkA).add(sha.create()).add(crc.create()).add(aes.create());
+        TransformChain chainB = new TransformChain(sinkB).add(sha.create()).add(crc.create()).add(aes.create());
+
+        chainA.begin(1, dataA.length);
+        int offsetA = 0;
+        int offsetB = 0;
+        boolean begunB = false;
+        while (offsetA < dataA.length || offsetB < dataB.length) {
+            if (offsetA < dataA.length) {
+                offsetA = write(chainA, dataA, offsetA);
+            }
+            if (!begunB) {
+                // 第二个下载在第一个进行中开始
+                chainB.begin(2, dataB.length);
+                begunB = true;
+            }
+            if (offsetB < dataB.length) {
+                offsetB = write(chainB, dataB, offsetB);
+            }
+        }
+        chainA.finish();
+        chainB.finish();
+
+        check(dataA, sinkA.bytes.toByteArray(), chainA, key);
+        check(dataB, sinkB.bytes.toByteArray(), chainB, key);
+        assertFalse(java.util.Arrays.equals(chainA.getResults().get(AesCtrTransform.NAME),
+                chainB.getResults().get(AesCtrTransform.NAME)));
+    }
+
+    private static int write(TransformChain chain, byte[] data, int offset) throws Exception {
+        int n = Math.min(CHUNK, data.length - offset);
+        // 和 USB 读取循环一样复用同一个缓冲
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+        chunk.put(data, offset, n);
+        chunk.flip();
+        chain.write(chunk);
+        return offset + n;
+    }
+
+    private static void check(byte[] plain, byte[] written, TransformChain chain, SecretKey key)
+            throws Exception {
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(plain),
+                chain.getResults().get("SHA-256"));
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(plain);
+        assertArrayEquals(Crc32cTransform.toBytes((int) crc.getValue()),
+                chain.getResults().get(Crc32Transform.NAME));
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new IvParameterSpec(chain.getResults().get(AesCtrTransform.NAME)));
+        assertArrayEquals(plain, cipher.doFinal(written));
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package cn.rainx.ptp.usbcamera;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectChannelTest {
+
+    // 用内存中的数据代替相机的部分读取
+    private static class FakeInitiator extends BaselineInitiator {
+        final byte[] object;
+        int reads;
+
+        FakeInitiator(byte[] object) {
+            this.object = object;
+        }
+
+        @Override
+        public byte[] readPartialObject(int objectHandle, long offset, int length) {
+            reads++;
+            int n = (int) Math.max(0, Math.min(length, object.length - offset));
+            byte[] data = new byte[n];
+            System.arraycopy(object, (int) offset, data, 0, n);
+            return data;
+        }
+    }
+
+    private static byte[] object(int size) {
+        byte[] object = new byte[size];
+        for (int i = 0; i < size; i++) {
+            object[i] = (byte) (i * 31 + i / 251);
+        }
+        return object;
+    }
+
+    @Test
+    public void sequentialReads_withSmallCache_readWholeObject() throws IOException {
+        byte[] object = object(100 * 1000 + 17);
+        FakeInitiator initiator = new FakeInitiator(object);
+        // 预读很快超过缓存的块数
+        ObjectChannel channel = new ObjectChannel(initiator, 1, object.length, 1000, 3);
+
+        ByteBuffer all = ByteBuffer.allocate(object.length);
+        ByteBuffer dst = ByteBuffer.allocate(700);
+        int n;
+        while ((n = channel.read(dst)) > 0) {
+            dst.flip();
+            all.put(dst);
+            dst.clear();
+            assertTrue(n <= 700);
+        }
+        assertEquals(object.length, all.position());
+        assertArrayEquals(object, all.array());
+        assertTrue(initiator.reads < 101);
+    }
+
+    @Test
+    public void prefetch_largerThanCache_keepsRequestedStart() throws IOException {
+        byte[] object = object(50 * 1000);
+        FakeInitiator initiator = new FakeInitiator(object);
+        ObjectChannel channel = new ObjectChannel(initiator, 1, object.length, 1000, 2);
+
+        channel.prefetch(0, 20 * 1000);
+        assertTrue(channel.isCached(0));
+        assertTrue(channel.isCached(1999));
+        assertEquals(1, initiator.reads);
+
+        ByteBuffer dst = ByteBuffer.allocate(2000);
+        assertEquals(2000, channel.read(dst));
+        assertEquals(1, initiator.reads);
+        byte[] expected = new byte[2000];
+        System.arraycopy(object, 0, expected, 0, 2000);
+        assertArrayEquals(expected, dst.array());
+    }
+}